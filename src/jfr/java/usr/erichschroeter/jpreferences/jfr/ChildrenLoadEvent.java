@@ -0,0 +1,17 @@
+package usr.erichschroeter.jpreferences.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event of a tree node reading the children names of its
+ * preference node.
+ * 
+ * @author Erich Schroeter
+ */
+@Name("usr.erichschroeter.jpreferences.ChildrenLoad")
+@Label("Preference Tree Children Load")
+@Description("A tree node reading the children names of its node")
+class ChildrenLoadEvent extends PreferenceEvent {
+}
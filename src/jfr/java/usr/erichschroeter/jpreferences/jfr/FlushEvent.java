@@ -0,0 +1,17 @@
+package usr.erichschroeter.jpreferences.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event of the modifications of a preference node
+ * written to the backing store by a table model.
+ * 
+ * @author Erich Schroeter
+ */
+@Name("usr.erichschroeter.jpreferences.Flush")
+@Label("Preference Flush")
+@Description("The modifications of a preference node written to the backing store")
+class FlushEvent extends PreferenceEvent {
+}
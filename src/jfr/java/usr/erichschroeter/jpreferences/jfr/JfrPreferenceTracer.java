@@ -0,0 +1,49 @@
+package usr.erichschroeter.jpreferences.jfr;
+
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics.Operation;
+import usr.erichschroeter.jpreferences.metrics.PreferenceTracer;
+
+/**
+ * The <code>JfrPreferenceTracer</code> emits Java Flight Recorder events for
+ * table model syncs, flushes and reloads, tree node children loads and dialog page
+ * switches. It is provided to the <code>ServiceLoader</code>, so adding this
+ * source set's jar to the class path installs it.
+ * <p>
+ * An event is only created and timed while Flight Recorder is recording it;
+ * otherwise {@link #begin(Operation)} returns <code>null</code> and the
+ * operation is not traced.
+ * 
+ * @author Erich Schroeter
+ */
+public class JfrPreferenceTracer implements PreferenceTracer {
+
+	@Override
+	public Trace begin(Operation operation) {
+		PreferenceEvent event;
+		switch (operation) {
+		case SYNC:
+			event = new SyncEvent();
+			break;
+		case FLUSH:
+			event = new FlushEvent();
+			break;
+		case UPDATE_KEYS:
+			event = new UpdateKeysEvent();
+			break;
+		case CHILDREN_NAMES:
+			event = new ChildrenLoadEvent();
+			break;
+		case SET_PAGE:
+			event = new PageSwitchEvent();
+			break;
+		default:
+			return null; // not recorded
+		}
+		if (!event.isEnabled()) {
+			return null; // not recording
+		}
+		event.begin();
+		return event;
+	}
+
+}
@@ -0,0 +1,18 @@
+package usr.erichschroeter.jpreferences.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event of the preference dialog switching pages. The
+ * path and count are those of the node of a preference page, or the title of
+ * a custom page and 0.
+ * 
+ * @author Erich Schroeter
+ */
+@Name("usr.erichschroeter.jpreferences.PageSwitch")
+@Label("Preference Dialog Page Switch")
+@Description("The preference dialog switching the page displayed")
+class PageSwitchEvent extends PreferenceEvent {
+}
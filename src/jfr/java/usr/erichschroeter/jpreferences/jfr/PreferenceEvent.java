@@ -0,0 +1,37 @@
+package usr.erichschroeter.jpreferences.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+import usr.erichschroeter.jpreferences.metrics.PreferenceTracer.Trace;
+
+/**
+ * A <code>PreferenceEvent</code> is the Flight Recorder event of a preference
+ * operation, carrying the node operated on and the number of keys or children
+ * involved. The fields are only set when the event is committed.
+ * 
+ * @author Erich Schroeter
+ */
+@Category("Java Preferences")
+@StackTrace(false)
+abstract class PreferenceEvent extends Event implements Trace {
+
+	/** The absolute path of the node, or the title of the page. */
+	@Label("Path")
+	String path;
+	/** The number of keys or children involved. */
+	@Label("Count")
+	int count;
+
+	@Override
+	public void end(String path, int count) {
+		end();
+		if (shouldCommit()) {
+			this.path = path;
+			this.count = count;
+			commit();
+		}
+	}
+
+}
@@ -0,0 +1,17 @@
+package usr.erichschroeter.jpreferences.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event of a preference node synchronized with the
+ * backing store by a table model.
+ * 
+ * @author Erich Schroeter
+ */
+@Name("usr.erichschroeter.jpreferences.Sync")
+@Label("Preference Sync")
+@Description("A preference node synchronized with the backing store")
+class SyncEvent extends PreferenceEvent {
+}
@@ -0,0 +1,17 @@
+package usr.erichschroeter.jpreferences.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder event of a table model reading the keys and values of
+ * its preference node.
+ * 
+ * @author Erich Schroeter
+ */
+@Name("usr.erichschroeter.jpreferences.UpdateKeys")
+@Label("Preference Table Reload")
+@Description("A table model reading the keys and values of its node")
+class UpdateKeysEvent extends PreferenceEvent {
+}
@@ -0,0 +1,60 @@
+package usr.erichschroeter.jpreferences.benchmark;
+
+import java.awt.Window;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import javax.swing.SwingUtilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import usr.erichschroeter.jpreferences.PreferenceDialog;
+
+/**
+ * Measures constructing and disposing a {@link PreferenceDialog}. The dialog
+ * is never shown, but constructing it requires a display.
+ * 
+ * @author Erich Schroeter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DialogBenchmark {
+
+	/** The number of levels below the root. */
+	@Param({ "3" })
+	public int depth;
+	/** The number of children of each inner node. */
+	@Param({ "10" })
+	public int fanOut;
+	/** The number of keys of each node. */
+	@Param({ "10" })
+	public int keyCount;
+
+	/** The synthetic preference tree. */
+	private Preferences prefs;
+
+	@Setup
+	public void setup() {
+		prefs = SyntheticTree.create(depth, fanOut, keyCount);
+	}
+
+	@Benchmark
+	public void construct() throws Exception {
+		SwingUtilities.invokeAndWait(new Runnable() {
+
+			@Override
+			public void run() {
+				new PreferenceDialog((Window) null, prefs).dispose();
+			}
+		});
+	}
+
+}
@@ -0,0 +1,69 @@
+package usr.erichschroeter.jpreferences.benchmark;
+
+import java.util.prefs.Preferences;
+
+import usr.erichschroeter.jpreferences.store.MemoryPreferences;
+
+/**
+ * Builds synthetic preference trees for the benchmarks.
+ * 
+ * @author Erich Schroeter
+ */
+public class SyntheticTree {
+
+	/**
+	 * Returns a new in-memory preference tree in which every node above
+	 * <code>depth</code> has <code>fanOut</code> children, and every node has
+	 * <code>keyCount</code> keys.
+	 * 
+	 * @param depth
+	 *            the number of levels below the root
+	 * @param fanOut
+	 *            the number of children of each inner node
+	 * @param keyCount
+	 *            the number of keys of each node
+	 * @return the root node
+	 */
+	public static Preferences create(int depth, int fanOut, int keyCount) {
+		Preferences root = new MemoryPreferences();
+		populate(root, depth, fanOut, keyCount);
+		return root;
+	}
+
+	/**
+	 * Adds <code>keyCount</code> keys to <code>node</code> and, unless
+	 * <code>depth</code> is zero, <code>fanOut</code> populated children.
+	 * 
+	 * @param node
+	 *            the node to populate
+	 * @param depth
+	 *            the number of levels below <code>node</code>
+	 * @param fanOut
+	 *            the number of children of each inner node
+	 * @param keyCount
+	 *            the number of keys of each node
+	 */
+	public static void populate(Preferences node, int depth, int fanOut,
+			int keyCount) {
+		for (int i = 0; i < keyCount; i++) {
+			node.put(key(i), "value" + i);
+		}
+		if (depth > 0) {
+			for (int i = 0; i < fanOut; i++) {
+				populate(node.node("node" + i), depth - 1, fanOut, keyCount);
+			}
+		}
+	}
+
+	/**
+	 * Returns the name of the <code>i</code>th key of a synthetic node.
+	 * 
+	 * @param i
+	 *            the key index
+	 * @return the key
+	 */
+	public static String key(int i) {
+		return "key" + i;
+	}
+
+}
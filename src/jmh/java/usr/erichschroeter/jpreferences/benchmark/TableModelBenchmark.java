@@ -0,0 +1,79 @@
+package usr.erichschroeter.jpreferences.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.Preferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import usr.erichschroeter.jpreferences.PreferenceTableModel;
+
+/**
+ * Measures the {@link PreferenceTableModel} operations a <code>JTable</code>
+ * and its editors perform.
+ * 
+ * @author Erich Schroeter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TableModelBenchmark {
+
+	/** The number of keys of the node displayed. */
+	@Param({ "10", "1000" })
+	public int keyCount;
+	/** Whether the model coalesces writes. */
+	@Param({ "false", "true" })
+	public boolean writeBehind;
+
+	/** The node displayed. */
+	private Preferences prefs;
+	/** The model displaying {@link #prefs}. */
+	private PreferenceTableModel model;
+	/** The row modified next. */
+	private int row;
+	/** The value written next. */
+	private int value;
+
+	@Setup
+	public void setup() {
+		prefs = SyntheticTree.create(0, 0, keyCount);
+		model = new PreferenceTableModel(prefs);
+		model.setWriteBehindEnabled(writeBehind);
+	}
+
+	@TearDown
+	public void tearDown() {
+		model.dispose();
+	}
+
+	@Benchmark
+	public void getValueAt(Blackhole hole) {
+		int rows = model.getRowCount();
+		for (int i = 0; i < rows; i++) {
+			hole.consume(model.getValueAt(i, 0));
+			hole.consume(model.getValueAt(i, 1));
+		}
+	}
+
+	@Benchmark
+	public void setValueAt() {
+		model.setValueAt("value" + value++, row, 1);
+		row = (row + 1) % model.getRowCount();
+	}
+
+	@Benchmark
+	public void addAndRemovePreference() {
+		model.addPreference("added", "value");
+		model.removePreference("added");
+	}
+
+}
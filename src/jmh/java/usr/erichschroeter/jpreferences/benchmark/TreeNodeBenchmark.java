@@ -0,0 +1,107 @@
+package usr.erichschroeter.jpreferences.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import javax.swing.tree.TreeNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import usr.erichschroeter.jpreferences.PreferenceTreeNode;
+
+/**
+ * Measures walking a {@link PreferenceTreeNode} hierarchy the way a
+ * <code>JTree</code> does when it is painted and expanded.
+ * 
+ * @author Erich Schroeter
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TreeNodeBenchmark {
+
+	/** The number of levels below the root. */
+	@Param({ "3" })
+	public int depth;
+	/** The number of children of each inner node. */
+	@Param({ "10" })
+	public int fanOut;
+	/** The number of keys of each node. */
+	@Param({ "10" })
+	public int keyCount;
+
+	/** The synthetic preference tree. */
+	private Preferences prefs;
+	/** A tree node whose children have already been cached. */
+	private PreferenceTreeNode warm;
+
+	@Setup
+	public void setup() throws BackingStoreException {
+		prefs = SyntheticTree.create(depth, fanOut, keyCount);
+		warm = new PreferenceTreeNode(prefs);
+		// cache every node before measuring
+		walk(warm, null);
+	}
+
+	@TearDown
+	public void tearDown() {
+		warm.dispose();
+	}
+
+	/**
+	 * Visits every node below <code>node</code> with
+	 * {@link TreeNode#getChildCount()} and {@link TreeNode#getChildAt(int)}.
+	 * 
+	 * @param node
+	 *            the node to walk
+	 * @param hole
+	 *            consumes the visited nodes, or <code>null</code>
+	 */
+	private static void walk(TreeNode node, Blackhole hole) {
+		int count = node.getChildCount();
+		for (int i = 0; i < count; i++) {
+			TreeNode child = node.getChildAt(i);
+			if (hole != null) {
+				hole.consume(child);
+			}
+			walk(child, hole);
+		}
+	}
+
+	@Benchmark
+	public void walkCached(Blackhole hole) {
+		walk(warm, hole);
+	}
+
+	@Benchmark
+	public void walkUncached(Blackhole hole) throws BackingStoreException {
+		PreferenceTreeNode node = new PreferenceTreeNode(prefs);
+		try {
+			walk(node, hole);
+		} finally {
+			// stop the walked nodes listening, or they accumulate
+			node.dispose();
+		}
+	}
+
+	@Benchmark
+	public int childCount() {
+		return warm.getChildCount();
+	}
+
+	@Benchmark
+	public TreeNode childAt() {
+		return warm.getChildAt(fanOut / 2);
+	}
+
+}
@@ -0,0 +1,568 @@
+package usr.erichschroeter.jpreferences;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.prefs.Preferences;
+
+import javax.swing.JTree;
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreeNode;
+import javax.swing.tree.TreePath;
+
+/**
+ * A <code>FilteredTreeModel</code> wraps the {@link DefaultTreeModel} of a
+ * preference {@link JTree} and optionally hides the nodes rejected by a
+ * {@link PreferenceFilter}. When no filter is set the wrapped model is passed
+ * through unchanged.
+ * <p>
+ * The visible children of a node are computed only when the tree asks for
+ * them. Changing the filter compares the children the tree has already seen
+ * with the newly visible ones and fires inserted and removed events for the
+ * difference, so the tree keeps its expansion state instead of being rebuilt.
+ * <p>
+ * The children of a {@link PreferenceTreeNode} are tracked by name, so a node
+ * only has to be created when it is actually displayed.
+ * <p>
+ * The filter is asked on the event dispatch thread, so the model uses the
+ * visible children the filter already knows where it can, and otherwise asks
+ * it by name only about children which have been loaded. Filters which have
+ * to read whole branches do so beforehand in
+ * {@link PreferenceFilter#prepare(Preferences...)}. The known visible
+ * children are checked against the loaded children names, so children
+ * removed since the filter was prepared are hidden without accessing the
+ * backing store.
+ * 
+ * @author Erich Schroeter
+ */
+public class FilteredTreeModel implements TreeModel {
+
+	/** The wrapped tree model. */
+	private DefaultTreeModel model;
+	/** The listeners of this model. */
+	private EventListenerList listenerList;
+	/** The filter, or <code>null</code> if not filtering. */
+	private PreferenceFilter filter;
+	/**
+	 * The visible children of each node already asked for while filtering.
+	 * Children of a <code>PreferenceTreeNode</code> are identified by name,
+	 * other children by the child itself.
+	 */
+	private Map<Object, List<Object>> visibleChildren;
+	/** The nodes whose children the tree has asked for. */
+	private Set<Object> realized;
+
+	/**
+	 * Constructs a <code>FilteredTreeModel</code> wrapping the specified
+	 * <code>model</code>.
+	 * 
+	 * @param model
+	 *            the tree model to wrap
+	 */
+	public FilteredTreeModel(DefaultTreeModel model) {
+		this.model = model;
+		this.listenerList = new EventListenerList();
+		this.visibleChildren = new WeakHashMap<Object, List<Object>>();
+		this.realized = Collections
+				.newSetFromMap(new WeakHashMap<Object, Boolean>());
+		model.addTreeModelListener(new TreeModelListener() {
+
+			@Override
+			public void treeNodesChanged(TreeModelEvent e) {
+				if (isFiltering()) {
+					update(e.getTreePath(), true);
+				} else {
+					fireTreeNodesChanged(retarget(e));
+				}
+			}
+
+			@Override
+			public void treeNodesInserted(TreeModelEvent e) {
+				if (isFiltering()) {
+					update(e.getTreePath(), false);
+				} else {
+					fireTreeNodesInserted(retarget(e));
+				}
+			}
+
+			@Override
+			public void treeNodesRemoved(TreeModelEvent e) {
+				if (isFiltering()) {
+					update(e.getTreePath(), false);
+				} else {
+					fireTreeNodesRemoved(retarget(e));
+				}
+			}
+
+			@Override
+			public void treeStructureChanged(TreeModelEvent e) {
+				forget(e.getTreePath().getLastPathComponent());
+				fireTreeStructureChanged(retarget(e));
+			}
+		});
+	}
+
+	/**
+	 * Returns the wrapped tree model.
+	 * 
+	 * @return the wrapped model
+	 */
+	public DefaultTreeModel getModel() {
+		return model;
+	}
+
+	/**
+	 * Returns whether the model is currently filtering nodes.
+	 * 
+	 * @return <code>true</code> if filtering, else <code>false</code>
+	 */
+	public boolean isFiltering() {
+		return filter != null;
+	}
+
+	/**
+	 * Returns the filter, or <code>null</code> if not filtering.
+	 * 
+	 * @return the filter
+	 */
+	public PreferenceFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Sets the filter deciding which nodes are visible. Passing
+	 * <code>null</code> shows all nodes. Only the nodes whose children the tree
+	 * has already displayed are compared, and the differences fired as
+	 * inserted and removed <code>TreeModelEvent</code>s.
+	 * 
+	 * @param filter
+	 *            the filter, or <code>null</code> to show all nodes
+	 */
+	public void setFilter(PreferenceFilter filter) {
+		// remember what the tree has seen before switching filters
+		Map<Object, List<Object>> previous = new HashMap<Object, List<Object>>();
+		for (Object parent : realized) {
+			previous.put(parent, getVisibleChildren(parent));
+		}
+		this.filter = filter;
+		visibleChildren.clear();
+		Object root = getRoot();
+		if (previous.containsKey(root)) {
+			refilter(new TreePath(root), previous);
+		}
+	}
+
+	/**
+	 * Removes the filter, showing all nodes.
+	 * <p>
+	 * This is equivalent to <code>setFilter(null)</code>.
+	 */
+	public void clearFilter() {
+		setFilter(null);
+	}
+
+	/**
+	 * Fires the events turning the previously visible children of the last
+	 * node in <code>path</code> into the currently visible children, then does
+	 * the same for each child which remained visible.
+	 * 
+	 * @param path
+	 *            the path to the parent node
+	 * @param previous
+	 *            the previously visible children of each realized node
+	 */
+	private void refilter(TreePath path, Map<Object, List<Object>> previous) {
+		Object parent = path.getLastPathComponent();
+		List<Object> before = previous.get(parent);
+		List<Object> after = getVisibleChildren(parent);
+		if (!fireDifference(path, before, after)) {
+			return; // the whole structure changed
+		}
+		Set<Object> kept = new HashSet<Object>(before);
+		for (Object handle : after) {
+			if (kept.contains(handle)) {
+				Object child = resolve(parent, handle);
+				if (previous.containsKey(child)) {
+					refilter(path.pathByAddingChild(child), previous);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Re-evaluates the visible children of the last node in <code>path</code>
+	 * after the wrapped model changed, firing the difference.
+	 * 
+	 * @param path
+	 *            the path to the node whose children changed
+	 * @param changed
+	 *            <code>true</code> to also fire a changed event for the
+	 *            children which remained visible
+	 */
+	private void update(TreePath path, boolean changed) {
+		Object parent = path.getLastPathComponent();
+		List<Object> before = visibleChildren.remove(parent);
+		if (before == null) {
+			return; // the tree has not asked for these children
+		}
+		List<Object> after = getVisibleChildren(parent);
+		if (fireDifference(path, before, after) && changed && !after.isEmpty()) {
+			int[] indices = new int[after.size()];
+			Object[] children = new Object[after.size()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = i;
+				children[i] = resolve(parent, after.get(i));
+			}
+			fireTreeNodesChanged(new TreeModelEvent(this, path, indices,
+					children));
+		}
+	}
+
+	/**
+	 * Fires removed and inserted events for the difference between
+	 * <code>before</code> and <code>after</code>. If the children which remain
+	 * are not in the same order a structure changed event is fired instead.
+	 * 
+	 * @param path
+	 *            the path to the parent node
+	 * @param before
+	 *            the previously visible children
+	 * @param after
+	 *            the currently visible children
+	 * @return <code>true</code> if the difference was fired as inserted and
+	 *         removed events, <code>false</code> if the structure changed
+	 */
+	private boolean fireDifference(TreePath path, List<Object> before,
+			List<Object> after) {
+		Set<Object> beforeSet = new HashSet<Object>(before);
+		Set<Object> afterSet = new HashSet<Object>(after);
+		List<Object> keptBefore = new ArrayList<Object>();
+		List<Object> keptAfter = new ArrayList<Object>();
+		for (Object handle : before) {
+			if (afterSet.contains(handle)) {
+				keptBefore.add(handle);
+			}
+		}
+		for (Object handle : after) {
+			if (beforeSet.contains(handle)) {
+				keptAfter.add(handle);
+			}
+		}
+		Object parent = path.getLastPathComponent();
+		if (!keptBefore.equals(keptAfter)) {
+			forget(parent);
+			fireTreeStructureChanged(new TreeModelEvent(this, path));
+			return false;
+		}
+		List<Integer> removed = new ArrayList<Integer>();
+		for (int i = 0; i < before.size(); i++) {
+			if (!afterSet.contains(before.get(i))) {
+				removed.add(i);
+			}
+		}
+		if (!removed.isEmpty()) {
+			fireTreeNodesRemoved(createEvent(path, before, removed));
+		}
+		List<Integer> inserted = new ArrayList<Integer>();
+		for (int i = 0; i < after.size(); i++) {
+			if (!beforeSet.contains(after.get(i))) {
+				inserted.add(i);
+			}
+		}
+		if (!inserted.isEmpty()) {
+			fireTreeNodesInserted(createEvent(path, after, inserted));
+		}
+		return true;
+	}
+
+	/**
+	 * Creates an event for the children at <code>indices</code> of
+	 * <code>handles</code>.
+	 * 
+	 * @param path
+	 *            the path to the parent node
+	 * @param handles
+	 *            the children of the parent node
+	 * @param indices
+	 *            the indices of the affected children
+	 * @return the event
+	 */
+	private TreeModelEvent createEvent(TreePath path, List<Object> handles,
+			List<Integer> indices) {
+		Object parent = path.getLastPathComponent();
+		int[] childIndices = new int[indices.size()];
+		Object[] children = new Object[indices.size()];
+		for (int i = 0; i < childIndices.length; i++) {
+			childIndices[i] = indices.get(i);
+			children[i] = resolve(parent, handles.get(childIndices[i]));
+		}
+		return new TreeModelEvent(this, path, childIndices, children);
+	}
+
+	/**
+	 * Forgets the visible children of <code>node</code> and its descendants.
+	 * 
+	 * @param node
+	 *            the node whose structure changed
+	 */
+	private void forget(Object node) {
+		for (Iterator<Object> it = realized.iterator(); it.hasNext();) {
+			Object n = it.next();
+			if (isDescendant(n, node)) {
+				it.remove();
+				visibleChildren.remove(n);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether <code>node</code> is <code>ancestor</code> or one of its
+	 * descendants.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param ancestor
+	 *            the possible ancestor
+	 * @return <code>true</code> if a descendant, else <code>false</code>
+	 */
+	private static boolean isDescendant(Object node, Object ancestor) {
+		Object n = node;
+		while (n != null) {
+			if (n == ancestor) {
+				return true;
+			}
+			n = (n instanceof TreeNode) ? ((TreeNode) n).getParent() : null;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the visible children of <code>parent</code>, identified by name
+	 * for <code>PreferenceTreeNode</code> parents. When not filtering these
+	 * are all of the children.
+	 * 
+	 * @param parent
+	 *            a node in the tree
+	 * @return the visible children
+	 */
+	protected List<Object> getVisibleChildren(Object parent) {
+		List<Object> handles = visibleChildren.get(parent);
+		if (handles != null) {
+			return handles;
+		}
+		handles = new ArrayList<Object>();
+		if (parent instanceof PreferenceTreeNode) {
+			PreferenceTreeNode node = (PreferenceTreeNode) parent;
+			Preferences pref = node.getPrefObject();
+			String[] names = (filter == null) ? null : filter
+					.getVisibleChildren(pref);
+			String[] loaded = node.getChildrenNames();
+			if (names != null && loaded != null) {
+				Set<String> existing = new HashSet<String>(Arrays
+						.asList(loaded));
+				for (String name : names) {
+					if (existing.contains(name)) {
+						handles.add(name);
+					}
+				}
+			} else if (names != null) {
+				handles.addAll(Arrays.asList(names));
+			} else if (loaded == null) {
+				// keep the placeholder so the children can still be loaded
+				handles.add(node.getLoadingNode());
+			} else {
+				for (String name : loaded) {
+					if (filter == null || filter.acceptChild(pref, name)) {
+						handles.add(name);
+					}
+				}
+			}
+		} else {
+			int count = model.getChildCount(parent);
+			for (int i = 0; i < count; i++) {
+				Object child = model.getChild(parent, i);
+				if (filter == null || filter.isVisible(child)) {
+					handles.add(child);
+				}
+			}
+		}
+		handles = Collections.unmodifiableList(handles);
+		if (filter != null) {
+			visibleChildren.put(parent, handles);
+		}
+		return handles;
+	}
+
+	/**
+	 * Returns the child of <code>parent</code> identified by
+	 * <code>handle</code>.
+	 * 
+	 * @param parent
+	 *            the parent node
+	 * @param handle
+	 *            the child name or the child itself
+	 * @return the child node
+	 */
+	private Object resolve(Object parent, Object handle) {
+		if (handle instanceof String && parent instanceof PreferenceTreeNode) {
+			return ((PreferenceTreeNode) parent).getChild((String) handle);
+		}
+		return handle;
+	}
+
+	/**
+	 * Returns the handle identifying <code>child</code> among the children of
+	 * <code>parent</code>.
+	 * 
+	 * @param parent
+	 *            the parent node
+	 * @param child
+	 *            the child node
+	 * @return the child name or the child itself
+	 */
+	private Object handleOf(Object parent, Object child) {
+		if (parent instanceof PreferenceTreeNode
+				&& child instanceof PreferenceTreeNode) {
+			return ((PreferenceTreeNode) child).getPrefObject().name();
+		}
+		return child;
+	}
+
+	/**
+	 * Returns a copy of <code>e</code> with this model as its source.
+	 * 
+	 * @param e
+	 *            the event from the wrapped model
+	 * @return the event to fire from this model
+	 */
+	private TreeModelEvent retarget(TreeModelEvent e) {
+		return new TreeModelEvent(this, e.getTreePath(), e.getChildIndices(),
+				e.getChildren());
+	}
+
+	@Override
+	public Object getRoot() {
+		return model.getRoot();
+	}
+
+	@Override
+	public Object getChild(Object parent, int index) {
+		if (!isFiltering()) {
+			return model.getChild(parent, index);
+		}
+		List<Object> handles = getVisibleChildren(parent);
+		if (index < 0 || index >= handles.size()) {
+			return null;
+		}
+		return resolve(parent, handles.get(index));
+	}
+
+	@Override
+	public int getChildCount(Object parent) {
+		realized.add(parent);
+		if (!isFiltering()) {
+			return model.getChildCount(parent);
+		}
+		return getVisibleChildren(parent).size();
+	}
+
+	@Override
+	public boolean isLeaf(Object node) {
+		if (isFiltering() && node instanceof PreferenceTreeNode) {
+			String[] names = filter
+					.getVisibleChildren(((PreferenceTreeNode) node)
+							.getPrefObject());
+			if (names != null) {
+				return names.length == 0;
+			}
+		}
+		return model.isLeaf(node);
+	}
+
+	@Override
+	public void valueForPathChanged(TreePath path, Object newValue) {
+		model.valueForPathChanged(path, newValue);
+	}
+
+	@Override
+	public int getIndexOfChild(Object parent, Object child) {
+		if (!isFiltering()) {
+			return model.getIndexOfChild(parent, child);
+		}
+		return getVisibleChildren(parent).indexOf(handleOf(parent, child));
+	}
+
+	@Override
+	public void addTreeModelListener(TreeModelListener l) {
+		listenerList.add(TreeModelListener.class, l);
+	}
+
+	@Override
+	public void removeTreeModelListener(TreeModelListener l) {
+		listenerList.remove(TreeModelListener.class, l);
+	}
+
+	/**
+	 * Notifies the listeners that nodes changed.
+	 * 
+	 * @param e
+	 *            the event
+	 */
+	protected void fireTreeNodesChanged(TreeModelEvent e) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class)) {
+			l.treeNodesChanged(e);
+		}
+	}
+
+	/**
+	 * Notifies the listeners that nodes were inserted.
+	 * 
+	 * @param e
+	 *            the event
+	 */
+	protected void fireTreeNodesInserted(TreeModelEvent e) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class)) {
+			l.treeNodesInserted(e);
+		}
+	}
+
+	/**
+	 * Notifies the listeners that nodes were removed.
+	 * 
+	 * @param e
+	 *            the event
+	 */
+	protected void fireTreeNodesRemoved(TreeModelEvent e) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class)) {
+			l.treeNodesRemoved(e);
+		}
+	}
+
+	/**
+	 * Notifies the listeners that the structure below a node changed.
+	 * 
+	 * @param e
+	 *            the event
+	 */
+	protected void fireTreeStructureChanged(TreeModelEvent e) {
+		for (TreeModelListener l : listenerList
+				.getListeners(TreeModelListener.class)) {
+			l.treeStructureChanged(e);
+		}
+	}
+
+}
@@ -0,0 +1,190 @@
+package usr.erichschroeter.jpreferences;
+
+import java.awt.CardLayout;
+import java.awt.Component;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+
+import usr.erichschroeter.jpreferences.page.CustomPage;
+
+/**
+ * A <code>PageContainer</code> displays one {@link CustomPage} at a time. The
+ * pages shown recently stay added to the container in a {@link CardLayout}, so
+ * showing one of them again only flips the visible card rather than replacing
+ * and laying out the component hierarchy.
+ * <p>
+ * The number of pages kept is bounded. When the bound is exceeded the least
+ * recently shown page is removed from the container, and added again when it
+ * is next shown.
+ * 
+ * @author Erich Schroeter
+ */
+@SuppressWarnings("serial")
+public class PageContainer extends JPanel {
+
+	/** The default maximum number of pages kept in the container. */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	/** The maximum number of pages kept in the container. */
+	private int capacity;
+	/** The layout flipping between the pages. */
+	private CardLayout layout;
+	/** The cards of the pages kept, in least recently shown order. */
+	private Map<CustomPage<?>, Card> cards;
+	/** The page currently shown, if any. */
+	private CustomPage<?> current;
+	/** The number of cards created, used to name them. */
+	private int created;
+
+	/** The component added for a page and the name it was added with. */
+	private static class Card {
+
+		/** The component added to the container. */
+		private Component component;
+		/** The name identifying the card in the layout. */
+		private String name;
+		/** Whether the page component is wrapped in a scroll pane. */
+		private boolean wrapped;
+
+	}
+
+	/**
+	 * Constructs a <code>PageContainer</code> with the default capacity.
+	 * <p>
+	 * This is equivalent to <code>PageContainer(DEFAULT_CAPACITY)</code>.
+	 */
+	public PageContainer() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a <code>PageContainer</code> specifying the maximum number of
+	 * pages to keep.
+	 * 
+	 * @param capacity
+	 *            the maximum number of pages to keep
+	 */
+	public PageContainer(int capacity) {
+		this.capacity = capacity;
+		this.layout = new CardLayout();
+		this.cards = new LinkedHashMap<CustomPage<?>, Card>(16, 0.75f, true);
+		setLayout(layout);
+	}
+
+	/**
+	 * Shows <code>page</code>, adding it to the container if it is not kept.
+	 * The page is initialized first if its initialization was deferred.
+	 * <p>
+	 * If <code>wrap</code> is <code>true</code> the page component is wrapped
+	 * in a <code>JScrollPane</code>, unless it is a <code>JScrollPane</code>
+	 * already.
+	 * 
+	 * @param page
+	 *            the page to show
+	 * @param wrap
+	 *            whether to wrap the page component in a scroll pane
+	 */
+	public void show(CustomPage<?> page, boolean wrap) {
+		Card card = cards.get(page);
+		if (card != null && (card.wrapped != wrap
+				|| card.component.getParent() != this)) {
+			// the page was added differently, or its component taken away
+			removePage(page);
+			card = null;
+		}
+		if (card == null) {
+			page.initialize();
+			card = new Card();
+			Component component = page.getPage();
+			card.wrapped = wrap;
+			if (wrap && !(component instanceof JScrollPane)) {
+				component = new JScrollPane(component);
+			}
+			card.component = component;
+			card.name = "page" + created++;
+			cards.put(page, card);
+			add(card.component, card.name);
+		}
+		current = page;
+		layout.show(this, card.name);
+		evict();
+	}
+
+	/**
+	 * Removes <code>page</code> from the container, if it is kept.
+	 * 
+	 * @param page
+	 *            the page to remove
+	 */
+	public void removePage(CustomPage<?> page) {
+		Card card = cards.remove(page);
+		if (card != null) {
+			remove(card.component);
+			if (page == current) {
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the page currently shown.
+	 * 
+	 * @return the current page, or <code>null</code> if none
+	 */
+	public CustomPage<?> getCurrentPage() {
+		return current;
+	}
+
+	/**
+	 * Returns whether <code>page</code> is kept in the container.
+	 * 
+	 * @param page
+	 *            the page
+	 * @return <code>true</code> if kept, else <code>false</code>
+	 */
+	public boolean containsPage(CustomPage<?> page) {
+		return cards.containsKey(page);
+	}
+
+	/**
+	 * Returns the maximum number of pages kept in the container.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum number of pages kept in the container, removing pages
+	 * if necessary.
+	 * 
+	 * @param capacity
+	 *            the capacity
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = capacity;
+		evict();
+	}
+
+	/**
+	 * Removes the least recently shown pages until the container is within
+	 * its capacity. The current page is never removed.
+	 */
+	private void evict() {
+		Iterator<Map.Entry<CustomPage<?>, Card>> it = cards.entrySet()
+				.iterator();
+		while (cards.size() > capacity && it.hasNext()) {
+			Map.Entry<CustomPage<?>, Card> eldest = it.next();
+			if (eldest.getKey() != current) {
+				it.remove();
+				remove(eldest.getValue().component);
+			}
+		}
+	}
+
+}
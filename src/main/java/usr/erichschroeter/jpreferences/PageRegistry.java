@@ -0,0 +1,289 @@
+package usr.erichschroeter.jpreferences;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.tree.MutableTreeNode;
+
+import usr.erichschroeter.jpreferences.page.CustomPage;
+import usr.erichschroeter.jpreferences.utils.IdentityKeys;
+import usr.erichschroeter.jpreferences.utils.IdentityKeys.Key;
+
+/**
+ * A <code>PageRegistry</code> associates {@link CustomPage}s with the tree
+ * nodes representing them, and finds either from the other in constant time.
+ * Both directions are updated together, so removing a page by either its page
+ * or its node removes it completely.
+ * <p>
+ * The {@link Retention} determines whether the registry keeps its pages and
+ * nodes reachable. With weak or soft retention a page, and its whole component
+ * tree, can be garbage collected once nothing else references it, even if it
+ * was never unregistered, and the registry forgets it.
+ * 
+ * @author Erich Schroeter
+ */
+public class PageRegistry {
+
+	/** How the registry references its pages and nodes. */
+	public enum Retention {
+		/** Pages are kept until unregistered. */
+		STRONG,
+		/** Pages are kept only while referenced elsewhere. */
+		WEAK,
+		/** Pages are kept until unregistered or memory runs low. */
+		SOFT
+	}
+
+	/** How the registry references its pages and nodes. */
+	private Retention retention;
+	/** The entries keyed by page. */
+	private Map<Key<Object, Entry>, Entry> byPage;
+	/** The entries keyed by node. */
+	private Map<Key<Object, Entry>, Entry> byNode;
+	/** The queue of references cleared by the garbage collector. */
+	private ReferenceQueue<Object> collected;
+	/** The number of pages registered. */
+	private long registrations;
+	/** The number of pages unregistered. */
+	private long removals;
+	/** The number of pages forgotten after being garbage collected. */
+	private long collections;
+
+	/**
+	 * Constructs a <code>PageRegistry</code> which keeps its pages until they
+	 * are unregistered.
+	 * <p>
+	 * This is equivalent to <code>PageRegistry(Retention.STRONG)</code>.
+	 */
+	public PageRegistry() {
+		this(Retention.STRONG);
+	}
+
+	/**
+	 * Constructs a <code>PageRegistry</code> specifying how it references its
+	 * pages and nodes.
+	 * 
+	 * @param retention
+	 *            the retention of pages and nodes
+	 */
+	public PageRegistry(Retention retention) {
+		this.retention = retention;
+		this.byPage = new HashMap<Key<Object, Entry>, Entry>();
+		this.byNode = new HashMap<Key<Object, Entry>, Entry>();
+		this.collected = new ReferenceQueue<Object>();
+	}
+
+	/**
+	 * Returns how the registry references its pages and nodes.
+	 * 
+	 * @return the retention
+	 */
+	public Retention getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Associates <code>page</code> with <code>node</code>, replacing any
+	 * association either had.
+	 * 
+	 * @param page
+	 *            the page
+	 * @param node
+	 *            the tree node representing <code>page</code>
+	 */
+	public synchronized void register(CustomPage<?> page, MutableTreeNode node) {
+		purge();
+		remove(byPage.get(IdentityKeys.<Object, Entry> strong(page, null)));
+		remove(byNode.get(IdentityKeys.<Object, Entry> strong(node, null)));
+		Entry entry = new Entry();
+		entry.page = createKey(page, entry);
+		entry.node = createKey(node, entry);
+		byPage.put(entry.page, entry);
+		byNode.put(entry.node, entry);
+		registrations++;
+	}
+
+	/**
+	 * Removes the association of <code>page</code>.
+	 * 
+	 * @param page
+	 *            the page
+	 * @return the node <code>page</code> was associated with, or
+	 *         <code>null</code> if it was not registered
+	 */
+	public synchronized MutableTreeNode unregister(CustomPage<?> page) {
+		purge();
+		Entry entry = byPage.get(IdentityKeys.<Object, Entry> strong(page, null));
+		if (entry == null) {
+			return null;
+		}
+		remove(entry);
+		removals++;
+		return (MutableTreeNode) entry.node.get();
+	}
+
+	/**
+	 * Removes the association of <code>node</code>.
+	 * 
+	 * @param node
+	 *            the tree node
+	 * @return the page <code>node</code> was associated with, or
+	 *         <code>null</code> if it was not registered
+	 */
+	public synchronized CustomPage<?> unregisterNode(MutableTreeNode node) {
+		purge();
+		Entry entry = byNode.get(IdentityKeys.<Object, Entry> strong(node, null));
+		if (entry == null) {
+			return null;
+		}
+		remove(entry);
+		removals++;
+		return (CustomPage<?>) entry.page.get();
+	}
+
+	/**
+	 * Returns the node associated with <code>page</code>.
+	 * 
+	 * @param page
+	 *            the page
+	 * @return the node, or <code>null</code> if not registered
+	 */
+	public synchronized MutableTreeNode getNode(CustomPage<?> page) {
+		purge();
+		Entry entry = byPage.get(IdentityKeys.<Object, Entry> strong(page, null));
+		return (entry == null) ? null : (MutableTreeNode) entry.node.get();
+	}
+
+	/**
+	 * Returns the page associated with <code>node</code>.
+	 * 
+	 * @param node
+	 *            the tree node
+	 * @return the page, or <code>null</code> if not registered
+	 */
+	public synchronized CustomPage<?> getPage(MutableTreeNode node) {
+		purge();
+		Entry entry = byNode.get(IdentityKeys.<Object, Entry> strong(node, null));
+		return (entry == null) ? null : (CustomPage<?>) entry.page.get();
+	}
+
+	/**
+	 * Returns the registered pages.
+	 * 
+	 * @return the pages
+	 */
+	public synchronized List<CustomPage<?>> getPages() {
+		purge();
+		List<CustomPage<?>> pages = new ArrayList<CustomPage<?>>(byPage.size());
+		for (Key<Object, Entry> key : byPage.keySet()) {
+			CustomPage<?> page = (CustomPage<?>) key.get();
+			if (page != null) {
+				pages.add(page);
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * Returns the number of registered pages.
+	 * 
+	 * @return the number of pages
+	 */
+	public synchronized int size() {
+		purge();
+		return byPage.size();
+	}
+
+	/**
+	 * Returns the number of pages registered since the registry was created.
+	 * 
+	 * @return the number of registrations
+	 */
+	public synchronized long getRegistrations() {
+		return registrations;
+	}
+
+	/**
+	 * Returns the number of pages unregistered since the registry was created.
+	 * 
+	 * @return the number of removals
+	 */
+	public synchronized long getRemovals() {
+		return removals;
+	}
+
+	/**
+	 * Returns the number of pages forgotten after being garbage collected
+	 * without being unregistered. This is always zero with strong retention.
+	 * 
+	 * @return the number of collections
+	 */
+	public synchronized long getCollections() {
+		purge();
+		return collections;
+	}
+
+	/**
+	 * Removes <code>entry</code> from both directions.
+	 * 
+	 * @param entry
+	 *            the entry to remove, or <code>null</code>
+	 */
+	private void remove(Entry entry) {
+		if (entry != null) {
+			byPage.remove(entry.page);
+			byNode.remove(entry.node);
+		}
+	}
+
+	/**
+	 * Forgets the entries whose page or node has been garbage collected.
+	 */
+	private void purge() {
+		Reference<?> ref;
+		while ((ref = collected.poll()) != null) {
+			@SuppressWarnings("unchecked")
+			Entry entry = ((Key<Object, Entry>) ref).getEntry();
+			if (byPage.get(entry.page) == entry) {
+				remove(entry);
+				collections++;
+			}
+		}
+	}
+
+	/**
+	 * Returns a key referencing <code>referent</code> according to the
+	 * retention.
+	 * 
+	 * @param referent
+	 *            the page or node
+	 * @param entry
+	 *            the entry the key belongs to
+	 * @return the key
+	 */
+	private Key<Object, Entry> createKey(Object referent, Entry entry) {
+		switch (retention) {
+		case WEAK:
+			return IdentityKeys.weak(referent, entry, collected);
+		case SOFT:
+			return IdentityKeys.soft(referent, entry, collected);
+		default:
+			return IdentityKeys.strong(referent, entry);
+		}
+	}
+
+	/** A page and its node. */
+	private static class Entry {
+
+		/** The key referencing the page. */
+		private Key<Object, Entry> page;
+		/** The key referencing the node. */
+		private Key<Object, Entry> node;
+
+	}
+
+}
@@ -3,13 +3,27 @@ package usr.erichschroeter.jpreferences;
 import java.awt.BorderLayout;
 import java.awt.Dialog;
 import java.awt.Dimension;
+import java.awt.EventQueue;
 import java.awt.FlowLayout;
+import java.awt.Toolkit;
 import java.awt.Window;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
@@ -18,22 +32,41 @@ import javax.swing.AbstractAction;
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.JDialog;
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextField;
 import javax.swing.JTree;
 import javax.swing.KeyStroke;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
 import javax.swing.event.TreeSelectionEvent;
 import javax.swing.event.TreeSelectionListener;
 import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
 
+import usr.erichschroeter.jpreferences.io.PreferenceExporter;
+import usr.erichschroeter.jpreferences.io.PreferenceFormat;
+import usr.erichschroeter.jpreferences.io.PreferenceImporter;
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics;
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics.Operation;
+import usr.erichschroeter.jpreferences.metrics.PreferenceTracer.Trace;
 import usr.erichschroeter.jpreferences.page.CustomPage;
 import usr.erichschroeter.jpreferences.page.Page;
 import usr.erichschroeter.jpreferences.page.PreferencePage;
+import usr.erichschroeter.jpreferences.type.PreferenceTypeRegistry;
 
 /**
  * A <code>PreferenceDialog</code> provides a graphical interface for users to
@@ -53,20 +86,66 @@ public class PreferenceDialog extends JDialog {
 	/**
 	 * A reference to the page that displays a table of {@link Preferences}.
 	 * This is kept as a single reference, as opposed to being added to
-	 * {@link #customNodeMap}, for performance.
+	 * {@link #pageRegistry}, for performance.
 	 */
 	private PreferencePage preferencePage;
 	/** The root preference nodes to be displayed in the {@link #tree}. */
 	private Preferences[] preferences;
-	/** The list of custom preference pages. */
-	private Map<MutableTreeNode, CustomPage<?>> customNodeMap;
-	/** A mapping of the custom pages to their respective node. */
-	private Map<CustomPage<?>, MutableTreeNode> customPageMap;
+	/** The custom preference pages and their respective nodes. */
+	private PageRegistry pageRegistry;
 	/**
 	 * The left is the {@link #tree}, right is the {@link #page} or
 	 * {@link #preferencePage}.
 	 */
 	private JSplitPane splitPane;
+	/** The right component of the {@link #splitPane}, showing the page. */
+	private PageContainer pageContainer;
+	/** The page displayed when no page is selected. */
+	private CustomPage<?> blankPage;
+	/** Loads the children of lazy preference nodes in the background. */
+	private PreferenceTreeLoader treeLoader;
+	/** The table models of recently displayed preference nodes. */
+	private PreferenceTableModelCache modelCache;
+	/** The panel containing the {@link #tree} and {@link #searchField}. */
+	private JPanel treePanel;
+	/** The field the user types search queries in. */
+	private JTextField searchField;
+	/** The index searched by the {@link #searchField}. */
+	private PreferenceSearchIndex searchIndex;
+	/** Delays searching until the user pauses typing. */
+	private Timer searchTimer;
+	/** The search currently running, if any. */
+	private SwingWorker<PreferenceFilter, Void> pendingSearch;
+	/** The filter matching the last search, if any. */
+	private PreferenceFilter searchFilter;
+	/** The filter set by {@link #setTreeFilter(PreferenceFilter)}, if any. */
+	private PreferenceFilter treeFilter;
+	/** Prepares the {@link #treeFilter} again when the nodes change. */
+	private ChangeListener treeFilterListener;
+	/** The preparation of the {@link #treeFilter} running, if any. */
+	private SwingWorker<Void, Void> pendingFilter;
+	/**
+	 * Builds the table models of preference nodes in the background, created
+	 * when first used.
+	 */
+	private ExecutorService pageLoader;
+	/**
+	 * Reads and writes files in the background, created when first used, so
+	 * a long export or import does not delay the table models.
+	 */
+	private ExecutorService fileWorker;
+	/** The table model currently being built, if any. */
+	private SwingWorker<PreferenceTableModel, Void> pendingPage;
+	/** Whether the dialog has been disposed and not displayed since. */
+	private boolean disposed;
+	/** Initializes deferred custom pages while the dialog is idle. */
+	private Timer prewarmTimer;
+	/** The panel of buttons at the bottom of the dialog. */
+	private JPanel buttonPanel;
+	/** The button importing preferences from a file, if shown. */
+	private JButton importButton;
+	/** The button exporting preferences to a file, if shown. */
+	private JButton exportButton;
 
 	/** Whether the search feature is enabled or disabled. */
 	private boolean searchEnabled;
@@ -76,6 +155,14 @@ public class PreferenceDialog extends JDialog {
 	private boolean escapeToCloseEnabled;
 	/** Whether the page will be wrapped in a <code>JScrollPane</code>. */
 	private boolean wrapPageInScrollPaneEnabled;
+	/** Whether preference nodes load their children when first expanded. */
+	private boolean lazyLoadingEnabled;
+	/** Whether edits are coalesced before being synchronized. */
+	private boolean writeBehindEnabled;
+	/** Whether deferred custom pages are initialized while idle. */
+	private boolean prewarmPagesEnabled;
+	/** Whether preferences can be imported and exported from the dialog. */
+	private boolean importExportEnabled;
 
 	/** The action that handles closing the dialog. */
 	private AbstractAction closeAction = new AbstractAction() {
@@ -101,7 +188,15 @@ public class PreferenceDialog extends JDialog {
 
 	}
 
-	// TODO implement search for preferences and values
+	/** The delay in milliseconds after typing before searching. */
+	public static final int SEARCH_DELAY = 250;
+	/** The interval in milliseconds between initializing deferred pages. */
+	public static final int PREWARM_INTERVAL = 100;
+	/**
+	 * The delay in milliseconds after a node is collapsed before its cached
+	 * children are released.
+	 */
+	public static final int RELEASE_DELAY = 60000;
 
 	/**
 	 * Creates a <code>PreferenceDialog</code> calling
@@ -150,26 +245,26 @@ public class PreferenceDialog extends JDialog {
 		setTitle("Preferences Dialog");
 		setMinimumSize(new Dimension(400, 400));
 
-		customNodeMap = new HashMap<MutableTreeNode, CustomPage<?>>();
-		customPageMap = new HashMap<CustomPage<?>, MutableTreeNode>();
+		// the tree nodes keep the pages, so removed pages can be collected
+		pageRegistry = new PageRegistry(PageRegistry.Retention.WEAK);
 		preferencePage = new PreferencePage(preferences[0]);
+		modelCache = new PreferenceTableModelCache();
 
 		setEscapeToCloseEnabled(true);
 		setSearchEnabled(false);
 		setCustomPagesEnabled(false);
 		setWrapPageInScrollPaneEnabled(true);
+		setLazyLoadingEnabled(true);
 
 		// a default page
-		page = new BlankPage();
+		blankPage = new BlankPage();
+		page = blankPage;
+		pageContainer = new PageContainer();
 
 		//
 		// TreePanel -- panel containing the tree hierarchy
 		//
-		JPanel treePanel = new JPanel(new BorderLayout());
-		if (isSearchEnabled()) {
-			JTextField searchField = new JTextField("Search...");
-			treePanel.add(searchField, BorderLayout.NORTH);
-		}
+		treePanel = new JPanel(new BorderLayout());
 		DefaultTreeCellRenderer renderer = new DefaultTreeCellRenderer();
 		renderer.setOpenIcon(null);
 		renderer.setLeafIcon(null);
@@ -180,16 +275,18 @@ public class PreferenceDialog extends JDialog {
 		treePanel.add(new JScrollPane(tree), BorderLayout.CENTER);
 
 		// Buttons
-		JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+		buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
 		JButton closeButton = new JButton("Close");
 		closeButton.addActionListener(closeAction);
 		buttonPanel.add(closeButton);
+		setImportExportEnabled(importExportEnabled);
 
 		splitPane = new JSplitPane();
 		splitPane.setOrientation(JSplitPane.HORIZONTAL_SPLIT);
 		splitPane.setResizeWeight(0.3); // tree doesn't need more than 30%
 		splitPane.setLeftComponent(treePanel);
-		splitPane.setRightComponent(new JScrollPane(page.getPage()));
+		splitPane.setRightComponent(pageContainer);
+		setPage(page);
 		add(splitPane, BorderLayout.CENTER);
 		add(buttonPanel, BorderLayout.SOUTH);
 
@@ -213,6 +310,9 @@ public class PreferenceDialog extends JDialog {
 	/**
 	 * Enables or disables the search feature. This feature displays a search
 	 * box and filters the preference nodes based on the search result.
+	 * <p>
+	 * Enabling the feature starts building the search index in the background.
+	 * Disabling it discards the index and shows all preference nodes again.
 	 * 
 	 * @see #isSearchEnabled()
 	 * @param enable
@@ -221,6 +321,282 @@ public class PreferenceDialog extends JDialog {
 	 */
 	public void setSearchEnabled(boolean enable) {
 		searchEnabled = enable;
+		if (treePanel == null) {
+			return; // the dialog is still being initialized
+		}
+		if (enable && searchField == null) {
+			searchIndex = createSearchIndex();
+			searchIndex.build();
+			searchField = createSearchField();
+			treePanel.add(searchField, BorderLayout.NORTH);
+		} else if (!enable && searchField != null) {
+			cancelSearch();
+			treePanel.remove(searchField);
+			searchField = null;
+			if (searchIndex != null) {
+				searchIndex.dispose();
+				searchIndex = null;
+			}
+			searchFilter = null;
+			applyFilters();
+		}
+		treePanel.revalidate();
+	}
+
+	/**
+	 * Creates the index searched by the search feature, covering the subtrees
+	 * of the root preference nodes.
+	 * 
+	 * @see #isSearchEnabled()
+	 * @return a new, unbuilt search index
+	 */
+	protected PreferenceSearchIndex createSearchIndex() {
+		return new PreferenceSearchIndex(getRootPreferences());
+	}
+
+	/**
+	 * Returns the root preference nodes of the tree, with the user root in
+	 * place of <code>null</code>.
+	 * 
+	 * @return the root preference nodes
+	 */
+	private Preferences[] getRootPreferences() {
+		Preferences[] roots = getPreferences().clone();
+		for (int i = 0; i < roots.length; i++) {
+			if (roots[i] == null) {
+				roots[i] = Preferences.userRoot();
+			}
+		}
+		return roots;
+	}
+
+	/**
+	 * Creates the search field. Typing in the field searches once the user
+	 * pauses for {@link #SEARCH_DELAY} milliseconds.
+	 * 
+	 * @see #search(String)
+	 * @return the search field
+	 */
+	protected JTextField createSearchField() {
+		final JTextField field = new JTextField();
+		field.setToolTipText("Search preference nodes, keys and values");
+		searchTimer = new Timer(SEARCH_DELAY, new AbstractAction() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				search(field.getText());
+			}
+		});
+		searchTimer.setRepeats(false);
+		field.getDocument().addDocumentListener(new DocumentListener() {
+
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				searchTimer.restart();
+			}
+
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				searchTimer.restart();
+			}
+
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				searchTimer.restart();
+			}
+		});
+		return field;
+	}
+
+	/**
+	 * Filters the tree to the preference nodes matching <code>query</code>. The
+	 * search runs in the background and cancels any search still running. An
+	 * empty query shows all preference nodes.
+	 * <p>
+	 * If the search feature is disabled, this method does nothing.
+	 * 
+	 * @param query
+	 *            the text to search for
+	 */
+	public void search(final String query) {
+		if (searchIndex == null) {
+			return; // return immediately
+		}
+		cancelSearch();
+		if (query == null || query.trim().length() == 0) {
+			searchFilter = null;
+			applyFilters();
+			return;
+		}
+		final PreferenceSearchIndex index = searchIndex;
+		pendingSearch = new SwingWorker<PreferenceFilter, Void>() {
+
+			@Override
+			protected PreferenceFilter doInBackground() throws Exception {
+				// the stale matches are dropped here rather than on the EDT
+				return PreferenceFilter.matching(index.find(query,
+						PreferenceSearchIndex.DEFAULT_MAX_RESULTS));
+			}
+
+			@Override
+			protected void done() {
+				if (pendingSearch != this || isCancelled()) {
+					return; // a newer search replaced this one
+				}
+				pendingSearch = null;
+				try {
+					showMatches(get());
+				} catch (InterruptedException e) {
+					// cancelled
+				} catch (CancellationException e) {
+					// cancelled
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		pendingSearch.execute();
+	}
+
+	/**
+	 * Restricts the tree to the matching preference nodes and expands it so
+	 * every match is visible.
+	 * 
+	 * @param matches
+	 *            the matching preference nodes
+	 */
+	protected void showMatches(Set<Preferences> matches) {
+		showMatches(PreferenceFilter.matching(matches));
+	}
+
+	/**
+	 * Restricts the tree to the nodes shown by <code>matches</code> and
+	 * expands it so every match is visible.
+	 * 
+	 * @param matches
+	 *            the filter showing the matching preference nodes
+	 */
+	private void showMatches(PreferenceFilter matches) {
+		searchFilter = matches;
+		applyFilters();
+		for (int row = 0; row < tree.getRowCount(); row++) {
+			tree.expandRow(row);
+		}
+	}
+
+	/**
+	 * Returns the filter restricting which preference nodes are shown in the
+	 * tree, or <code>null</code> if all nodes are shown. This is in addition
+	 * to any search made with the search feature.
+	 * 
+	 * @see #setTreeFilter(PreferenceFilter)
+	 * @return the tree filter
+	 */
+	public PreferenceFilter getTreeFilter() {
+		return treeFilter;
+	}
+
+	/**
+	 * Sets the filter restricting which preference nodes are shown in the
+	 * tree, for example {@link PreferenceFilter#keyPrefix(String)}. This is in
+	 * addition to any search made with the search feature. The tree is
+	 * updated in place, keeping the expansion state of the nodes which remain
+	 * visible.
+	 * <p>
+	 * A filter which needs preparing is prepared in the background first, and
+	 * prepared again whenever it reports that the preference nodes changed.
+	 * 
+	 * @see #getTreeFilter()
+	 * @see PreferenceFilter#prepare(Preferences...)
+	 * @param filter
+	 *            the filter, or <code>null</code> to show all nodes
+	 */
+	public void setTreeFilter(PreferenceFilter filter) {
+		if (treeFilter != null) {
+			treeFilter.removeChangeListener(treeFilterListener);
+		}
+		this.treeFilter = filter;
+		if (filter != null) {
+			if (treeFilterListener == null) {
+				treeFilterListener = new ChangeListener() {
+
+					@Override
+					public void stateChanged(ChangeEvent e) {
+						prepareTreeFilter();
+					}
+				};
+			}
+			filter.addChangeListener(treeFilterListener);
+		}
+		prepareTreeFilter();
+	}
+
+	/**
+	 * Prepares the tree filter in the background if it needs preparing, then
+	 * applies the filters to the tree.
+	 */
+	private void prepareTreeFilter() {
+		if (pendingFilter != null) {
+			pendingFilter.cancel(false);
+			pendingFilter = null;
+		}
+		if (treeFilter == null || !treeFilter.needsPreparing()) {
+			applyFilters();
+			return;
+		}
+		final PreferenceFilter filter = treeFilter;
+		final Preferences[] roots = getRootPreferences();
+		pendingFilter = new SwingWorker<Void, Void>() {
+
+			@Override
+			protected Void doInBackground() throws Exception {
+				filter.prepare(roots);
+				return null;
+			}
+
+			@Override
+			protected void done() {
+				if (pendingFilter != this || isCancelled()) {
+					return; // a newer preparation replaced this one
+				}
+				pendingFilter = null;
+				try {
+					get();
+				} catch (InterruptedException e) {
+					// cancelled
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+				if (filter == treeFilter) {
+					applyFilters();
+				}
+			}
+		};
+		pendingFilter.execute();
+	}
+
+	/** Applies the search and tree filters to the tree model. */
+	private void applyFilters() {
+		PreferenceFilter filter = null;
+		if (searchFilter != null && treeFilter != null) {
+			filter = PreferenceFilter.and(searchFilter, treeFilter);
+		} else if (searchFilter != null) {
+			filter = searchFilter;
+		} else {
+			filter = treeFilter;
+		}
+		getFilteredTreeModel().setFilter(filter);
+	}
+
+	/** Cancels the search currently running, if any. */
+	private void cancelSearch() {
+		if (searchTimer != null) {
+			searchTimer.stop();
+		}
+		if (pendingSearch != null) {
+			pendingSearch.cancel(true);
+			pendingSearch = null;
+		}
 	}
 
 	/**
@@ -313,6 +689,608 @@ public class PreferenceDialog extends JDialog {
 		this.wrapPageInScrollPaneEnabled = enable;
 	}
 
+	/**
+	 * Returns whether the lazy loading feature is enabled or disabled. This
+	 * feature defers reading the children of a preference node from the
+	 * backing store until the node is first expanded, and then reads them in
+	 * the background.
+	 * 
+	 * @see #setLazyLoadingEnabled(boolean)
+	 * @return <code>true</code> if the feature is enabled, else
+	 *         <code>false</code>
+	 */
+	public boolean isLazyLoadingEnabled() {
+		return lazyLoadingEnabled;
+	}
+
+	/**
+	 * Enables or disables the lazy loading feature. This feature defers
+	 * reading the children of a preference node from the backing store until
+	 * the node is first expanded, and then reads them in the background.
+	 * <p>
+	 * This only affects root nodes created afterwards.
+	 * 
+	 * @see #isLazyLoadingEnabled()
+	 * @param enable
+	 *            <code>true</code> to enable the feature, <code>false</code> to
+	 *            disable
+	 */
+	public void setLazyLoadingEnabled(boolean enable) {
+		this.lazyLoadingEnabled = enable;
+	}
+
+	/**
+	 * Returns whether the write-behind feature is enabled or disabled. This
+	 * feature coalesces edits made to preferences and synchronizes them with
+	 * the backing store periodically and when the dialog is closed, rather
+	 * than after every edit.
+	 * 
+	 * @see #setWriteBehindEnabled(boolean)
+	 * @see PreferenceTableModel#setWriteBehindEnabled(boolean)
+	 * @return <code>true</code> if the feature is enabled, else
+	 *         <code>false</code>
+	 */
+	public boolean isWriteBehindEnabled() {
+		return writeBehindEnabled;
+	}
+
+	/**
+	 * Enables or disables the write-behind feature. This feature coalesces
+	 * edits made to preferences and synchronizes them with the backing store
+	 * periodically and when the dialog is closed, rather than after every
+	 * edit.
+	 * 
+	 * @see #isWriteBehindEnabled()
+	 * @param enable
+	 *            <code>true</code> to enable the feature, <code>false</code> to
+	 *            disable
+	 */
+	public void setWriteBehindEnabled(boolean enable) {
+		this.writeBehindEnabled = enable;
+		for (PreferenceTableModel model : modelCache.getModels()) {
+			model.setWriteBehindEnabled(enable);
+		}
+	}
+
+	/**
+	 * Returns whether the paged table feature is enabled or disabled. This
+	 * feature reads the values of a preference node as they are scrolled into
+	 * view rather than all at once, so nodes with a huge number of keys are
+	 * displayed quickly.
+	 * 
+	 * @see #setPagedTableEnabled(boolean)
+	 * @see PreferenceTableModel#setPagingEnabled(boolean)
+	 * @return <code>true</code> if the feature is enabled, else
+	 *         <code>false</code>
+	 */
+	public boolean isPagedTableEnabled() {
+		return modelCache.isPagingEnabled();
+	}
+
+	/**
+	 * Enables or disables the paged table feature. This feature reads the
+	 * values of a preference node as they are scrolled into view rather than
+	 * all at once, so nodes with a huge number of keys are displayed quickly.
+	 * 
+	 * @see #isPagedTableEnabled()
+	 * @param enable
+	 *            <code>true</code> to enable the feature, <code>false</code> to
+	 *            disable
+	 */
+	public void setPagedTableEnabled(boolean enable) {
+		modelCache.setPagingEnabled(enable);
+	}
+
+	/**
+	 * Returns the registry describing the types of preference values, which
+	 * the preference page renders and edits according to their type.
+	 * 
+	 * @see #setTypeRegistry(PreferenceTypeRegistry)
+	 * @return the type registry, or <code>null</code> if all values are
+	 *         displayed as strings
+	 */
+	public PreferenceTypeRegistry getTypeRegistry() {
+		return modelCache.getTypeRegistry();
+	}
+
+	/**
+	 * Sets the registry describing the types of preference values, which the
+	 * preference page renders and edits according to their type.
+	 * 
+	 * @see #getTypeRegistry()
+	 * @see PreferenceTableModel#setTypeRegistry(PreferenceTypeRegistry)
+	 * @param registry
+	 *            the type registry, or <code>null</code> to display all values
+	 *            as strings
+	 */
+	public void setTypeRegistry(PreferenceTypeRegistry registry) {
+		modelCache.setTypeRegistry(registry);
+	}
+
+	/**
+	 * Returns whether the prewarm pages feature is enabled or disabled. This
+	 * feature initializes custom pages whose initialization was deferred while
+	 * the dialog is idle, one page at a time, so they display immediately when
+	 * first opened.
+	 * 
+	 * @see #setPrewarmPagesEnabled(boolean)
+	 * @see CustomPage#CustomPage(String, String, java.awt.Component, boolean)
+	 * @return <code>true</code> if the feature is enabled, else
+	 *         <code>false</code>
+	 */
+	public boolean isPrewarmPagesEnabled() {
+		return prewarmPagesEnabled;
+	}
+
+	/**
+	 * Enables or disables the prewarm pages feature. This feature initializes
+	 * custom pages whose initialization was deferred while the dialog is idle,
+	 * one page at a time, so they display immediately when first opened.
+	 * 
+	 * @see #isPrewarmPagesEnabled()
+	 * @param enable
+	 *            <code>true</code> to enable the feature, <code>false</code> to
+	 *            disable
+	 */
+	public void setPrewarmPagesEnabled(boolean enable) {
+		this.prewarmPagesEnabled = enable;
+		if (enable) {
+			if (prewarmTimer == null) {
+				prewarmTimer = new Timer(PREWARM_INTERVAL, new AbstractAction() {
+
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						prewarmPage();
+					}
+				});
+			}
+			prewarmTimer.start();
+		} else if (prewarmTimer != null) {
+			prewarmTimer.stop();
+		}
+	}
+
+	/**
+	 * Initializes one deferred custom page if no other events are waiting to
+	 * be processed, and stops prewarming once every page is initialized.
+	 */
+	private void prewarmPage() {
+		EventQueue queue = Toolkit.getDefaultToolkit().getSystemEventQueue();
+		if (queue.peekEvent() != null) {
+			return; // not idle, try again later
+		}
+		for (CustomPage<?> custom : pageRegistry.getPages()) {
+			if (!custom.isInitialized()) {
+				custom.initialize();
+				return;
+			}
+		}
+		prewarmTimer.stop();
+	}
+
+	/**
+	 * Returns whether the import/export feature is enabled or disabled. This
+	 * feature displays buttons to export the selected preference node and its
+	 * descendants to a file, and to import preferences from a file.
+	 * 
+	 * @see #setImportExportEnabled(boolean)
+	 * @return <code>true</code> if the feature is enabled, else
+	 *         <code>false</code>
+	 */
+	public boolean isImportExportEnabled() {
+		return importExportEnabled;
+	}
+
+	/**
+	 * Enables or disables the import/export feature. This feature displays
+	 * buttons to export the selected preference node and its descendants to a
+	 * file, and to import preferences from a file.
+	 * <p>
+	 * Files whose names end in <code>.xml</code> are written in the XML format
+	 * of <code>Preferences.exportSubtree</code>, other files in the binary
+	 * format of {@link PreferenceExporter}.
+	 * 
+	 * @see #isImportExportEnabled()
+	 * @see #exportPreferences(Preferences, File)
+	 * @see #importPreferences(File)
+	 * @param enable
+	 *            <code>true</code> to enable the feature, <code>false</code> to
+	 *            disable
+	 */
+	public void setImportExportEnabled(boolean enable) {
+		this.importExportEnabled = enable;
+		if (buttonPanel == null) {
+			return; // the dialog is still being initialized
+		}
+		if (enable && importButton == null) {
+			importButton = new JButton("Import...");
+			importButton.addActionListener(new AbstractAction() {
+
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					JFileChooser chooser = new JFileChooser();
+					int option = chooser.showOpenDialog(PreferenceDialog.this);
+					if (option == JFileChooser.APPROVE_OPTION) {
+						importPreferences(chooser.getSelectedFile());
+					}
+				}
+			});
+			exportButton = new JButton("Export...");
+			exportButton.addActionListener(new AbstractAction() {
+
+				@Override
+				public void actionPerformed(ActionEvent e) {
+					JFileChooser chooser = new JFileChooser();
+					int option = chooser.showSaveDialog(PreferenceDialog.this);
+					if (option == JFileChooser.APPROVE_OPTION) {
+						exportPreferences(getSelectedPreferences(),
+								chooser.getSelectedFile());
+					}
+				}
+			});
+			buttonPanel.add(importButton, 0);
+			buttonPanel.add(exportButton, 1);
+		} else if (!enable && importButton != null) {
+			buttonPanel.remove(importButton);
+			buttonPanel.remove(exportButton);
+			importButton = null;
+			exportButton = null;
+		}
+		buttonPanel.revalidate();
+	}
+
+	/**
+	 * Returns the preference node selected in the tree, or the first root
+	 * preference node if no preference node is selected.
+	 * 
+	 * @return the selected preference node
+	 */
+	public Preferences getSelectedPreferences() {
+		Object node = tree.getLastSelectedPathComponent();
+		if (node instanceof PreferenceTreeNode) {
+			return ((PreferenceTreeNode) node).getPrefObject();
+		}
+		Preferences[] roots = getPreferences();
+		return (roots.length > 0 && roots[0] != null) ? roots[0] : Preferences
+				.userRoot();
+	}
+
+	/**
+	 * Writes <code>pref</code> and its descendants to <code>file</code> in the
+	 * background, in the format given by the file name. A failure is reported
+	 * in a message dialog.
+	 * 
+	 * @see PreferenceFormat#forFileName(String)
+	 * @param pref
+	 *            the root of the subtree to export
+	 * @param file
+	 *            the file to write
+	 */
+	public void exportPreferences(final Preferences pref, final File file) {
+		flush();
+		getFileWorker().execute(new FileWorker("Export failed") {
+
+			@Override
+			protected Void doInBackground() throws Exception {
+				OutputStream out = new FileOutputStream(file);
+				try {
+					new PreferenceExporter(PreferenceFormat.forFileName(file
+							.getName())).exportSubtree(pref, out);
+				} finally {
+					out.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Reads the preferences in <code>file</code>, in either format, and
+	 * applies them in the background. User preferences are imported into the
+	 * tree of the first user root preference node of the dialog and system
+	 * preferences into the tree of the first system one, falling back to the
+	 * default trees. A failure is reported in a message dialog.
+	 * 
+	 * @param file
+	 *            the file to read
+	 */
+	public void importPreferences(final File file) {
+		flush();
+		final PreferenceImporter importer = new PreferenceImporter(
+				importRoot(true), importRoot(false));
+		getFileWorker().execute(new FileWorker("Import failed") {
+
+			@Override
+			protected Void doInBackground() throws Exception {
+				InputStream in = new FileInputStream(file);
+				try {
+					importer.importPreferences(in);
+				} finally {
+					in.close();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Returns the root of the tree of the first root preference node of the
+	 * dialog in the user or system tree.
+	 * 
+	 * @param user
+	 *            <code>true</code> for the user tree, <code>false</code> for
+	 *            the system tree
+	 * @return the root node of the tree, or the default root if the dialog
+	 *         shows none of the tree
+	 */
+	private Preferences importRoot(boolean user) {
+		for (Preferences pref : getPreferences()) {
+			if (pref != null && pref.isUserNode() == user) {
+				while (pref.parent() != null) {
+					pref = pref.parent();
+				}
+				return pref;
+			}
+		}
+		return user ? Preferences.userRoot() : Preferences.systemRoot();
+	}
+
+	/** Reads or writes a file in the background and reports a failure. */
+	private abstract class FileWorker extends SwingWorker<Void, Void> {
+
+		/** The title of the message reporting a failure. */
+		private String title;
+
+		public FileWorker(String title) {
+			this.title = title;
+		}
+
+		@Override
+		protected void done() {
+			try {
+				get();
+			} catch (InterruptedException e) {
+				// cancelled
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				JOptionPane.showMessageDialog(PreferenceDialog.this, e
+						.getCause().toString(), title, JOptionPane.ERROR_MESSAGE);
+			}
+		}
+
+	}
+
+	/**
+	 * Synchronizes any edits still pending from the write-behind feature with
+	 * the backing store.
+	 * 
+	 * @see #isWriteBehindEnabled()
+	 */
+	public void flush() {
+		for (PreferenceTableModel model : modelCache.getModels()) {
+			model.flushNow();
+		}
+	}
+
+	/**
+	 * Returns the cache of table models for recently displayed preference
+	 * nodes. The models are disposed when evicted and when the dialog is
+	 * disposed.
+	 * 
+	 * @return the model cache
+	 */
+	public PreferenceTableModelCache getModelCache() {
+		return modelCache;
+	}
+
+	/**
+	 * Displays the preferences of <code>pref</code> in the preference page. If
+	 * the table model of <code>pref</code> is not cached, the page is put in
+	 * its loading state immediately and the model is built in the background.
+	 * A model still being built for a previously displayed node is discarded.
+	 * 
+	 * @param pref
+	 *            the preference node to display
+	 */
+	public void showPreferences(final Preferences pref) {
+		cancelPageLoad();
+		PreferenceTableModel current = preferencePage.getModel();
+		if (current != null) {
+			current.flushNow();
+		}
+		preferencePage.setPageTitle(pref.name());
+		PreferenceTableModel model = modelCache.getCached(pref);
+		if (model != null) {
+			model.setWriteBehindEnabled(isWriteBehindEnabled());
+			preferencePage.setModel(model);
+			setPage(preferencePage);
+			return;
+		}
+		preferencePage.setLoading(true);
+		setPage(preferencePage);
+		pendingPage = new SwingWorker<PreferenceTableModel, Void>() {
+
+			/** The model built, until it is displayed or discarded. */
+			private PreferenceTableModel built;
+
+			@Override
+			protected PreferenceTableModel doInBackground() throws Exception {
+				PreferenceTableModel model = modelCache.createModel(pref);
+				synchronized (this) {
+					if (!isCancelled()) {
+						built = model;
+						return model;
+					}
+				}
+				model.dispose();
+				return null;
+			}
+
+			@Override
+			protected void done() {
+				PreferenceTableModel model;
+				synchronized (this) {
+					model = built;
+					built = null;
+				}
+				if (model == null) {
+					if (pendingPage == this && !isCancelled()) {
+						pendingPage = null;
+						try {
+							get();
+						} catch (InterruptedException e) {
+							// cancelled
+						} catch (ExecutionException e) {
+							e.printStackTrace();
+							preferencePage.setLoading(false);
+							JOptionPane.showMessageDialog(PreferenceDialog.this,
+									e.getCause().toString(), "Loading failed",
+									JOptionPane.ERROR_MESSAGE);
+						}
+					}
+					return; // failed, or discarded by the background thread
+				}
+				if (pendingPage != this || isCancelled()) {
+					model.dispose(); // another node was selected since
+					return;
+				}
+				pendingPage = null;
+				modelCache.put(pref, model);
+				model.setWriteBehindEnabled(isWriteBehindEnabled());
+				preferencePage.setModel(model);
+			}
+		};
+		getPageLoader().execute(pendingPage);
+	}
+
+	/**
+	 * Discards the table model being built, if any. The model is not
+	 * interrupted, since interrupting a read may harm the backing store.
+	 */
+	private void cancelPageLoad() {
+		if (pendingPage != null) {
+			pendingPage.cancel(false);
+			pendingPage = null;
+		}
+	}
+
+	/**
+	 * Returns the executor building table models in the background, creating
+	 * it if it does not exist or was shut down by {@link #dispose()}.
+	 * 
+	 * @return the executor
+	 */
+	private ExecutorService getPageLoader() {
+		if (pageLoader == null || pageLoader.isShutdown()) {
+			pageLoader = newDaemonExecutor("PreferenceDialog");
+		}
+		return pageLoader;
+	}
+
+	/**
+	 * Returns the executor reading and writing files in the background,
+	 * creating it if it does not exist or was shut down by {@link #dispose()}.
+	 * 
+	 * @return the executor
+	 */
+	private ExecutorService getFileWorker() {
+		if (fileWorker == null || fileWorker.isShutdown()) {
+			fileWorker = newDaemonExecutor("PreferenceDialog-files");
+		}
+		return fileWorker;
+	}
+
+	/**
+	 * Creates an executor running tasks one at a time on a daemon thread.
+	 * 
+	 * @param name
+	 *            the name of the thread
+	 * @return the executor
+	 */
+	private static ExecutorService newDaemonExecutor(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Restarts the background work stopped by {@link #dispose()} when the
+	 * dialog is displayed again.
+	 */
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		if (!disposed) {
+			return; // return immediately
+		}
+		disposed = false;
+		tree.removeTreeWillExpandListener(treeLoader);
+		treeLoader = new PreferenceTreeLoader(getTreeModel());
+		tree.addTreeWillExpandListener(treeLoader);
+		if (searchField != null) {
+			searchIndex = createSearchIndex();
+			searchIndex.build();
+		}
+		if (treeFilter != null) {
+			treeFilter.addChangeListener(treeFilterListener);
+			prepareTreeFilter();
+		}
+		if (isPrewarmPagesEnabled()) {
+			prewarmTimer.start();
+		}
+		// the models were discarded, so rebuild the one displayed
+		TreePath selected = tree.getSelectionPath();
+		if (selected != null
+				&& selected.getLastPathComponent() instanceof PreferenceTreeNode) {
+			showPreferences(((PreferenceTreeNode) selected
+					.getLastPathComponent()).getPrefObject());
+		}
+	}
+
+	/**
+	 * Stops the background work of the dialog and discards the cached table
+	 * models and the search index. The dialog may still be displayed again,
+	 * which restarts them.
+	 */
+	@Override
+	public void dispose() {
+		disposed = true;
+		if (prewarmTimer != null) {
+			prewarmTimer.stop();
+		}
+		cancelPageLoad();
+		if (pageLoader != null) {
+			pageLoader.shutdown();
+		}
+		if (fileWorker != null) {
+			// a started export or import still completes
+			fileWorker.shutdown();
+		}
+		cancelSearch();
+		if (searchIndex != null) {
+			searchIndex.dispose();
+			searchIndex = null;
+		}
+		if (pendingFilter != null) {
+			pendingFilter.cancel(false);
+			pendingFilter = null;
+		}
+		if (treeFilter != null) {
+			treeFilter.removeChangeListener(treeFilterListener);
+		}
+		modelCache.clear();
+		if (treeLoader != null) {
+			treeLoader.shutdown();
+		}
+		super.dispose();
+	}
+
 	protected MutableTreeNode addNodeFor(CustomPage<?> page) {
 		return addNode(new CustomPageTreeNode(page));
 	}
@@ -322,18 +1300,43 @@ public class PreferenceDialog extends JDialog {
 	}
 
 	protected MutableTreeNode addNode(MutableTreeNode node) {
-		DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
+		DefaultTreeModel model = getTreeModel();
 		DefaultMutableTreeNode root = (DefaultMutableTreeNode) model.getRoot();
 		model.insertNodeInto(node, root, root.getChildCount());
 		return node;
 	}
 
+	/**
+	 * Returns the model of the preference tree, without any filtering.
+	 * 
+	 * @return the tree model
+	 */
+	protected DefaultTreeModel getTreeModel() {
+		TreeModel model = tree.getModel();
+		if (model instanceof FilteredTreeModel) {
+			return ((FilteredTreeModel) model).getModel();
+		}
+		return (DefaultTreeModel) model;
+	}
+
+	/**
+	 * Returns the filtering model of the preference tree.
+	 * 
+	 * @return the filtered tree model
+	 */
+	protected FilteredTreeModel getFilteredTreeModel() {
+		return (FilteredTreeModel) tree.getModel();
+	}
+
 	protected void removeNodeFor(CustomPage<?> page) {
-		removeNode(customPageMap.get(page));
+		MutableTreeNode node = pageRegistry.getNode(page);
+		if (node != null) {
+			removeNode(node);
+		}
 	}
 
 	protected void removeNode(MutableTreeNode node) {
-		DefaultTreeModel model = (DefaultTreeModel) tree.getModel();
+		DefaultTreeModel model = getTreeModel();
 		model.removeNodeFromParent(node);
 	}
 
@@ -353,9 +1356,11 @@ public class PreferenceDialog extends JDialog {
 		boolean added = false;
 		if (isCustomPagesEnabled()) {
 			MutableTreeNode node = addNodeFor(page);
-			customNodeMap.put(node, page);
-			customPageMap.put(page, node);
+			pageRegistry.register(page, node);
 			added = true;
+			if (isPrewarmPagesEnabled() && !page.isInitialized()) {
+				prewarmTimer.start();
+			}
 		}
 		return added;
 	}
@@ -369,13 +1374,14 @@ public class PreferenceDialog extends JDialog {
 	public void remove(CustomPage<?> page) {
 		// TODO handle falling back to last selected node
 		removeNodeFor(page);
-		customNodeMap.remove(page);
-		customPageMap.remove(page);
+		pageRegistry.unregister(page);
+		pageContainer.removePage(page);
 	}
 
 	/**
-	 * Sets the page to display to the user. This sets the right component of
-	 * the {@link #splitPane} to <code>page</code>.
+	 * Sets the page to display to the user. This shows <code>page</code> in
+	 * the right component of the {@link #splitPane}, which keeps the pages
+	 * shown recently so showing one of them again is cheap.
 	 * <p>
 	 * <em><b>Note:</b> this performs differently based on the result of 
 	 * {@link #isWrapPageInScrollPaneEnabled()}.</em>
@@ -386,14 +1392,43 @@ public class PreferenceDialog extends JDialog {
 	 *            the page to display
 	 */
 	public void setPage(CustomPage<?> page) {
+		long start = PreferenceMetrics.start();
+		Trace trace = PreferenceMetrics.trace(Operation.SET_PAGE);
 		this.page = page;
-		if (isWrapPageInScrollPaneEnabled()) {
-			splitPane.setRightComponent(new JScrollPane(this.page.getPage()));
-		} else {
-			splitPane.setRightComponent(this.page.getPage());
+		pageContainer.show(page, isWrapPageInScrollPaneEnabled());
+		PreferenceMetrics.stop(Operation.SET_PAGE, start);
+		if (trace != null) {
+			PreferenceTableModel model = (page == preferencePage) ? preferencePage
+					.getModel() : null;
+			if (model == null) {
+				trace.end(page.getPageTitle(), 0);
+			} else {
+				trace.end(model.getPrefObject().absolutePath(),
+						model.getRowCount());
+			}
 		}
 	}
 
+	/**
+	 * Returns the registry of the custom pages added to the dialog and their
+	 * tree nodes.
+	 * 
+	 * @return the page registry
+	 */
+	public PageRegistry getPageRegistry() {
+		return pageRegistry;
+	}
+
+	/**
+	 * Returns the container showing the page in the right component of the
+	 * {@link #splitPane}.
+	 * 
+	 * @return the page container
+	 */
+	public PageContainer getPageContainer() {
+		return pageContainer;
+	}
+
 	/**
 	 * Returns the root preference nodes to be displayed in the tree.
 	 * 
@@ -426,6 +1461,7 @@ public class PreferenceDialog extends JDialog {
 	 * @param preferences
 	 *            the objects containing preferences to add to the tree
 	 * @see #createTreeSelectionListener()
+	 * @see #createTreeExpansionListener()
 	 * @return the preference tree created
 	 */
 	protected JTree createTree(boolean userPreferences,
@@ -440,11 +1476,112 @@ public class PreferenceDialog extends JDialog {
 			}
 		}
 		DefaultTreeModel model = new DefaultTreeModel(root);
-		JTree tree = new JTree(model);
+		for (int i = 0; i < root.getChildCount(); i++) {
+			if (root.getChildAt(i) instanceof PreferenceTreeNode) {
+				((PreferenceTreeNode) root.getChildAt(i)).setTreeModel(model);
+			}
+		}
+		JTree tree = new JTree(new FilteredTreeModel(model));
+		if (treeLoader != null) {
+			treeLoader.shutdown();
+		}
+		treeLoader = new PreferenceTreeLoader(model);
+		tree.addTreeWillExpandListener(treeLoader);
 		tree.addTreeSelectionListener(createTreeSelectionListener());
+		tree.addTreeExpansionListener(createTreeExpansionListener());
 		return tree;
 	}
 
+	/**
+	 * Returns the tree listener that releases the cached children of
+	 * {@link PreferenceTreeNode}s which have stayed collapsed for
+	 * {@link #RELEASE_DELAY}, so large subtrees which are no longer visible
+	 * may be garbage collected. A node expanded again within the delay keeps
+	 * its children and the expansion state of its descendants; until then,
+	 * the size of each node's cache bounds the children kept.
+	 * 
+	 * @see #createTree(boolean, boolean, Preferences...)
+	 * @return the tree expansion listener
+	 */
+	protected TreeExpansionListener createTreeExpansionListener() {
+		return new TreeExpansionListener() {
+
+			/** The paths of the collapsed nodes, oldest collapse first. */
+			private Map<TreePath, Long> collapsed = new LinkedHashMap<TreePath, Long>();
+			/** Releases the nodes collapsed for long enough. */
+			private Timer releaseTimer;
+
+			@Override
+			public void treeExpanded(TreeExpansionEvent event) {
+				// children are created on demand
+				collapsed.remove(event.getPath());
+			}
+
+			@Override
+			public void treeCollapsed(TreeExpansionEvent event) {
+				TreePath path = event.getPath();
+				if (!(path.getLastPathComponent() instanceof PreferenceTreeNode)) {
+					return; // return immediately
+				}
+				collapsed.remove(path);
+				collapsed.put(path, System.currentTimeMillis());
+				if (releaseTimer == null) {
+					final JTree source = (JTree) event.getSource();
+					releaseTimer = new Timer(RELEASE_DELAY, new AbstractAction() {
+
+						@Override
+						public void actionPerformed(ActionEvent e) {
+							release(source);
+						}
+					});
+					releaseTimer.setRepeats(false);
+				}
+				if (!releaseTimer.isRunning()) {
+					releaseTimer.setInitialDelay(RELEASE_DELAY);
+					releaseTimer.start();
+				}
+			}
+
+			/**
+			 * Releases the children of the nodes collapsed for at least
+			 * {@link #RELEASE_DELAY}, and waits for the next one.
+			 * 
+			 * @param source
+			 *            the tree
+			 */
+			private void release(JTree source) {
+				TreeModel model = source.getModel();
+				if (model instanceof FilteredTreeModel) {
+					model = ((FilteredTreeModel) model).getModel();
+				}
+				long now = System.currentTimeMillis();
+				while (!collapsed.isEmpty()) {
+					Map.Entry<TreePath, Long> oldest = collapsed.entrySet()
+							.iterator().next();
+					long remaining = oldest.getValue() + RELEASE_DELAY - now;
+					if (remaining > 0) {
+						releaseTimer.setInitialDelay((int) remaining);
+						releaseTimer.start();
+						return; // return immediately
+					}
+					TreePath path = oldest.getKey();
+					collapsed.remove(path);
+					// the released descendants need no release of their own
+					Iterator<TreePath> it = collapsed.keySet().iterator();
+					while (it.hasNext()) {
+						if (path.isDescendant(it.next())) {
+							it.remove();
+						}
+					}
+					PreferenceTreeNode node = (PreferenceTreeNode) path
+							.getLastPathComponent();
+					node.releaseChildren();
+					((DefaultTreeModel) model).nodeStructureChanged(node);
+				}
+			}
+		};
+	}
+
 	/**
 	 * Returns the tree listener that listens to the node selected in
 	 * {@link #tree} and handles the page to be displayed.
@@ -459,18 +1596,13 @@ public class PreferenceDialog extends JDialog {
 			public void valueChanged(TreeSelectionEvent e) {
 				Object node = e.getPath().getLastPathComponent();
 				if (node instanceof PreferenceTreeNode) {
-					// PreferenceTreeNode node = (PreferenceTreeNode)
-					// e.getPath().getLastPathComponent();
-					Preferences pref = ((PreferenceTreeNode) node)
-							.getPrefObject();
-					// editTable.setModel(new PreferenceTableModel(pref));
-					preferencePage.setModel(new PreferenceTableModel(pref));
-					preferencePage.setPageTitle(pref.name());
-					setPage(preferencePage);
+					showPreferences(((PreferenceTreeNode) node).getPrefObject());
 				} else if (node instanceof CustomPageTreeNode) {
-					setPage(customNodeMap.get(node));
+					cancelPageLoad();
+					setPage(((CustomPageTreeNode) node).getPageObject());
 				} else {
-					setPage(new BlankPage());
+					cancelPageLoad();
+					setPage(blankPage);
 				}
 			}
 		};
@@ -507,7 +1639,11 @@ public class PreferenceDialog extends JDialog {
 	/**
 	 * Creates and returns a <code>MutableTreeNode</code> for the
 	 * <code>preference</code> in the user preferences space.
+	 * <p>
+	 * If the lazy loading feature is enabled the node's children are not read
+	 * until it is expanded.
 	 * 
+	 * @see #isLazyLoadingEnabled()
 	 * @param preference
 	 *            the preferences object
 	 * @param defaultUser
@@ -524,9 +1660,13 @@ public class PreferenceDialog extends JDialog {
 			if (preference == null) {
 				node = new PreferenceTreeNode(
 						defaultUser ? Preferences.userRoot()
-								: Preferences.systemRoot());
+								: Preferences.systemRoot(),
+						PreferenceTreeNode.DEFAULT_CACHE_SIZE,
+						isLazyLoadingEnabled());
 			} else {
-				node = new PreferenceTreeNode(preference);
+				node = new PreferenceTreeNode(preference,
+						PreferenceTreeNode.DEFAULT_CACHE_SIZE,
+						isLazyLoadingEnabled());
 			}
 		} catch (BackingStoreException e) {
 			e.printStackTrace();
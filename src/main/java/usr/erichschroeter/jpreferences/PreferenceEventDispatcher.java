@@ -0,0 +1,579 @@
+package usr.erichschroeter.jpreferences;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * A <code>PreferenceEventDispatcher</code> delivers preference and node change
+ * events on the event dispatch thread, in batches.
+ * <p>
+ * The JDK notifies listeners on its own event thread, and a background writer
+ * may change hundreds of preferences per second. The listeners created by the
+ * dispatcher only queue the events, without locking, and the queued events
+ * are delivered once per frame: all the events of a frame for the same
+ * handler are coalesced, keeping the last value of each key, and the handler
+ * is called once on the event dispatch thread with the batch.
+ * <p>
+ * Handlers may be added to a node with
+ * {@link #addPreferenceHandler(Preferences, PreferenceHandler)} and
+ * {@link #addNodeHandler(Preferences, NodeHandler)}. The dispatcher then adds
+ * a single listener of each kind to the node, however many handlers watch it,
+ * so the JDK notifies each change once.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceEventDispatcher {
+
+	/** The default delay in milliseconds events are coalesced for. */
+	public static final long DEFAULT_FRAME_DELAY = 16;
+
+	/** The dispatcher shared by the models, created when first used. */
+	private static PreferenceEventDispatcher defaultDispatcher;
+	/** The scheduler delaying the delivery of frames for all dispatchers. */
+	private static ScheduledExecutorService scheduler;
+
+	/** The delay in milliseconds events are coalesced for. */
+	private volatile long frameDelay;
+	/** The events not delivered yet. */
+	private Queue<Event> queue;
+	/** The number of events queued since the last delivery. */
+	private AtomicInteger pending;
+	/** Whether the delivery of the queued events has been scheduled. */
+	private AtomicBoolean scheduled;
+	/** The number of events received. */
+	private AtomicLong events;
+	/** The number of batches delivered. */
+	private AtomicLong batches;
+	/** The listeners added to each node, guarded by itself. */
+	private Map<Preferences, Registration> registrations;
+
+	/**
+	 * Handles the preference changes of a node delivered by a dispatcher.
+	 * 
+	 * @see PreferenceEventDispatcher#createPreferenceListener(PreferenceHandler)
+	 */
+	public interface PreferenceHandler {
+
+		/**
+		 * Called on the event dispatch thread with the preferences changed
+		 * since the last call.
+		 * 
+		 * @param changes
+		 *            the last value of each changed key, in the order first
+		 *            changed, with <code>null</code> values for removed keys
+		 */
+		void preferencesChanged(Map<String, String> changes);
+
+	}
+
+	/**
+	 * Handles the child node changes of a node delivered by a dispatcher.
+	 * 
+	 * @see PreferenceEventDispatcher#createNodeListener(NodeHandler)
+	 */
+	public interface NodeHandler {
+
+		/**
+		 * Called on the event dispatch thread with the children added or
+		 * removed since the last call.
+		 * 
+		 * @param names
+		 *            the names of the children added or removed
+		 */
+		void childrenChanged(Set<String> names);
+
+	}
+
+	/** A queued event. */
+	private static class Event {
+
+		/** The handler of preference changes to deliver the event to. */
+		private PreferenceHandler preferenceHandler;
+		/** The handler of node changes to deliver the event to. */
+		private NodeHandler nodeHandler;
+		/** The key or child node name changed. */
+		private String key;
+		/** The new value, or <code>null</code>. */
+		private String value;
+
+		public Event(PreferenceHandler handler, String key, String value) {
+			this.preferenceHandler = handler;
+			this.key = key;
+			this.value = value;
+		}
+
+		public Event(NodeHandler handler, String name) {
+			this.nodeHandler = handler;
+			this.key = name;
+		}
+
+	}
+
+	/**
+	 * Constructs a <code>PreferenceEventDispatcher</code> coalescing events
+	 * for {@link #DEFAULT_FRAME_DELAY} milliseconds.
+	 */
+	public PreferenceEventDispatcher() {
+		this(DEFAULT_FRAME_DELAY);
+	}
+
+	/**
+	 * Constructs a <code>PreferenceEventDispatcher</code> specifying how long
+	 * events are coalesced for.
+	 * 
+	 * @param frameDelay
+	 *            the delay in milliseconds, or 0 to deliver the events queued
+	 *            by the time the event dispatch thread gets to them
+	 */
+	public PreferenceEventDispatcher(long frameDelay) {
+		this.frameDelay = frameDelay;
+		this.queue = new ConcurrentLinkedQueue<Event>();
+		this.pending = new AtomicInteger();
+		this.scheduled = new AtomicBoolean();
+		this.events = new AtomicLong();
+		this.batches = new AtomicLong();
+		this.registrations = new HashMap<Preferences, Registration>();
+	}
+
+	/**
+	 * Returns the dispatcher shared by the table and tree models, creating it
+	 * if necessary.
+	 * 
+	 * @return the default dispatcher
+	 */
+	public static synchronized PreferenceEventDispatcher getDefault() {
+		if (defaultDispatcher == null) {
+			defaultDispatcher = new PreferenceEventDispatcher();
+		}
+		return defaultDispatcher;
+	}
+
+	/**
+	 * Returns the delay in milliseconds events are coalesced for.
+	 * 
+	 * @return the frame delay
+	 */
+	public long getFrameDelay() {
+		return frameDelay;
+	}
+
+	/**
+	 * Sets the delay in milliseconds events are coalesced for.
+	 * 
+	 * @param millis
+	 *            the frame delay, or 0 to deliver the events queued by the
+	 *            time the event dispatch thread gets to them
+	 */
+	public void setFrameDelay(long millis) {
+		this.frameDelay = millis;
+	}
+
+	/**
+	 * Returns a listener queuing the preference changes of a node for
+	 * <code>handler</code>. The listener is added to the node by the caller.
+	 * 
+	 * @param handler
+	 *            the handler of the batched changes
+	 * @return the listener
+	 */
+	public PreferenceChangeListener createPreferenceListener(
+			final PreferenceHandler handler) {
+		return new PreferenceChangeListener() {
+
+			@Override
+			public void preferenceChange(PreferenceChangeEvent evt) {
+				post(new Event(handler, evt.getKey(), evt.getNewValue()));
+			}
+		};
+	}
+
+	/**
+	 * Returns a listener queuing the child node changes of a node for
+	 * <code>handler</code>. The listener is added to the node by the caller.
+	 * 
+	 * @param handler
+	 *            the handler of the batched changes
+	 * @return the listener
+	 */
+	public NodeChangeListener createNodeListener(final NodeHandler handler) {
+		return new NodeChangeListener() {
+
+			@Override
+			public void childAdded(NodeChangeEvent evt) {
+				post(new Event(handler, evt.getChild().name()));
+			}
+
+			@Override
+			public void childRemoved(NodeChangeEvent evt) {
+				post(new Event(handler, evt.getChild().name()));
+			}
+		};
+	}
+
+	/**
+	 * Adds <code>handler</code> to the handlers of the preference changes of
+	 * <code>node</code>, adding the listener of the dispatcher to the node if
+	 * it is the first. Adding a handler already added does nothing.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param handler
+	 *            the handler of the batched changes
+	 * @throws IllegalStateException
+	 *             if the node has been removed
+	 */
+	public void addPreferenceHandler(Preferences node, PreferenceHandler handler) {
+		synchronized (registrations) {
+			Registration registration = registrationOf(node);
+			if (registration.preferenceHandlers.isEmpty()) {
+				try {
+					node.addPreferenceChangeListener(registration);
+				} catch (IllegalStateException e) {
+					release(registration);
+					throw e;
+				}
+			}
+			registration.preferenceHandlers.addIfAbsent(handler);
+		}
+	}
+
+	/**
+	 * Removes <code>handler</code> from the handlers of the preference
+	 * changes of <code>node</code>, removing the listener of the dispatcher
+	 * from the node if it was the last. Removing a handler not added does
+	 * nothing.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param handler
+	 *            the handler
+	 */
+	public void removePreferenceHandler(Preferences node,
+			PreferenceHandler handler) {
+		synchronized (registrations) {
+			Registration registration = registrations.get(node);
+			if (registration == null
+					|| !registration.preferenceHandlers.remove(handler)) {
+				return; // return immediately
+			}
+			if (registration.preferenceHandlers.isEmpty()) {
+				try {
+					node.removePreferenceChangeListener(registration);
+				} catch (IllegalStateException e) {
+					// the node has been removed, the listener went with it
+				}
+				release(registration);
+			}
+		}
+	}
+
+	/**
+	 * Adds <code>handler</code> to the handlers of the child node changes of
+	 * <code>node</code>, adding the listener of the dispatcher to the node if
+	 * it is the first. Adding a handler already added does nothing.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param handler
+	 *            the handler of the batched changes
+	 * @throws IllegalStateException
+	 *             if the node has been removed
+	 */
+	public void addNodeHandler(Preferences node, NodeHandler handler) {
+		synchronized (registrations) {
+			Registration registration = registrationOf(node);
+			if (registration.nodeHandlers.isEmpty()) {
+				try {
+					node.addNodeChangeListener(registration);
+				} catch (IllegalStateException e) {
+					release(registration);
+					throw e;
+				}
+			}
+			registration.nodeHandlers.addIfAbsent(handler);
+		}
+	}
+
+	/**
+	 * Removes <code>handler</code> from the handlers of the child node changes
+	 * of <code>node</code>, removing the listener of the dispatcher from the
+	 * node if it was the last. Removing a handler not added does nothing.
+	 * 
+	 * @param node
+	 *            the node
+	 * @param handler
+	 *            the handler
+	 */
+	public void removeNodeHandler(Preferences node, NodeHandler handler) {
+		synchronized (registrations) {
+			Registration registration = registrations.get(node);
+			if (registration == null
+					|| !registration.nodeHandlers.remove(handler)) {
+				return; // return immediately
+			}
+			if (registration.nodeHandlers.isEmpty()) {
+				try {
+					node.removeNodeChangeListener(registration);
+				} catch (IllegalStateException e) {
+					// the node has been removed, the listener went with it
+				}
+				release(registration);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of nodes the dispatcher has added listeners to.
+	 * 
+	 * @return the number of nodes
+	 */
+	public int getRegisteredNodeCount() {
+		synchronized (registrations) {
+			return registrations.size();
+		}
+	}
+
+	/**
+	 * Returns the registration of <code>node</code>, creating it if
+	 * necessary. The lock of {@link #registrations} must be held.
+	 * 
+	 * @param node
+	 *            the node
+	 * @return the registration
+	 */
+	private Registration registrationOf(Preferences node) {
+		Registration registration = registrations.get(node);
+		if (registration == null) {
+			registration = new Registration(node);
+			registrations.put(node, registration);
+		}
+		return registration;
+	}
+
+	/**
+	 * Forgets <code>registration</code> once it has no handlers left. The
+	 * lock of {@link #registrations} must be held.
+	 * 
+	 * @param registration
+	 *            the registration
+	 */
+	private void release(Registration registration) {
+		if (registration.preferenceHandlers.isEmpty()
+				&& registration.nodeHandlers.isEmpty()) {
+			registrations.remove(registration.node);
+		}
+	}
+
+	/**
+	 * The listeners added to a node on behalf of all of its handlers. Each
+	 * event is queued once for every handler.
+	 */
+	private class Registration implements PreferenceChangeListener,
+			NodeChangeListener {
+
+		/** The node listened to. */
+		private Preferences node;
+		/** The handlers of the preference changes of the node. */
+		private CopyOnWriteArrayList<PreferenceHandler> preferenceHandlers;
+		/** The handlers of the child node changes of the node. */
+		private CopyOnWriteArrayList<NodeHandler> nodeHandlers;
+
+		public Registration(Preferences node) {
+			this.node = node;
+			this.preferenceHandlers = new CopyOnWriteArrayList<PreferenceHandler>();
+			this.nodeHandlers = new CopyOnWriteArrayList<NodeHandler>();
+		}
+
+		@Override
+		public void preferenceChange(PreferenceChangeEvent evt) {
+			for (PreferenceHandler handler : preferenceHandlers) {
+				post(new Event(handler, evt.getKey(), evt.getNewValue()));
+			}
+		}
+
+		@Override
+		public void childAdded(NodeChangeEvent evt) {
+			postChild(evt.getChild().name());
+		}
+
+		@Override
+		public void childRemoved(NodeChangeEvent evt) {
+			postChild(evt.getChild().name());
+		}
+
+		/**
+		 * Queues the change of the child <code>name</code> for each handler of
+		 * the child node changes.
+		 * 
+		 * @param name
+		 *            the child node name
+		 */
+		private void postChild(String name) {
+			for (NodeHandler handler : nodeHandlers) {
+				post(new Event(handler, name));
+			}
+		}
+
+	}
+
+	/**
+	 * Delivers the queued events immediately. This must be called on the
+	 * event dispatch thread.
+	 */
+	public void flush() {
+		dispatch();
+	}
+
+	/**
+	 * Returns the number of events received since the dispatcher was created.
+	 * 
+	 * @return the number of events
+	 */
+	public long getEventCount() {
+		return events.get();
+	}
+
+	/**
+	 * Returns the number of batches delivered since the dispatcher was
+	 * created. Each handler called counts as one batch.
+	 * 
+	 * @return the number of batches
+	 */
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	/**
+	 * Queues <code>event</code> and schedules the delivery of the queued
+	 * events, unless it is scheduled already.
+	 * 
+	 * @param event
+	 *            the event
+	 */
+	private void post(Event event) {
+		queue.offer(event);
+		pending.incrementAndGet();
+		events.incrementAndGet();
+		if (!scheduled.compareAndSet(false, true)) {
+			return; // delivered with the current frame
+		}
+		final Runnable delivery = new Runnable() {
+
+			@Override
+			public void run() {
+				dispatch();
+			}
+		};
+		long delay = frameDelay;
+		if (delay <= 0) {
+			SwingUtilities.invokeLater(delivery);
+		} else {
+			getScheduler().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					SwingUtilities.invokeLater(delivery);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Coalesces the queued events per handler and delivers them. Events
+	 * queued meanwhile are left for the next frame, so a writer faster than
+	 * the event dispatch thread cannot hold it here.
+	 */
+	private void dispatch() {
+		// events queued from now on schedule another frame
+		scheduled.set(false);
+		int count = pending.getAndSet(0);
+		Map<PreferenceHandler, Map<String, String>> preferenceBatches = new LinkedHashMap<PreferenceHandler, Map<String, String>>();
+		Map<NodeHandler, Set<String>> nodeBatches = new LinkedHashMap<NodeHandler, Set<String>>();
+		for (int i = 0; i < count; i++) {
+			Event event = queue.poll();
+			if (event == null) {
+				break;
+			}
+			if (event.preferenceHandler != null) {
+				Map<String, String> batch = preferenceBatches
+						.get(event.preferenceHandler);
+				if (batch == null) {
+					batch = new LinkedHashMap<String, String>();
+					preferenceBatches.put(event.preferenceHandler, batch);
+				}
+				batch.put(event.key, event.value);
+			} else {
+				Set<String> batch = nodeBatches.get(event.nodeHandler);
+				if (batch == null) {
+					batch = new LinkedHashSet<String>();
+					nodeBatches.put(event.nodeHandler, batch);
+				}
+				batch.add(event.key);
+			}
+		}
+		for (Map.Entry<NodeHandler, Set<String>> entry : nodeBatches
+				.entrySet()) {
+			batches.incrementAndGet();
+			try {
+				entry.getKey().childrenChanged(entry.getValue());
+			} catch (RuntimeException e) {
+				// the other handlers still get their batches
+				e.printStackTrace();
+			}
+		}
+		for (Map.Entry<PreferenceHandler, Map<String, String>> entry : preferenceBatches
+				.entrySet()) {
+			batches.incrementAndGet();
+			try {
+				entry.getKey().preferencesChanged(entry.getValue());
+			} catch (RuntimeException e) {
+				// the other handlers still get their batches
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns the scheduler shared by all dispatchers for delaying frames,
+	 * creating it if necessary.
+	 * 
+	 * @return the scheduler
+	 */
+	private static synchronized ScheduledExecutorService getScheduler() {
+		if (scheduler == null) {
+			scheduler = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r,
+									"PreferenceEventDispatcher");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return scheduler;
+	}
+
+}
@@ -0,0 +1,604 @@
+package usr.erichschroeter.jpreferences;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.EventListenerList;
+
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.NodeHandler;
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.PreferenceHandler;
+import usr.erichschroeter.jpreferences.utils.PrefUtils;
+
+/**
+ * A <code>PreferenceFilter</code> decides which nodes of a preference tree are
+ * visible in a {@link FilteredTreeModel}. A node which is not visible hides its
+ * whole branch, so a filter showing a deep node must also accept its
+ * ancestors.
+ * <p>
+ * Filters are asked about a node only when its parent is displayed, so a large
+ * tree is never filtered all at once. They are asked on the event dispatch
+ * thread, so a filter which has to read a whole branch to decide does that
+ * work in {@link #prepare(Preferences...)}, which is called in the background
+ * before the filter is used. The filters provided here answer
+ * {@link #getVisibleChildren(Preferences)} and
+ * {@link #acceptChild(Preferences, String)} from memory, without accessing
+ * the backing store.
+ * 
+ * @author Erich Schroeter
+ */
+public abstract class PreferenceFilter {
+
+	/**
+	 * Returns whether the preference node is visible.
+	 * 
+	 * @param node
+	 *            the preference node
+	 * @return <code>true</code> if visible, else <code>false</code>
+	 */
+	public abstract boolean accept(Preferences node);
+
+	/**
+	 * Returns whether the child <code>name</code> of <code>parent</code> is
+	 * visible. This is asked on the event dispatch thread for each child
+	 * displayed when {@link #getVisibleChildren(Preferences)} returns
+	 * <code>null</code>.
+	 * <p>
+	 * The default implementation asks {@link #accept(Preferences)} about the
+	 * child, which accesses the backing store to check that it exists.
+	 * Filters which can decide from the name override this.
+	 * 
+	 * @param parent
+	 *            the parent preference node
+	 * @param name
+	 *            the child node name
+	 * @return <code>true</code> if visible, else <code>false</code>
+	 */
+	public boolean acceptChild(Preferences parent, String name) {
+		Preferences child = PrefUtils.childIfExists(parent, name);
+		return child != null && accept(child);
+	}
+
+	/**
+	 * Returns whether a tree node is visible. Preference tree nodes are
+	 * visible if their preference node is accepted, any other node is visible.
+	 * 
+	 * @param node
+	 *            the tree node
+	 * @return <code>true</code> if visible, else <code>false</code>
+	 */
+	public boolean isVisible(Object node) {
+		if (node instanceof PreferenceTreeNode) {
+			return accept(((PreferenceTreeNode) node).getPrefObject());
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the names of the visible children of <code>node</code> if the
+	 * filter knows them without reading the backing store, or
+	 * <code>null</code> if each child has to be asked for with
+	 * {@link #accept(Preferences)}.
+	 * 
+	 * @param node
+	 *            the preference node
+	 * @return the visible children names in order, or <code>null</code>
+	 */
+	public String[] getVisibleChildren(Preferences node) {
+		return null;
+	}
+
+	/**
+	 * Reads from the backing store whatever the filter needs to decide which
+	 * nodes below <code>roots</code> are visible. This may take a while for a
+	 * large tree, so it is called off the event dispatch thread before the
+	 * filter is set on a {@link FilteredTreeModel}, and again whenever the
+	 * filter notifies its change listeners.
+	 * <p>
+	 * The default implementation does nothing.
+	 * 
+	 * @see #needsPreparing()
+	 * @param roots
+	 *            the roots of the filtered trees
+	 */
+	public void prepare(Preferences... roots) {
+	}
+
+	/**
+	 * Returns whether {@link #prepare(Preferences...)} has to be called before
+	 * the filter reflects the current preference nodes, either because it
+	 * has not been prepared yet or because the nodes changed since.
+	 * <p>
+	 * The default implementation returns <code>false</code>.
+	 * 
+	 * @return <code>true</code> if the filter needs preparing, else
+	 *         <code>false</code>
+	 */
+	public boolean needsPreparing() {
+		return false;
+	}
+
+	/**
+	 * Adds a listener notified on the event dispatch thread when the
+	 * preference nodes changed such that the filter needs preparing again.
+	 * <p>
+	 * The default implementation does nothing, as the filter never changes.
+	 * 
+	 * @param l
+	 *            the listener
+	 */
+	public void addChangeListener(ChangeListener l) {
+	}
+
+	/**
+	 * Removes a listener added with {@link #addChangeListener(ChangeListener)}.
+	 * 
+	 * @param l
+	 *            the listener
+	 */
+	public void removeChangeListener(ChangeListener l) {
+	}
+
+	/**
+	 * Returns a filter showing only the specified nodes and their ancestors.
+	 * Other tree nodes, such as custom pages, are hidden.
+	 * <p>
+	 * The matches which have been removed are dropped here, which accesses
+	 * the backing store, so the filter should be created off the event
+	 * dispatch thread.
+	 * 
+	 * @param matches
+	 *            the nodes to show
+	 * @return the filter
+	 */
+	public static PreferenceFilter matching(Set<Preferences> matches) {
+		return new MatchFilter(matches);
+	}
+
+	/**
+	 * Returns a filter showing only user preference nodes.
+	 * 
+	 * @return the filter
+	 */
+	public static PreferenceFilter userNodes() {
+		return new PreferenceFilter() {
+
+			@Override
+			public boolean accept(Preferences node) {
+				return node.isUserNode();
+			}
+
+			@Override
+			public boolean acceptChild(Preferences parent, String name) {
+				return parent.isUserNode();
+			}
+		};
+	}
+
+	/**
+	 * Returns a filter showing only system preference nodes.
+	 * 
+	 * @return the filter
+	 */
+	public static PreferenceFilter systemNodes() {
+		return new PreferenceFilter() {
+
+			@Override
+			public boolean accept(Preferences node) {
+				return !node.isUserNode();
+			}
+
+			@Override
+			public boolean acceptChild(Preferences parent, String name) {
+				return !parent.isUserNode();
+			}
+		};
+	}
+
+	/**
+	 * Returns a filter showing the nodes which contain a key starting with
+	 * <code>prefix</code>, and their ancestors. The nodes are found by
+	 * {@link #prepare(Preferences...)}, which has to be called off the event
+	 * dispatch thread before the filter shows any node. While the filter has
+	 * change listeners it listens to the nodes it scanned and notifies them
+	 * when a matching key or a child node is added or removed.
+	 * 
+	 * @param prefix
+	 *            the key prefix
+	 * @return the filter
+	 */
+	public static PreferenceFilter keyPrefix(String prefix) {
+		return new KeyPrefixFilter(prefix);
+	}
+
+	/**
+	 * Returns a filter showing the nodes visible in all of
+	 * <code>filters</code>. <code>null</code> filters are ignored.
+	 * 
+	 * @param filters
+	 *            the filters to combine
+	 * @return the filter
+	 */
+	public static PreferenceFilter and(final PreferenceFilter... filters) {
+		return new PreferenceFilter() {
+
+			@Override
+			public boolean accept(Preferences node) {
+				for (PreferenceFilter filter : filters) {
+					if (filter != null && !filter.accept(node)) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public boolean acceptChild(Preferences parent, String name) {
+				for (PreferenceFilter filter : filters) {
+					if (filter != null && !filter.acceptChild(parent, name)) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public boolean isVisible(Object node) {
+				for (PreferenceFilter filter : filters) {
+					if (filter != null && !filter.isVisible(node)) {
+						return false;
+					}
+				}
+				return true;
+			}
+
+			@Override
+			public void prepare(Preferences... roots) {
+				for (PreferenceFilter filter : filters) {
+					if (filter != null) {
+						filter.prepare(roots);
+					}
+				}
+			}
+
+			@Override
+			public boolean needsPreparing() {
+				for (PreferenceFilter filter : filters) {
+					if (filter != null && filter.needsPreparing()) {
+						return true;
+					}
+				}
+				return false;
+			}
+
+			@Override
+			public void addChangeListener(ChangeListener l) {
+				for (PreferenceFilter filter : filters) {
+					if (filter != null) {
+						filter.addChangeListener(l);
+					}
+				}
+			}
+
+			@Override
+			public void removeChangeListener(ChangeListener l) {
+				for (PreferenceFilter filter : filters) {
+					if (filter != null) {
+						filter.removeChangeListener(l);
+					}
+				}
+			}
+
+			@Override
+			public String[] getVisibleChildren(Preferences node) {
+				for (PreferenceFilter filter : filters) {
+					String[] names = (filter == null) ? null : filter
+							.getVisibleChildren(node);
+					if (names != null) {
+						// narrow the known children by the other filters
+						int count = 0;
+						String[] visible = new String[names.length];
+						for (String name : names) {
+							if (acceptChild(node, name)) {
+								visible[count++] = name;
+							}
+						}
+						String[] result = new String[count];
+						System.arraycopy(visible, 0, result, 0, count);
+						return result;
+					}
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Shows a set of matching nodes and their ancestors. The matches which
+	 * exist are found when the filter is created, so it is then asked without
+	 * accessing the backing store. The tree model drops the children removed
+	 * since.
+	 */
+	private static class MatchFilter extends PreferenceFilter {
+
+		/** The matching nodes which existed when the filter was created. */
+		private Set<Preferences> matches;
+		/** The names of the visible children of each ancestor of a match. */
+		private Map<Preferences, SortedSet<String>> visibleNames;
+		/** The visible children names of each ancestor, in order. */
+		private Map<Preferences, String[]> visibleChildren;
+
+		public MatchFilter(Set<Preferences> matches) {
+			this.matches = new HashSet<Preferences>();
+			this.visibleNames = new HashMap<Preferences, SortedSet<String>>();
+			this.visibleChildren = new HashMap<Preferences, String[]>();
+			if (matches == null) {
+				return; // return immediately
+			}
+			for (Preferences match : matches) {
+				if (!exists(match)) {
+					continue; // a stale match, removed since it was found
+				}
+				this.matches.add(match);
+				Preferences child = match;
+				Preferences parent = child.parent();
+				while (parent != null) {
+					SortedSet<String> names = visibleNames.get(parent);
+					boolean known = (names != null);
+					if (!known) {
+						names = new TreeSet<String>();
+						visibleNames.put(parent, names);
+					}
+					if (!names.add(child.name()) && known) {
+						break; // the ancestors have already been visited
+					}
+					child = parent;
+					parent = child.parent();
+				}
+			}
+			for (Map.Entry<Preferences, SortedSet<String>> entry : visibleNames
+					.entrySet()) {
+				SortedSet<String> names = entry.getValue();
+				visibleChildren.put(entry.getKey(),
+						names.toArray(new String[names.size()]));
+			}
+		}
+
+		/**
+		 * Returns whether <code>node</code> has not been removed.
+		 * 
+		 * @param node
+		 *            the node
+		 * @return <code>true</code> if the node exists, else
+		 *         <code>false</code>
+		 */
+		private static boolean exists(Preferences node) {
+			try {
+				return node.nodeExists("");
+			} catch (BackingStoreException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+
+		@Override
+		public boolean accept(Preferences node) {
+			return matches.contains(node) || visibleNames.containsKey(node);
+		}
+
+		@Override
+		public boolean acceptChild(Preferences parent, String name) {
+			SortedSet<String> names = visibleNames.get(parent);
+			return names != null && names.contains(name);
+		}
+
+		@Override
+		public boolean isVisible(Object node) {
+			// only preference nodes can match a search
+			return (node instanceof PreferenceTreeNode) && super.isVisible(node);
+		}
+
+		@Override
+		public String[] getVisibleChildren(Preferences node) {
+			String[] names = visibleChildren.get(node);
+			return (names == null) ? new String[0] : names.clone();
+		}
+
+	}
+
+	/**
+	 * Shows nodes with a key starting with a prefix, and their ancestors. The
+	 * matching nodes are found in the background by
+	 * {@link #prepare(Preferences...)} and then shown like search matches.
+	 */
+	private static class KeyPrefixFilter extends PreferenceFilter implements
+			PreferenceHandler, NodeHandler {
+
+		/** The key prefix. */
+		private String prefix;
+		/** The nodes found by the last scan, or <code>null</code> if none. */
+		private volatile MatchFilter branches;
+		/** Whether the nodes changed since the last scan. */
+		private volatile boolean stale;
+		/** The nodes scanned last, guarded by <code>this</code>. */
+		private List<Preferences> scanned;
+		/** Whether the {@link #scanned} nodes are listened to. */
+		private boolean listening;
+		/** The listeners notified when the filter becomes stale. */
+		private EventListenerList listenerList;
+
+		public KeyPrefixFilter(String prefix) {
+			this.prefix = prefix;
+			this.stale = true;
+			this.scanned = Collections.emptyList();
+			this.listenerList = new EventListenerList();
+		}
+
+		@Override
+		public boolean accept(Preferences node) {
+			MatchFilter matched = branches;
+			return matched != null && matched.accept(node);
+		}
+
+		@Override
+		public boolean acceptChild(Preferences parent, String name) {
+			MatchFilter matched = branches;
+			return matched != null && matched.acceptChild(parent, name);
+		}
+
+		@Override
+		public String[] getVisibleChildren(Preferences node) {
+			MatchFilter matched = branches;
+			return (matched == null) ? new String[0] : matched
+					.getVisibleChildren(node);
+		}
+
+		@Override
+		public synchronized void prepare(Preferences... roots) {
+			// changes made while scanning mark the filter stale again
+			stale = false;
+			Set<Preferences> matches = new HashSet<Preferences>();
+			List<Preferences> visited = new ArrayList<Preferences>();
+			Set<Preferences> seen = new HashSet<Preferences>();
+			Deque<Preferences> stack = new ArrayDeque<Preferences>();
+			for (Preferences root : roots) {
+				if (root != null) {
+					stack.push(root);
+				}
+			}
+			while (!stack.isEmpty()) {
+				Preferences node = stack.pop();
+				if (!seen.add(node)) {
+					continue; // the roots overlap
+				}
+				try {
+					for (String key : node.keys()) {
+						if (key.startsWith(prefix)) {
+							matches.add(node);
+							break;
+						}
+					}
+					for (String name : node.childrenNames()) {
+						Preferences child = PrefUtils.childIfExists(node, name);
+						if (child != null) {
+							stack.push(child);
+						}
+					}
+					visited.add(node);
+				} catch (BackingStoreException e) {
+					e.printStackTrace();
+				} catch (IllegalStateException e) {
+					// the node has been removed
+				}
+			}
+			branches = new MatchFilter(matches);
+			boolean listen = listening;
+			unlisten();
+			scanned = visited;
+			if (listen) {
+				listen();
+			}
+		}
+
+		@Override
+		public boolean needsPreparing() {
+			return stale;
+		}
+
+		@Override
+		public synchronized void addChangeListener(ChangeListener l) {
+			listenerList.add(ChangeListener.class, l);
+			if (!listening) {
+				// changes made while not listening went unnoticed
+				stale = true;
+				listen();
+			}
+		}
+
+		@Override
+		public synchronized void removeChangeListener(ChangeListener l) {
+			listenerList.remove(ChangeListener.class, l);
+			if (listenerList.getListenerCount() == 0) {
+				unlisten();
+			}
+		}
+
+		/**
+		 * Listens to the changes of the {@link #scanned} nodes, through the
+		 * listeners the default dispatcher shares among the handlers of each
+		 * node.
+		 */
+		private void listen() {
+			PreferenceEventDispatcher dispatcher = PreferenceEventDispatcher
+					.getDefault();
+			for (Preferences node : scanned) {
+				try {
+					dispatcher.addPreferenceHandler(node, this);
+					dispatcher.addNodeHandler(node, this);
+				} catch (IllegalStateException e) {
+					// the node has been removed
+				}
+			}
+			listening = true;
+		}
+
+		/** Stops listening to the changes of the {@link #scanned} nodes. */
+		private void unlisten() {
+			if (!listening) {
+				return; // return immediately
+			}
+			PreferenceEventDispatcher dispatcher = PreferenceEventDispatcher
+					.getDefault();
+			for (Preferences node : scanned) {
+				dispatcher.removePreferenceHandler(node, this);
+				dispatcher.removeNodeHandler(node, this);
+			}
+			listening = false;
+		}
+
+		@Override
+		public void preferencesChanged(Map<String, String> changes) {
+			for (String key : changes.keySet()) {
+				if (key.startsWith(prefix)) {
+					invalidate();
+					return; // return immediately
+				}
+			}
+		}
+
+		@Override
+		public void childrenChanged(Set<String> names) {
+			invalidate();
+		}
+
+		/**
+		 * Marks the filter stale and notifies the change listeners, unless it
+		 * already was.
+		 */
+		private void invalidate() {
+			if (stale) {
+				return; // the listeners have already been notified
+			}
+			stale = true;
+			ChangeEvent e = new ChangeEvent(this);
+			for (ChangeListener l : listenerList
+					.getListeners(ChangeListener.class)) {
+				l.stateChanged(e);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,572 @@
+package usr.erichschroeter.jpreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.NodeHandler;
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.PreferenceHandler;
+import usr.erichschroeter.jpreferences.utils.PrefUtils;
+
+/**
+ * A <code>PreferenceSearchIndex</code> is an inverted index of the tokens
+ * found in the node names, keys and values of one or more {@link Preferences}
+ * subtrees. It is built on a background thread and kept up to date by
+ * watching the indexed nodes through the
+ * {@link PreferenceEventDispatcher#getDefault() default dispatcher}, which
+ * shares its listeners with the tree and table models watching the same
+ * nodes.
+ * <p>
+ * Queries match nodes containing every token of the query, where each query
+ * token may be the prefix of an indexed token, so results can be refined as
+ * the user types. Queries run on their own background thread and may be
+ * cancelled through the returned <code>Future</code>.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceSearchIndex {
+
+	/** The default maximum number of nodes returned by a query. */
+	public static final int DEFAULT_MAX_RESULTS = 1000;
+	/** The maximum number of characters of a value which are indexed. */
+	private static final int MAX_VALUE_LENGTH = 256;
+
+	/** The root nodes of the indexed subtrees. */
+	private Preferences[] roots;
+	/** The nodes containing each token, sorted by token. */
+	private TreeMap<String, Set<Preferences>> postings;
+	/** The tokens indexed for each node. */
+	private Map<Preferences, Set<String>> nodeTokens;
+	/** Guards {@link #postings} and {@link #nodeTokens}. */
+	private ReadWriteLock lock;
+	/** The nodes which changed and are waiting to be re-indexed. */
+	private Set<Preferences> dirty;
+	/** The watcher of each indexed node, guarded by {@link #lock}. */
+	private Map<Preferences, Watcher> watchers;
+	/** The thread building and updating the index. */
+	private ExecutorService indexer;
+	/** The thread running queries. */
+	private ExecutorService searcher;
+	/** Whether the initial build has completed. */
+	private volatile boolean built;
+	/** Whether the index has been disposed, guarded by {@link #lock}. */
+	private boolean disposed;
+
+	/**
+	 * Constructs a <code>PreferenceSearchIndex</code> over the subtrees rooted
+	 * at <code>roots</code>. The index is not built until {@link #build()} is
+	 * called.
+	 * 
+	 * @param roots
+	 *            the root nodes of the subtrees to index
+	 */
+	public PreferenceSearchIndex(Preferences... roots) {
+		this.roots = roots;
+		this.postings = new TreeMap<String, Set<Preferences>>();
+		this.nodeTokens = new HashMap<Preferences, Set<String>>();
+		this.lock = new ReentrantReadWriteLock();
+		this.dirty = new LinkedHashSet<Preferences>();
+		this.indexer = Executors.newSingleThreadExecutor(createThreadFactory(
+				"PreferenceSearchIndex-indexer"));
+		this.searcher = Executors.newSingleThreadExecutor(createThreadFactory(
+				"PreferenceSearchIndex-searcher"));
+		this.watchers = new HashMap<Preferences, Watcher>();
+	}
+
+	/**
+	 * Re-indexes a node when one of its preferences changes, and indexes or
+	 * un-indexes its children as they are added or removed.
+	 */
+	private class Watcher implements PreferenceHandler, NodeHandler {
+
+		/** The node watched. */
+		private Preferences node;
+
+		public Watcher(Preferences node) {
+			this.node = node;
+		}
+
+		@Override
+		public void preferencesChanged(Map<String, String> changes) {
+			markDirty(node);
+		}
+
+		@Override
+		public void childrenChanged(final Set<String> names) {
+			submit(new Runnable() {
+
+				@Override
+				public void run() {
+					reindexChildren(node, names);
+				}
+			});
+		}
+
+	}
+
+	/**
+	 * Creates a factory of daemon threads with the specified name.
+	 * 
+	 * @param name
+	 *            the thread name
+	 * @return the thread factory
+	 */
+	private static ThreadFactory createThreadFactory(final String name) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Starts building the index in the background.
+	 * 
+	 * @return the future completing when the index has been built
+	 */
+	public Future<?> build() {
+		return indexer.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				Set<Preferences> visited = new HashSet<Preferences>();
+				for (Preferences root : roots) {
+					if (root != null) {
+						indexSubtree(root, visited);
+					}
+				}
+				built = true;
+			}
+		});
+	}
+
+	/**
+	 * Returns whether the initial build of the index has completed. Queries
+	 * made before then only match the nodes indexed so far.
+	 * 
+	 * @return <code>true</code> if built, else <code>false</code>
+	 */
+	public boolean isBuilt() {
+		return built;
+	}
+
+	/**
+	 * Stops listening to the indexed nodes and stops the background threads.
+	 * The index should not be used afterwards.
+	 */
+	public void dispose() {
+		indexer.shutdownNow();
+		searcher.shutdownNow();
+		lock.writeLock().lock();
+		try {
+			// an indexing task still running cannot listen to nodes anymore
+			disposed = true;
+			for (Preferences node : nodeTokens.keySet()) {
+				unlisten(node);
+			}
+			nodeTokens.clear();
+			postings.clear();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Searches the index in the background.
+	 * 
+	 * @see #search(String, int)
+	 * @param query
+	 *            the text to search for
+	 * @return the future result
+	 */
+	public Future<Set<Preferences>> search(String query) {
+		return search(query, DEFAULT_MAX_RESULTS);
+	}
+
+	/**
+	 * Searches the index in the background, returning the nodes containing
+	 * every token in <code>query</code>. A query token matches any indexed
+	 * token it is a prefix of. Cancelling the returned future interrupts the
+	 * query.
+	 * 
+	 * @param query
+	 *            the text to search for
+	 * @param maxResults
+	 *            the maximum number of nodes to return
+	 * @return the future result
+	 */
+	public Future<Set<Preferences>> search(final String query,
+			final int maxResults) {
+		return searcher.submit(new Callable<Set<Preferences>>() {
+
+			@Override
+			public Set<Preferences> call() throws Exception {
+				return find(query, maxResults);
+			}
+		});
+	}
+
+	/**
+	 * Searches the index on the calling thread.
+	 * 
+	 * @param query
+	 *            the text to search for
+	 * @param maxResults
+	 *            the maximum number of nodes to return
+	 * @return the matching nodes
+	 * @throws InterruptedException
+	 *             if the thread was interrupted while searching
+	 */
+	public Set<Preferences> find(String query, int maxResults)
+			throws InterruptedException {
+		List<String> tokens = new ArrayList<String>(tokenize(query));
+		Set<Preferences> result = null;
+		lock.readLock().lock();
+		try {
+			for (String token : tokens) {
+				Set<Preferences> matches = new HashSet<Preferences>();
+				SortedMap<String, Set<Preferences>> range = postings.subMap(
+						token, token + Character.MAX_VALUE);
+				for (Set<Preferences> nodes : range.values()) {
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
+					if (result == null) {
+						matches.addAll(nodes);
+					} else {
+						for (Preferences node : nodes) {
+							if (result.contains(node)) {
+								matches.add(node);
+							}
+						}
+					}
+				}
+				result = matches;
+				if (result.isEmpty()) {
+					break;
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		if (result == null) {
+			return Collections.emptySet();
+		}
+		Set<Preferences> limited = new HashSet<Preferences>();
+		for (Preferences node : result) {
+			if (limited.size() >= maxResults) {
+				break;
+			}
+			limited.add(node);
+		}
+		return limited;
+	}
+
+	/**
+	 * Splits <code>text</code> into lower case tokens of letters and digits.
+	 * 
+	 * @param text
+	 *            the text to split
+	 * @return the tokens
+	 */
+	protected static Set<String> tokenize(String text) {
+		Set<String> tokens = new LinkedHashSet<String>();
+		if (text != null) {
+			for (String token : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+				if (token.length() > 0) {
+					tokens.add(token);
+				}
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Submits a task to the indexing thread, ignoring it if the index has been
+	 * disposed.
+	 * 
+	 * @param task
+	 *            the task to run
+	 */
+	private void submit(Runnable task) {
+		try {
+			indexer.execute(task);
+		} catch (RejectedExecutionException e) {
+			// the index has been disposed
+		}
+	}
+
+	/**
+	 * Marks <code>node</code> to be re-indexed. Changes are coalesced, so a
+	 * node changed many times before the indexing thread gets to it is only
+	 * re-indexed once.
+	 * 
+	 * @param node
+	 *            the node which changed
+	 */
+	private void markDirty(Preferences node) {
+		boolean schedule;
+		synchronized (dirty) {
+			schedule = dirty.isEmpty();
+			dirty.add(node);
+		}
+		if (schedule) {
+			submit(new Runnable() {
+
+				@Override
+				public void run() {
+					List<Preferences> nodes;
+					synchronized (dirty) {
+						nodes = new ArrayList<Preferences>(dirty);
+						dirty.clear();
+					}
+					for (Preferences node : nodes) {
+						indexNode(node);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Indexes the children <code>names</code> of <code>parent</code> again
+	 * after they were added or removed. This must be called on the indexing
+	 * thread.
+	 * 
+	 * @param parent
+	 *            the parent node
+	 * @param names
+	 *            the names of the children added or removed
+	 */
+	private void reindexChildren(Preferences parent, Set<String> names) {
+		String path = parent.absolutePath();
+		if (!path.endsWith("/")) {
+			path += "/";
+		}
+		for (String name : names) {
+			// a child removed and added again is a different node
+			removeSubtree(path + name, parent.isUserNode());
+			Preferences child = PrefUtils.childIfExists(parent, name);
+			if (child != null) {
+				indexSubtree(child, new HashSet<Preferences>());
+			}
+		}
+	}
+
+	/**
+	 * Indexes <code>node</code> and its descendants. This must be called on
+	 * the indexing thread.
+	 * 
+	 * @param node
+	 *            the root of the subtree
+	 * @param visited
+	 *            the nodes already indexed, to avoid indexing overlapping
+	 *            roots twice
+	 */
+	private void indexSubtree(Preferences node, Set<Preferences> visited) {
+		if (Thread.currentThread().isInterrupted() || !visited.add(node)) {
+			return; // return immediately
+		}
+		String[] children;
+		try {
+			indexNode(node);
+			children = node.childrenNames();
+		} catch (BackingStoreException e) {
+			e.printStackTrace();
+			return;
+		} catch (IllegalStateException e) {
+			// the node was removed while indexing
+			return;
+		}
+		for (String child : children) {
+			Preferences childNode = PrefUtils.childIfExists(node, child);
+			if (childNode != null) {
+				indexSubtree(childNode, visited);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the tokens indexed for <code>node</code> with the tokens of its
+	 * path, keys and values, and listens to it for changes. This must be
+	 * called on the indexing thread.
+	 * 
+	 * @param node
+	 *            the node to index
+	 */
+	private void indexNode(Preferences node) {
+		Set<String> tokens = new HashSet<String>();
+		try {
+			tokens.addAll(tokenize(node.absolutePath()));
+			for (String key : node.keys()) {
+				tokens.addAll(tokenize(key));
+				String value = node.get(key, null);
+				if (value != null && value.length() > MAX_VALUE_LENGTH) {
+					value = value.substring(0, MAX_VALUE_LENGTH);
+				}
+				tokens.addAll(tokenize(value));
+			}
+		} catch (BackingStoreException e) {
+			e.printStackTrace();
+			return;
+		} catch (IllegalStateException e) {
+			// the node has been removed
+			unindex(node);
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (disposed) {
+				return; // return immediately
+			}
+			Set<String> old = nodeTokens.put(node, tokens);
+			if (old == null) {
+				listen(node);
+			} else {
+				for (String token : old) {
+					if (!tokens.contains(token)) {
+						removePosting(token, node);
+					}
+				}
+			}
+			for (String token : tokens) {
+				Set<Preferences> nodes = postings.get(token);
+				if (nodes == null) {
+					nodes = new HashSet<Preferences>();
+					postings.put(token, nodes);
+				}
+				nodes.add(node);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes <code>node</code> from the index.
+	 * 
+	 * @param node
+	 *            the node to remove
+	 */
+	private void unindex(Preferences node) {
+		lock.writeLock().lock();
+		try {
+			Set<String> old = nodeTokens.remove(node);
+			if (old != null) {
+				for (String token : old) {
+					removePosting(token, node);
+				}
+				unlisten(node);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes every indexed node at or below <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute path of the removed node
+	 * @param user
+	 *            whether the removed node is in the user preference tree
+	 */
+	private void removeSubtree(String path, boolean user) {
+		String prefix = path.endsWith("/") ? path : path + "/";
+		List<Preferences> removed = new ArrayList<Preferences>();
+		lock.readLock().lock();
+		try {
+			for (Preferences node : nodeTokens.keySet()) {
+				String p = node.absolutePath();
+				if (node.isUserNode() == user
+						&& (p.equals(path) || p.startsWith(prefix))) {
+					removed.add(node);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		for (Preferences node : removed) {
+			unindex(node);
+		}
+	}
+
+	/**
+	 * Removes <code>node</code> from the postings of <code>token</code>. The
+	 * write lock must be held.
+	 * 
+	 * @param token
+	 *            the token
+	 * @param node
+	 *            the node
+	 */
+	private void removePosting(String token, Preferences node) {
+		Set<Preferences> nodes = postings.get(token);
+		if (nodes != null) {
+			nodes.remove(node);
+			if (nodes.isEmpty()) {
+				postings.remove(token);
+			}
+		}
+	}
+
+	/**
+	 * Starts watching <code>node</code> for changes. The write lock must be
+	 * held.
+	 * 
+	 * @param node
+	 *            the node
+	 */
+	private void listen(Preferences node) {
+		Watcher watcher = new Watcher(node);
+		PreferenceEventDispatcher dispatcher = PreferenceEventDispatcher
+				.getDefault();
+		try {
+			dispatcher.addPreferenceHandler(node, watcher);
+			dispatcher.addNodeHandler(node, watcher);
+			watchers.put(node, watcher);
+		} catch (IllegalStateException e) {
+			// the node has been removed
+			dispatcher.removePreferenceHandler(node, watcher);
+		}
+	}
+
+	/**
+	 * Stops watching <code>node</code> for changes. The write lock must be
+	 * held.
+	 * 
+	 * @param node
+	 *            the node
+	 */
+	private void unlisten(Preferences node) {
+		Watcher watcher = watchers.remove(node);
+		if (watcher != null) {
+			PreferenceEventDispatcher dispatcher = PreferenceEventDispatcher
+					.getDefault();
+			dispatcher.removePreferenceHandler(node, watcher);
+			dispatcher.removeNodeHandler(node, watcher);
+		}
+	}
+
+}
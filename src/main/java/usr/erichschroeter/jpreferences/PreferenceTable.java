@@ -1,32 +1,134 @@
 package usr.erichschroeter.jpreferences;
 
+import java.awt.Color;
 import java.awt.Component;
+import java.awt.Container;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Toolkit;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.event.ActionEvent;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.prefs.Preferences;
 
 import javax.swing.AbstractAction;
+import javax.swing.DefaultCellEditor;
+import javax.swing.DefaultRowSorter;
 import javax.swing.GroupLayout;
 import javax.swing.GroupLayout.Alignment;
+import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTable;
 import javax.swing.JTextField;
+import javax.swing.JViewport;
 import javax.swing.KeyStroke;
+import javax.swing.RowSorter;
+import javax.swing.border.LineBorder;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableCellEditor;
+import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableModel;
 
+import usr.erichschroeter.jpreferences.type.PreferenceType;
+
 /**
  * A <code>PreferenceTable</code> displays {@link Preferences} in a table. It
  * allows different features to be enabled/disabled which change the way the
  * user can interact with preferences.
+ * <p>
+ * When the model is {@link PreferenceTableModel#isPagingEnabled() paging}, the
+ * table is virtualized: the rows around the viewport are prefetched as it
+ * scrolls, and all rows have the same height, so only the rows near the
+ * viewport are ever read. For the same reason the values cannot be sorted
+ * while paging, since sorting them would read every value.
+ * <p>
+ * Rows copied from the table, or any text of one <code>key=value</code> or
+ * tab separated key and value per line, may be pasted into the table. Pasted
+ * and deleted rows are applied to the model in bulk.
+ * <p>
+ * When the model has a {@link PreferenceTableModel#getTypeRegistry() type
+ * registry}, each value is rendered and edited according to its type, so
+ * booleans are check boxes and numbers are right aligned and validated, and a
+ * row sorter orders values by {@link #VALUE_ORDER}.
  * 
  * @author Erich Schroeter
  */
 @SuppressWarnings("serial")
 public class PreferenceTable extends JTable {
 
+	/**
+	 * Orders values numerically if both are numbers, and otherwise values of
+	 * the same kind naturally and values of different kinds by kind.
+	 */
+	public static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+
+		/** Compares strings as the default row sorter does. */
+		private Collator collator = Collator.getInstance();
+
+		@Override
+		public int compare(Object a, Object b) {
+			int kind = kind(a) - kind(b);
+			if (kind != 0) {
+				return kind;
+			}
+			if (a instanceof Number) {
+				Number x = (Number) a;
+				Number y = (Number) b;
+				if ((x instanceof Integer || x instanceof Long)
+						&& (y instanceof Integer || y instanceof Long)) {
+					long l = x.longValue();
+					long m = y.longValue();
+					return (l < m) ? -1 : ((l == m) ? 0 : 1);
+				}
+				return Double.compare(x.doubleValue(), y.doubleValue());
+			} else if (a instanceof Boolean) {
+				return ((Boolean) a).compareTo((Boolean) b);
+			} else if (a instanceof byte[]) {
+				byte[] x = (byte[]) a;
+				byte[] y = (byte[]) b;
+				for (int i = 0; i < x.length && i < y.length; i++) {
+					int diff = (x[i] & 0xff) - (y[i] & 0xff);
+					if (diff != 0) {
+						return diff;
+					}
+				}
+				return x.length - y.length;
+			}
+			return collator.compare(String.valueOf(a), String.valueOf(b));
+		}
+
+		/**
+		 * Returns the kind of <code>value</code>, the order in which values
+		 * of different kinds are sorted.
+		 */
+		private int kind(Object value) {
+			if (value instanceof Number) {
+				return 0;
+			} else if (value instanceof Boolean) {
+				return 1;
+			} else if (value instanceof byte[]) {
+				return 2;
+			}
+			return 3;
+		}
+	};
+
 	/** The action that handles deleting preferences. */
 	private AbstractAction deleteAction = new AbstractAction() {
 
@@ -45,6 +147,25 @@ public class PreferenceTable extends JTable {
 		}
 
 	};
+	/** The action that handles pasting preferences. */
+	private AbstractAction pasteAction = new AbstractAction() {
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			paste();
+		}
+
+	};
+	/** The editors of the value types, created when first needed. */
+	private Map<PreferenceType<?>, TableCellEditor> typedEditors = new HashMap<PreferenceType<?>, TableCellEditor>();
+	/** Prefetches the rows around the viewport when it scrolls. */
+	private ChangeListener prefetchListener = new ChangeListener() {
+
+		@Override
+		public void stateChanged(ChangeEvent e) {
+			prefetchVisibleRows();
+		}
+	};
 
 	/**
 	 * Constructs a default <code>PreferenceTable</code>.
@@ -67,6 +188,10 @@ public class PreferenceTable extends JTable {
 		// bind the Ctrl + N key stroke to add preferences
 		bindAddKeyStroke(KeyStroke.getKeyStroke(KeyEvent.VK_N,
 				InputEvent.CTRL_DOWN_MASK));
+		// bind the Ctrl + V key stroke to paste preferences
+		bindPasteKeyStroke(KeyStroke.getKeyStroke(KeyEvent.VK_V,
+				InputEvent.CTRL_DOWN_MASK));
+		setDefaultRenderer(byte[].class, new ByteArrayRenderer());
 
 		// adding a preference can be handled a couple different ways
 		// 1. add a row and let the user modify the values
@@ -87,6 +212,200 @@ public class PreferenceTable extends JTable {
 		return (PreferenceTableModel) getModel();
 	}
 
+	/**
+	 * Returns whether the table is virtualized, which is the case when its
+	 * model is a paging <code>PreferenceTableModel</code>.
+	 * 
+	 * @return <code>true</code> if virtualized, else <code>false</code>
+	 */
+	public boolean isVirtualized() {
+		TableModel model = getModel();
+		return (model instanceof PreferenceTableModel)
+				&& ((PreferenceTableModel) model).isPagingEnabled();
+	}
+
+	/**
+	 * Prefetches the rows in the viewport, and a viewport's worth of rows
+	 * above and below it, if the table is virtualized.
+	 */
+	protected void prefetchVisibleRows() {
+		if (!isVirtualized() || getRowCount() == 0) {
+			return; // return immediately
+		}
+		Rectangle visible = getVisibleRect();
+		int first = rowAtPoint(visible.getLocation());
+		int last = rowAtPoint(new Point(visible.x, visible.y + visible.height
+				- 1));
+		if (first < 0) {
+			first = 0;
+		}
+		if (last < 0) {
+			last = getRowCount() - 1;
+		}
+		int window = last - first + 1;
+		first = Math.max(first - window, 0);
+		last = Math.min(last + window, getRowCount() - 1);
+		PreferenceTableModel model = getPreferenceTableModel();
+		if (getRowSorter() == null) {
+			model.prefetch(first, last);
+		} else {
+			for (int row = first; row <= last; row++) {
+				int modelRow = convertRowIndexToModel(row);
+				model.prefetch(modelRow, modelRow);
+			}
+		}
+	}
+
+	/**
+	 * Sets the height of <code>row</code>, unless the table is virtualized in
+	 * which case all rows keep the same height.
+	 */
+	@Override
+	public void setRowHeight(int row, int rowHeight) {
+		if (!isVirtualized()) {
+			super.setRowHeight(row, rowHeight);
+		}
+	}
+
+	/**
+	 * Returns whether the table holds typed values, which is the case when its
+	 * model is a <code>PreferenceTableModel</code> with a type registry.
+	 * 
+	 * @return <code>true</code> if typed, else <code>false</code>
+	 */
+	public boolean isTyped() {
+		TableModel model = getModel();
+		return (model instanceof PreferenceTableModel)
+				&& ((PreferenceTableModel) model).getTypeRegistry() != null;
+	}
+
+	/**
+	 * Returns whether <code>column</code> of the view is the value column of a
+	 * typed table.
+	 * 
+	 * @param column
+	 *            the view column
+	 * @return <code>true</code> if typed values are in the column
+	 */
+	private boolean isTypedValueColumn(int column) {
+		return isTyped()
+				&& convertColumnIndexToModel(column) == PreferenceTableModel.VALUE_COLUMN;
+	}
+
+	/**
+	 * Returns the renderer of the class of the value in a typed value column,
+	 * otherwise the renderer of the column.
+	 */
+	@Override
+	public TableCellRenderer getCellRenderer(int row, int column) {
+		if (isTypedValueColumn(column)) {
+			Object value = getValueAt(row, column);
+			if (value != null) {
+				return getDefaultRenderer(value.getClass());
+			}
+		}
+		return super.getCellRenderer(row, column);
+	}
+
+	/**
+	 * Returns the editor of the type of the value in a typed value column,
+	 * otherwise the editor of the column.
+	 */
+	@Override
+	public TableCellEditor getCellEditor(int row, int column) {
+		if (isTypedValueColumn(column)) {
+			PreferenceType<?> type = getPreferenceTableModel().getValueType(
+					convertRowIndexToModel(row));
+			if (type == PreferenceType.BOOLEAN) {
+				return getDefaultEditor(Boolean.class);
+			} else if (type != PreferenceType.STRING) {
+				TableCellEditor editor = typedEditors.get(type);
+				if (editor == null) {
+					editor = new TypedEditor(type);
+					typedEditors.put(type, editor);
+				}
+				return editor;
+			}
+		}
+		return super.getCellEditor(row, column);
+	}
+
+	/**
+	 * Sets the row sorter, ordering the values of a
+	 * <code>DefaultRowSorter</code> by {@link #VALUE_ORDER}, unless the table
+	 * is virtualized in which case the values are not sortable.
+	 */
+	@Override
+	public void setRowSorter(RowSorter<? extends TableModel> sorter) {
+		if (sorter instanceof DefaultRowSorter<?, ?>
+				&& getModel() instanceof PreferenceTableModel) {
+			((DefaultRowSorter<?, ?>) sorter).setComparator(
+					PreferenceTableModel.VALUE_COLUMN, VALUE_ORDER);
+		}
+		super.setRowSorter(sorter);
+		updateValueSorting();
+	}
+
+	/**
+	 * Updates whether the values are sortable when the whole model changed,
+	 * since paging may have been enabled or disabled.
+	 */
+	@Override
+	public void tableChanged(TableModelEvent e) {
+		super.tableChanged(e);
+		if (e == null || e.getFirstRow() == TableModelEvent.HEADER_ROW
+				|| e.getLastRow() == Integer.MAX_VALUE) {
+			updateValueSorting();
+		}
+	}
+
+	/**
+	 * Makes the values of a <code>DefaultRowSorter</code> sortable unless the
+	 * table is virtualized. Sorting values which have not been read would
+	 * read every page, and order the rows by their placeholder until then.
+	 */
+	private void updateValueSorting() {
+		RowSorter<? extends TableModel> sorter = getRowSorter();
+		if (!(sorter instanceof DefaultRowSorter<?, ?>)
+				|| !(getModel() instanceof PreferenceTableModel)) {
+			return; // return immediately
+		}
+		DefaultRowSorter<?, ?> rowSorter = (DefaultRowSorter<?, ?>) sorter;
+		boolean sortable = !isVirtualized();
+		if (rowSorter.isSortable(PreferenceTableModel.VALUE_COLUMN) == sortable) {
+			return; // return immediately
+		}
+		rowSorter.setSortable(PreferenceTableModel.VALUE_COLUMN, sortable);
+		if (!sortable) {
+			// stop sorting by the values if they were sorted
+			List<RowSorter.SortKey> keys = new ArrayList<RowSorter.SortKey>();
+			for (RowSorter.SortKey key : rowSorter.getSortKeys()) {
+				if (key.getColumn() != PreferenceTableModel.VALUE_COLUMN) {
+					keys.add(key);
+				}
+			}
+			rowSorter.setSortKeys(keys);
+		}
+	}
+
+	@Override
+	protected void configureEnclosingScrollPane() {
+		super.configureEnclosingScrollPane();
+		Container parent = getParent();
+		if (parent instanceof JViewport) {
+			((JViewport) parent).addChangeListener(prefetchListener);
+		}
+	}
+
+	@Override
+	protected void unconfigureEnclosingScrollPane() {
+		super.unconfigureEnclosingScrollPane();
+		Container parent = getParent();
+		if (parent instanceof JViewport) {
+			((JViewport) parent).removeChangeListener(prefetchListener);
+		}
+	}
+
 	/**
 	 * Handles adding a new preference. This displays a dialog for the user to
 	 * enter a key and value.
@@ -187,13 +506,29 @@ public class PreferenceTable extends JTable {
 		}
 	}
 
+	/**
+	 * Binds the specified key strokes to paste preferences.
+	 * 
+	 * @see #unbindKeyStroke(KeyStroke...)
+	 * @param keyStrokes
+	 *            key strokes for pasting preferences
+	 */
+	public void bindPasteKeyStroke(KeyStroke... keyStrokes) {
+		for (KeyStroke k : keyStrokes) {
+			getInputMap().put(k, k.toString());
+			getActionMap().put(k.toString(), pasteAction);
+		}
+	}
+
 	/**
 	 * Unbinds the specified key strokes from its action. This can be used for
-	 * unbinding key strokes bound from {@link #bindAddKeyStroke(KeyStroke...)}
-	 * and {@link #bindDeleteKeyStroke(KeyStroke...)}.
+	 * unbinding key strokes bound from {@link #bindAddKeyStroke(KeyStroke...)},
+	 * {@link #bindDeleteKeyStroke(KeyStroke...)} and
+	 * {@link #bindPasteKeyStroke(KeyStroke...)}.
 	 * 
 	 * @see #bindAddKeyStroke(KeyStroke...)
 	 * @see #bindDeleteKeyStroke(KeyStroke...)
+	 * @see #bindPasteKeyStroke(KeyStroke...)
 	 * @param keyStrokes
 	 *            key strokes for adding preferences
 	 */
@@ -204,16 +539,165 @@ public class PreferenceTable extends JTable {
 		}
 	}
 
+	/**
+	 * Deletes the preferences of the specified view rows at once, if deleting
+	 * is allowed.
+	 * 
+	 * @see PreferenceTableModel#removeAll(java.util.Collection)
+	 * @param rows
+	 *            the view rows to delete
+	 */
 	public void deleteRows(int... rows) {
 		if (getPreferenceTableModel().isDeleteAllowed()) {
 			TableModel model = getModel();
 			if (model instanceof PreferenceTableModel) {
 				PreferenceTableModel prefModel = (PreferenceTableModel) model;
+				// resolve the keys first since rows shift as they are removed
+				String[] keys = new String[rows.length];
 				for (int i = 0; i < rows.length; i++) {
-					prefModel.removeRow(rows[i]);
+					keys[i] = (String) prefModel.getValueAt(
+							convertRowIndexToModel(rows[i]), 0);
 				}
+				prefModel.removeAll(Arrays.asList(keys));
+			}
+		}
+	}
+
+	/**
+	 * Pastes the text on the system clipboard.
+	 * 
+	 * @see #pasteRows(String)
+	 */
+	public void paste() {
+		String text;
+		try {
+			text = (String) Toolkit.getDefaultToolkit().getSystemClipboard()
+					.getData(DataFlavor.stringFlavor);
+		} catch (UnsupportedFlavorException e) {
+			return; // nothing to paste
+		} catch (IllegalStateException e) {
+			return; // the clipboard is in use
+		} catch (IOException e) {
+			e.printStackTrace();
+			return; // return immediately
+		}
+		pasteRows(text);
+	}
+
+	/**
+	 * Puts the preferences in <code>text</code> at once. Each line holds a key
+	 * and value separated by a tab, as copied from a table, or else by the
+	 * first <code>=</code>. Lines without a key are ignored.
+	 * <p>
+	 * New keys are only added if adding is allowed, and existing keys only
+	 * changed if editing values is allowed.
+	 * 
+	 * @see PreferenceTableModel#putAll(Map)
+	 * @param text
+	 *            the text to paste
+	 * @return the number of preferences added or changed
+	 */
+	public int pasteRows(String text) {
+		TableModel model = getModel();
+		if (!(model instanceof PreferenceTableModel) || text == null) {
+			return 0;
+		}
+		PreferenceTableModel prefModel = (PreferenceTableModel) model;
+		Map<String, String> entries = new LinkedHashMap<String, String>();
+		for (String line : text.split("\r?\n")) {
+			int separator = line.indexOf('\t');
+			if (separator < 0) {
+				separator = line.indexOf('=');
+			}
+			String key = (separator < 0) ? line : line.substring(0, separator);
+			String value = (separator < 0) ? "" : line.substring(separator + 1);
+			if (key.length() == 0) {
+				continue;
+			}
+			boolean exists = prefModel.indexOf(key) >= 0;
+			if (exists ? prefModel.isEditValuesAllowed() : prefModel
+					.isAddAllowed()) {
+				entries.put(key, value);
+			}
+		}
+		return prefModel.putAll(entries);
+	}
+
+	/**
+	 * Edits a typed value as text, which must parse as the type to be
+	 * accepted. Otherwise editing does not stop and the field is outlined in
+	 * red.
+	 */
+	private static class TypedEditor extends DefaultCellEditor {
+
+		/** The type of the values edited. */
+		private PreferenceType<?> type;
+		/** The value parsed from the text when editing stopped. */
+		private Object value;
+
+		public TypedEditor(PreferenceType<?> type) {
+			super(new JTextField());
+			this.type = type;
+			if (Number.class.isAssignableFrom(type.getValueClass())) {
+				((JTextField) getComponent())
+						.setHorizontalAlignment(JTextField.RIGHT);
+			}
+		}
+
+		@Override
+		public Component getTableCellEditorComponent(JTable table,
+				Object value, boolean isSelected, int row, int column) {
+			this.value = null;
+			JComponent field = (JComponent) getComponent();
+			field.setBorder(new LineBorder(Color.black));
+			field.setToolTipText(null);
+			return super.getTableCellEditorComponent(table,
+					type.formatValue(value), isSelected, row, column);
+		}
+
+		@Override
+		public boolean stopCellEditing() {
+			try {
+				value = type.parse((String) super.getCellEditorValue());
+			} catch (IllegalArgumentException e) {
+				// keep editing, so the invalid value never reaches the model
+				JComponent field = (JComponent) getComponent();
+				field.setBorder(new LineBorder(Color.red));
+				field.setToolTipText("Not a valid " + type.getName() + " value");
+				return false;
 			}
+			return super.stopCellEditing();
 		}
+
+		@Override
+		public Object getCellEditorValue() {
+			return value;
+		}
+
+	}
+
+	/** Renders a byte array as its length and leading bytes in hexadecimal. */
+	private static class ByteArrayRenderer extends DefaultTableCellRenderer {
+
+		/** The number of leading bytes rendered. */
+		private static final int PREVIEW_LENGTH = 16;
+
+		@Override
+		protected void setValue(Object value) {
+			byte[] bytes = (byte[]) value;
+			StringBuilder text = new StringBuilder();
+			text.append('(').append(bytes.length).append(" bytes)");
+			for (int i = 0; i < bytes.length && i < PREVIEW_LENGTH; i++) {
+				text.append(' ').append(
+						Integer.toHexString((bytes[i] & 0xff) | 0x100)
+								.substring(1));
+			}
+			if (bytes.length > PREVIEW_LENGTH) {
+				text.append(" ...");
+			}
+			setText(text.toString());
+		}
+
 	}
 
 	public void addRow(String key, Object value) {
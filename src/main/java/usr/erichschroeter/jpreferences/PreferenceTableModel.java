@@ -1,15 +1,65 @@
 package usr.erichschroeter.jpreferences;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.BackingStoreException;
-import java.util.prefs.PreferenceChangeEvent;
-import java.util.prefs.PreferenceChangeListener;
 import java.util.prefs.Preferences;
 
+import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.PreferenceHandler;
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics;
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics.Operation;
+import usr.erichschroeter.jpreferences.metrics.PreferenceTracer.Trace;
+import usr.erichschroeter.jpreferences.type.PreferenceType;
+import usr.erichschroeter.jpreferences.type.PreferenceTypeRegistry;
+import usr.erichschroeter.jpreferences.type.TypedValueCache;
+
 /**
  * The <code>PreferenceTableModel</code> wraps a {@link Preferences} object to
  * view and edit its children preferences.
+ * <p>
+ * The keys and values are read from the preference node in bulk and kept in a
+ * snapshot sorted by key, which is updated incrementally as the preferences
+ * change. Rendering a cell does not access the preference node, and finding
+ * the row of a key is a binary search.
+ * <p>
+ * By default every modification is synchronized with the backing store
+ * immediately. When write-behind is enabled modifications are coalesced and
+ * synchronized once {@link #getFlushDelay()} has elapsed, once
+ * {@link #getFlushThreshold()} modifications are pending, or when
+ * {@link #flushNow()} is called.
+ * <p>
+ * When paging is enabled only the keys are read up front. Values are read a
+ * page at a time on a worker thread when a row of the page is first displayed
+ * or {@link #prefetch(int, int) prefetched}, so a node with a huge number of
+ * keys is displayed without reading all of its values.
+ * <p>
+ * Many preferences are put or removed at once with {@link #putAll(Map)} and
+ * {@link #removeAll(Collection)}, which synchronize with the backing store
+ * once and fire a single <code>TableModelEvent</code>.
+ * <p>
+ * When a {@link PreferenceTypeRegistry} is set, the value column holds typed
+ * values, such as <code>Integer</code> or <code>byte[]</code>, parsed from
+ * the stored strings as described by the registry. Each value is parsed once
+ * and cached until its string changes.
+ * <p>
+ * Changes made to the preference node by other threads or programs are
+ * delivered by a {@link PreferenceEventDispatcher} on the event dispatch
+ * thread, coalesced per frame, and applied to the snapshot with a single
+ * <code>TableModelEvent</code> per batch.
  * 
  * @author Erich Schroeter, http://www.roseindia.net/javatutorials/javaapi.shtml
  */
@@ -17,14 +67,36 @@ import javax.swing.table.AbstractTableModel;
 public class PreferenceTableModel extends AbstractTableModel {
 
 	/** The column index for the keys. */
-	private static final int KEY_COLUMN = 0;
+	public static final int KEY_COLUMN = 0;
 	/** The column index for the values. */
-	private static final int VALUE_COLUMN = 1;
+	public static final int VALUE_COLUMN = 1;
+	/** The default delay in milliseconds before pending writes are flushed. */
+	public static final long DEFAULT_FLUSH_DELAY = 1000;
+	/** The default number of pending writes which forces a flush. */
+	public static final int DEFAULT_FLUSH_THRESHOLD = 256;
+	/** The default number of values read at a time when paging. */
+	public static final int DEFAULT_PAGE_SIZE = 256;
+	/** The value displayed for a key without a value. */
+	private static final String UNKNOWN = "(Unknown)";
+	/** The value displayed while a page of values is being read. */
+	public static final String LOADING_TEXT = "Loading...";
+
+	/** The scheduler flushing pending writes of all write-behind models. */
+	private static ScheduledExecutorService flusher;
+	/** The executor reading pages of values for all paging models. */
+	private static ExecutorService pageLoader;
 
 	/** The preference object to wrap. */
 	private Preferences pref;
-	/** A reference to the preference keys. */
+	/** A reference to the preference keys, in ascending order. */
 	private String[] keys;
+	/**
+	 * The snapshot of the values, in the same order as {@link #keys}. When
+	 * paging, <code>null</code> values have not been read yet.
+	 */
+	private String[] values;
+	/** Keeps the snapshot up to date with changes to {@link #pref}. */
+	private PreferenceHandler changeHandler;
 
 	/** Whether to allow preferences to be deleted. */
 	private boolean deleteAllowed;
@@ -35,6 +107,29 @@ public class PreferenceTableModel extends AbstractTableModel {
 	/** Whether to allow preference values to be modified. */
 	private boolean editValuesAllowed;
 
+	/** Whether modifications are coalesced instead of synchronized at once. */
+	private boolean writeBehindEnabled;
+	/** The delay in milliseconds before pending writes are flushed. */
+	private long flushDelay = DEFAULT_FLUSH_DELAY;
+	/** The number of pending writes which forces a flush. */
+	private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+	/** The number of modifications not yet synchronized. */
+	private int pendingWrites;
+	/** The scheduled flush of the pending writes, if any. */
+	private ScheduledFuture<?> scheduledFlush;
+
+	/** Whether values are read a page at a time when displayed. */
+	private boolean pagingEnabled;
+	/** The number of values read at a time when paging. */
+	private int pageSize = DEFAULT_PAGE_SIZE;
+	/** The first rows of the pages currently being read. */
+	private Set<Integer> loadingPages;
+
+	/** The types of the values, or <code>null</code> if all are strings. */
+	private PreferenceTypeRegistry typeRegistry;
+	/** The values parsed from the strings in {@link #values}. */
+	private TypedValueCache typedValues;
+
 	/**
 	 * Constructs a <code>PreferenceTableModel</code> wrapping the specified
 	 * <code>pref</code>.
@@ -43,23 +138,61 @@ public class PreferenceTableModel extends AbstractTableModel {
 	 *            the preference object to wrap
 	 */
 	public PreferenceTableModel(Preferences pref) {
+		this(pref, false);
+	}
+
+	/**
+	 * Constructs a <code>PreferenceTableModel</code> wrapping the specified
+	 * <code>pref</code>, specifying whether values are read a page at a time.
+	 * 
+	 * @see #setPagingEnabled(boolean)
+	 * @param pref
+	 *            the preference object to wrap
+	 * @param paging
+	 *            <code>true</code> to read values when displayed,
+	 *            <code>false</code> to read them all up front
+	 */
+	public PreferenceTableModel(Preferences pref, boolean paging) {
 		this.pref = pref;
+		this.pagingEnabled = paging;
+		this.loadingPages = new HashSet<Integer>();
+		this.typedValues = new TypedValueCache();
 		updateKeys();
-		pref.addPreferenceChangeListener(new PreferenceChangeListener() {
+		changeHandler = new PreferenceHandler() {
 
 			@Override
-			public void preferenceChange(PreferenceChangeEvent evt) {
-				String value = evt.getNewValue();
-				if (value != null) {
-					addPreference(evt.getKey(), evt.getNewValue());
-				} else {
-					removePreference(evt.getKey());
-				}
+			public void preferencesChanged(Map<String, String> changes) {
+				PreferenceTableModel.this.preferencesChanged(changes);
 			}
-		});
+		};
+		PreferenceEventDispatcher.getDefault().addPreferenceHandler(pref,
+				changeHandler);
 		initializeDefaults();
 	}
 
+	/**
+	 * Returns the <code>Preferences</code> object being wrapped.
+	 * 
+	 * @return the preference object
+	 */
+	public Preferences getPrefObject() {
+		return pref;
+	}
+
+	/**
+	 * Flushes any pending writes and stops listening to the preference node
+	 * for changes. The model no longer reflects changes made to the node
+	 * afterwards, and should not be used.
+	 */
+	public void dispose() {
+		flushNow();
+		if (changeHandler != null) {
+			PreferenceEventDispatcher.getDefault().removePreferenceHandler(
+					pref, changeHandler);
+			changeHandler = null;
+		}
+	}
+
 	/**
 	 * Initializes the default features to be enabled or disabled.
 	 * <p>
@@ -76,19 +209,321 @@ public class PreferenceTableModel extends AbstractTableModel {
 	/**
 	 * Resets the reference of {@link #keys} to {@link #pref}
 	 * <code>.keys()</code> and handles catching the
-	 * {@link BackingStoreException} it throws.
+	 * {@link BackingStoreException} it throws. The snapshot of {@link #values}
+	 * is reloaded as well, or only its first page when paging.
 	 * 
 	 * @see #sync()
 	 */
 	protected void updateKeys() {
+		long started = PreferenceMetrics.start();
+		Trace trace = PreferenceMetrics.trace(Operation.UPDATE_KEYS);
+		String[] k;
 		try {
-			keys = pref.keys();
+			long start = PreferenceMetrics.start();
+			k = pref.keys();
+			PreferenceMetrics.stop(Operation.KEYS, start);
 		} catch (BackingStoreException e) {
 			System.out.println("Could not get keys for Preference node: "
 					+ pref.name());
 			e.printStackTrace();
-			keys = new String[0];
+			k = new String[0];
+		}
+		Arrays.sort(k);
+		String[] v = new String[k.length];
+		int count = pagingEnabled ? Math.min(pageSize, k.length) : k.length;
+		for (int i = 0; i < count; i++) {
+			v[i] = read(k[i]);
+		}
+		synchronized (this) {
+			values = v;
+			keys = k;
+			loadingPages.clear();
+			typedValues.clear();
+		}
+		PreferenceMetrics.stop(Operation.UPDATE_KEYS, started);
+		if (trace != null) {
+			trace.end(pref.absolutePath(), k.length);
+		}
+	}
+
+	/**
+	 * Returns the value of <code>key</code>, or {@link #UNKNOWN} if it has
+	 * none, so that it is not mistaken for a value not yet read.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @return the value
+	 */
+	private String read(String key) {
+		String value = null;
+		try {
+			value = fetch(key);
+		} catch (IllegalStateException e) {
+			// the node has been removed
+		}
+		return (value == null) ? UNKNOWN : value;
+	}
+
+	/**
+	 * Returns the value of <code>key</code> in {@link #pref}, measuring the
+	 * read.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @return the value, or <code>null</code> if it has none
+	 */
+	private String fetch(String key) {
+		long start = PreferenceMetrics.start();
+		String value = pref.get(key, null);
+		PreferenceMetrics.stop(Operation.GET, start);
+		return value;
+	}
+
+	/**
+	 * Associates <code>value</code> with <code>key</code> in {@link #pref},
+	 * measuring the write.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @param value
+	 *            the value
+	 */
+	private void store(String key, String value) {
+		long start = PreferenceMetrics.start();
+		pref.put(key, value);
+		PreferenceMetrics.stop(Operation.PUT, start);
+	}
+
+	/**
+	 * Removes <code>key</code> from {@link #pref}, measuring the removal.
+	 * 
+	 * @param key
+	 *            the preference key
+	 */
+	private void delete(String key) {
+		long start = PreferenceMetrics.start();
+		pref.remove(key);
+		PreferenceMetrics.stop(Operation.REMOVE, start);
+	}
+
+	/**
+	 * Reads the values of the pages containing the rows between
+	 * <code>firstRow</code> and <code>lastRow</code> in the background, unless
+	 * they have been read or are being read. This method does nothing if
+	 * paging is disabled.
+	 * 
+	 * @param firstRow
+	 *            the first row, inclusive
+	 * @param lastRow
+	 *            the last row, inclusive
+	 */
+	public void prefetch(int firstRow, int lastRow) {
+		if (!pagingEnabled) {
+			return; // return immediately
 		}
+		int first = Math.max(firstRow, 0) / pageSize * pageSize;
+		int last = Math.min(lastRow, keys.length - 1);
+		for (int row = first; row <= last; row += pageSize) {
+			loadPage(row);
+		}
+	}
+
+	/**
+	 * Reads the values of the page starting at <code>firstRow</code> in the
+	 * background, unless the page has been read or is being read.
+	 * 
+	 * @param firstRow
+	 *            the first row of the page
+	 */
+	private void loadPage(int firstRow) {
+		final String[] pageKeys;
+		synchronized (this) {
+			int end = Math.min(firstRow + pageSize, keys.length);
+			int row = firstRow;
+			while (row < end && values[row] != null) {
+				row++;
+			}
+			if (row == end || !loadingPages.add(firstRow)) {
+				return; // read, or being read
+			}
+			pageKeys = new String[end - firstRow];
+			System.arraycopy(keys, firstRow, pageKeys, 0, pageKeys.length);
+		}
+		final Integer page = firstRow;
+		getPageLoader().execute(new Runnable() {
+
+			@Override
+			public void run() {
+				long start = PreferenceMetrics.start();
+				final String[] pageValues = new String[pageKeys.length];
+				for (int i = 0; i < pageKeys.length; i++) {
+					pageValues[i] = read(pageKeys[i]);
+				}
+				PreferenceMetrics.stop(Operation.LOAD_PAGE, start);
+				SwingUtilities.invokeLater(new Runnable() {
+
+					@Override
+					public void run() {
+						pageLoaded(page, pageKeys, pageValues);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stores a page of values read in the background. Since rows may have been
+	 * inserted or deleted meanwhile, the rows are found by key. This method
+	 * fires an updated <code>TableModelEvent</code> for the rows stored.
+	 * 
+	 * @param page
+	 *            the first row of the page when it was requested
+	 * @param pageKeys
+	 *            the keys of the page
+	 * @param pageValues
+	 *            the values of the page
+	 */
+	private synchronized void pageLoaded(Integer page, String[] pageKeys,
+			String[] pageValues) {
+		if (!loadingPages.remove(page)) {
+			return; // the keys have been reloaded since
+		}
+		int first = -1;
+		int last = -1;
+		for (int i = 0; i < pageKeys.length; i++) {
+			int row = indexOf(pageKeys[i]);
+			if (row >= 0 && values[row] == null) {
+				values[row] = pageValues[i];
+				first = (first < 0) ? row : Math.min(first, row);
+				last = Math.max(last, row);
+			}
+		}
+		if (first >= 0) {
+			fireTableRowsUpdated(first, last);
+		}
+	}
+
+	/**
+	 * Updates the snapshot of keys and values after the preference associated
+	 * by <code>key</code> changed. This method fires an inserted, updated or
+	 * deleted <code>TableModelEvent</code> depending on the change.
+	 * 
+	 * @param key
+	 *            the preference key that changed
+	 * @param value
+	 *            the new value, or <code>null</code> if the preference was
+	 *            removed
+	 */
+	protected synchronized void preferenceChanged(String key, String value) {
+		int index = indexOf(key);
+		if (value == null) {
+			typedValues.invalidate(key);
+			if (index >= 0) {
+				keys = remove(keys, index);
+				values = remove(values, index);
+				fireTableRowsDeleted(index, index);
+			}
+		} else if (index >= 0) {
+			if (value.equals(values[index])) {
+				return; // already applied, e.g. by putAll
+			}
+			values[index] = value;
+			fireTableRowsUpdated(index, index);
+		} else {
+			index = -(index + 1);
+			values = insert(values, index, value);
+			keys = insert(keys, index, key);
+			fireTableRowsInserted(index, index);
+		}
+	}
+
+	/**
+	 * Updates the snapshot of keys and values after the preferences in
+	 * <code>changes</code> changed. Changes already applied to the snapshot
+	 * are skipped, and a single <code>TableModelEvent</code> is fired for the
+	 * others.
+	 * 
+	 * @see PreferenceEventDispatcher
+	 * @param changes
+	 *            the new value of each key that changed, or <code>null</code>
+	 *            if the preference was removed
+	 */
+	protected synchronized void preferencesChanged(Map<String, String> changes) {
+		long start = PreferenceMetrics.start();
+		SortedMap<String, String> put = new TreeMap<String, String>();
+		Set<String> removed = new HashSet<String>();
+		for (Map.Entry<String, String> change : changes.entrySet()) {
+			int index = indexOf(change.getKey());
+			if (change.getValue() == null) {
+				if (index >= 0) {
+					removed.add(change.getKey());
+				}
+			} else if (index < 0 || !change.getValue().equals(values[index])) {
+				put.put(change.getKey(), change.getValue());
+			}
+		}
+		if (removed.isEmpty()) {
+			if (!put.isEmpty()) {
+				merge(put, true);
+			}
+		} else if (put.isEmpty()) {
+			discard(removed, true);
+		} else {
+			discard(removed, false);
+			merge(put, false);
+			fireTableDataChanged();
+		}
+		PreferenceMetrics.stop(Operation.DISPATCH, start);
+	}
+
+	/**
+	 * Returns the row index of <code>key</code>. If there is no row for
+	 * <code>key</code> the result is <code>(-(insertion point) - 1)</code>, as
+	 * in {@link Arrays#binarySearch(Object[], Object)}.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @return the row index, or a negative value if not found
+	 */
+	protected int indexOf(String key) {
+		return Arrays.binarySearch(keys, key);
+	}
+
+	/**
+	 * Returns a copy of <code>array</code> with <code>element</code> inserted
+	 * at <code>index</code>.
+	 * 
+	 * @param array
+	 *            the array to copy
+	 * @param index
+	 *            the index to insert at
+	 * @param element
+	 *            the element to insert
+	 * @return the new array
+	 */
+	private static String[] insert(String[] array, int index, String element) {
+		String[] copy = new String[array.length + 1];
+		System.arraycopy(array, 0, copy, 0, index);
+		copy[index] = element;
+		System.arraycopy(array, index, copy, index + 1, array.length - index);
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of <code>array</code> without the element at
+	 * <code>index</code>.
+	 * 
+	 * @param array
+	 *            the array to copy
+	 * @param index
+	 *            the index of the element to remove
+	 * @return the new array
+	 */
+	private static String[] remove(String[] array, int index) {
+		String[] copy = new String[array.length - 1];
+		System.arraycopy(array, 0, copy, 0, index);
+		System.arraycopy(array, index + 1, copy, index, copy.length - index);
+		return copy;
 	}
 
 	/**
@@ -98,14 +533,166 @@ public class PreferenceTableModel extends AbstractTableModel {
 	 * @see #updateKeys()
 	 */
 	protected void sync() {
+		store(Operation.SYNC);
+	}
+
+	/**
+	 * Calls {@link #pref}<code>.flush()</code> and handles catching the
+	 * {@link BackingStoreException} it throws. Modifications are written this
+	 * way rather than with {@link #sync()}, which also reads back the whole
+	 * subtree and may discard what a caching node has already read.
+	 * 
+	 * @see #written()
+	 */
+	protected void flush() {
+		store(Operation.FLUSH);
+	}
+
+	/**
+	 * Calls {@link #pref}<code>.sync()</code> or {@link #pref}
+	 * <code>.flush()</code>, measuring and tracing it as
+	 * <code>operation</code>. A {@link BackingStoreException} is printed
+	 * rather than thrown.
+	 * 
+	 * @param operation
+	 *            {@link Operation#SYNC} or {@link Operation#FLUSH}
+	 */
+	private void store(Operation operation) {
+		long start = PreferenceMetrics.start();
+		Trace trace = PreferenceMetrics.trace(operation);
 		try {
-			// make sure the backing store is synchronized with latest update
-			pref.sync();
+			if (operation == Operation.SYNC) {
+				pref.sync();
+			} else {
+				pref.flush();
+			}
 		} catch (BackingStoreException e) {
-			System.out
-					.println("Error synchronizing backStore with updated value");
 			e.printStackTrace();
 		}
+		PreferenceMetrics.stop(operation, start);
+		if (trace != null) {
+			trace.end(pref.absolutePath(), keys.length);
+		}
+	}
+
+	/**
+	 * Records that the preference node was modified. If write-behind is
+	 * disabled this calls {@link #flush()}, otherwise the modification is
+	 * counted and a flush scheduled, or performed if the flush threshold has
+	 * been reached.
+	 * 
+	 * @see #flushNow()
+	 */
+	protected void written() {
+		written(1);
+	}
+
+	/**
+	 * Records that the preference node was modified <code>writes</code> times
+	 * at once. If write-behind is disabled this calls {@link #flush()} once,
+	 * otherwise the modifications are counted and a flush scheduled, or
+	 * performed if the flush threshold has been reached.
+	 * 
+	 * @see #written()
+	 * @param writes
+	 *            the number of modifications
+	 */
+	protected void written(int writes) {
+		if (!isWriteBehindEnabled()) {
+			flush();
+			return;
+		}
+		boolean flush = false;
+		synchronized (this) {
+			pendingWrites += writes;
+			if (pendingWrites >= flushThreshold) {
+				flush = true;
+			} else if (scheduledFlush == null) {
+				scheduledFlush = getFlusher().schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						flushNow();
+					}
+				}, flushDelay, TimeUnit.MILLISECONDS);
+			}
+		}
+		if (flush) {
+			flushNow();
+		}
+	}
+
+	/**
+	 * Synchronizes any pending writes with the backing store immediately. If
+	 * there are no pending writes this method does nothing.
+	 * 
+	 * @see #flush()
+	 */
+	public void flushNow() {
+		synchronized (this) {
+			if (scheduledFlush != null) {
+				scheduledFlush.cancel(false);
+				scheduledFlush = null;
+			}
+			if (pendingWrites == 0) {
+				return; // return immediately
+			}
+			pendingWrites = 0;
+		}
+		flush();
+	}
+
+	/**
+	 * Returns the number of modifications not yet synchronized with the
+	 * backing store.
+	 * 
+	 * @return the number of pending writes
+	 */
+	public synchronized int getPendingWrites() {
+		return pendingWrites;
+	}
+
+	/**
+	 * Returns the scheduler shared by all models for flushing pending writes,
+	 * creating it if necessary.
+	 * 
+	 * @return the flush scheduler
+	 */
+	private static synchronized ScheduledExecutorService getFlusher() {
+		if (flusher == null) {
+			flusher = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "PreferenceTableModel");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return flusher;
+	}
+
+	/**
+	 * Returns the executor shared by all models for reading pages of values,
+	 * creating it if necessary.
+	 * 
+	 * @return the page loader
+	 */
+	private static synchronized ExecutorService getPageLoader() {
+		if (pageLoader == null) {
+			pageLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "PreferenceTableModel pages");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pageLoader;
 	}
 
 	/**
@@ -125,13 +712,13 @@ public class PreferenceTableModel extends AbstractTableModel {
 		if (key == null || value == null) {
 			return; // return immediately
 		}
-		String val = pref.get(key, null);
+		String val = fetch(key);
 		// only add the preference if the key has no associated value
 		if (val == null) {
-			pref.put(key, value.toString());
-			sync();
-			updateKeys();
-			fireTableRowsInserted(getRowCount(), getRowCount());
+			String str = value.toString();
+			store(key, str);
+			written();
+			preferenceChanged(key, str);
 		}
 	}
 
@@ -141,9 +728,8 @@ public class PreferenceTableModel extends AbstractTableModel {
 	 * <p>
 	 * If <code>key</code> is <code>null</code> this method changes nothing.
 	 * <p>
-	 * If possible, try to use {@link #removeRow(int)} for better performance.
-	 * This method calls that method after iterating over the keys to find the
-	 * index.
+	 * This method calls {@link #removeRow(int)} after searching the keys for
+	 * the index.
 	 * 
 	 * @see #removeRow(int)
 	 * @param key
@@ -153,16 +739,7 @@ public class PreferenceTableModel extends AbstractTableModel {
 		if (key == null) {
 			return; // return immediately
 		}
-		int index = -1;
-		for (int i = 0; i < keys.length; i++) {
-			if (keys[i].equals(key)) {
-				index = i;
-				// break out of this loop to increase performance
-				// otherwise we will iterate n every time
-				break;
-			}
-		}
-		removeRow(index);
+		removeRow(indexOf(key));
 	}
 
 	/**
@@ -173,17 +750,191 @@ public class PreferenceTableModel extends AbstractTableModel {
 	 * <code>{@link #keys}.length</code> this method changes nothing.
 	 * 
 	 * @see #removePreference(String)
-	 * @see #sync()
-	 * @see #updateKeys()
+	 * @see #written()
 	 * @param rowIndex
 	 *            the preference key index (between 0 and number of keys}
 	 */
 	public void removeRow(int rowIndex) {
-		if (rowIndex <= 0 && rowIndex < keys.length) {
-			pref.remove(keys[rowIndex]);
-			sync();
-			updateKeys();
-			fireTableRowsDeleted(rowIndex, rowIndex);
+		if (rowIndex >= 0 && rowIndex < keys.length) {
+			String key = keys[rowIndex];
+			delete(key);
+			written();
+			preferenceChanged(key, null);
+		}
+	}
+
+	/**
+	 * Puts all of <code>entries</code> into the preference node, storing the
+	 * <code>toString()</code> of each value. Entries whose value is unchanged,
+	 * or whose key or value is <code>null</code>, are skipped.
+	 * <p>
+	 * The backing store is synchronized once for all of the entries, and a
+	 * single <code>TableModelEvent</code> is fired: an updated or inserted
+	 * event if the rows changed are contiguous, otherwise a data changed
+	 * event.
+	 * 
+	 * @see #removeAll(Collection)
+	 * @param entries
+	 *            the keys and values to put
+	 * @return the number of preferences added or changed
+	 */
+	public int putAll(Map<String, ?> entries) {
+		SortedMap<String, String> changed = new TreeMap<String, String>();
+		synchronized (this) {
+			// the echoed change events find the snapshot updated already
+			for (Map.Entry<String, ?> entry : entries.entrySet()) {
+				String key = entry.getKey();
+				if (key == null || entry.getValue() == null) {
+					continue;
+				}
+				String value = entry.getValue().toString();
+				if (!value.equals(fetch(key))) {
+					store(key, value);
+					changed.put(key, value);
+				}
+			}
+			if (!changed.isEmpty()) {
+				merge(changed, true);
+			}
+		}
+		if (!changed.isEmpty()) {
+			written(changed.size());
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Removes the preferences associated by <code>keys</code>. Keys without a
+	 * preference, and <code>null</code> keys, are skipped.
+	 * <p>
+	 * The backing store is synchronized once for all of the keys, and a single
+	 * <code>TableModelEvent</code> is fired: a deleted event if the rows
+	 * removed are contiguous, otherwise a data changed event.
+	 * 
+	 * @see #putAll(Map)
+	 * @param keys
+	 *            the preferences to remove
+	 * @return the number of preferences removed
+	 */
+	public int removeAll(Collection<String> keys) {
+		Set<String> removed = new HashSet<String>();
+		synchronized (this) {
+			// the echoed change events find the snapshot updated already
+			for (String key : keys) {
+				if (key != null && !removed.contains(key)
+						&& (indexOf(key) >= 0 || fetch(key) != null)) {
+					delete(key);
+					removed.add(key);
+				}
+			}
+			if (!removed.isEmpty()) {
+				discard(removed, true);
+			}
+		}
+		if (!removed.isEmpty()) {
+			written(removed.size());
+		}
+		return removed.size();
+	}
+
+	/**
+	 * Updates the snapshot with <code>changed</code> in a single pass and
+	 * fires a single <code>TableModelEvent</code>, if <code>fire</code> is
+	 * <code>true</code>.
+	 * 
+	 * @see #putAll(Map)
+	 * @param changed
+	 *            the keys and values put, in ascending order of keys
+	 * @param fire
+	 *            whether to fire the event
+	 */
+	private synchronized void merge(SortedMap<String, String> changed,
+			boolean fire) {
+		int inserts = 0;
+		for (String key : changed.keySet()) {
+			if (indexOf(key) < 0) {
+				inserts++;
+			}
+		}
+		String[] k = new String[keys.length + inserts];
+		String[] v = new String[k.length];
+		int first = -1;
+		int last = -1;
+		boolean updated = false;
+		int i = 0;
+		int row = 0;
+		for (Map.Entry<String, String> entry : changed.entrySet()) {
+			// copy the unchanged rows before the changed key
+			while (i < keys.length && keys[i].compareTo(entry.getKey()) < 0) {
+				k[row] = keys[i];
+				v[row++] = values[i++];
+			}
+			if (i < keys.length && keys[i].equals(entry.getKey())) {
+				updated = true;
+				i++;
+			}
+			k[row] = entry.getKey();
+			v[row] = entry.getValue();
+			first = (first < 0) ? row : first;
+			last = row++;
+		}
+		System.arraycopy(keys, i, k, row, keys.length - i);
+		System.arraycopy(values, i, v, row, values.length - i);
+		keys = k;
+		values = v;
+		if (!fire) {
+			return; // the caller fires the event
+		}
+		if (last - first + 1 != changed.size()) {
+			fireTableDataChanged();
+		} else if (inserts == 0) {
+			fireTableRowsUpdated(first, last);
+		} else if (!updated) {
+			fireTableRowsInserted(first, last);
+		} else {
+			fireTableDataChanged();
+		}
+	}
+
+	/**
+	 * Removes <code>removed</code> from the snapshot in a single pass and
+	 * fires a single <code>TableModelEvent</code>, if <code>fire</code> is
+	 * <code>true</code>.
+	 * 
+	 * @see #removeAll(Collection)
+	 * @param removed
+	 *            the keys removed
+	 * @param fire
+	 *            whether to fire the event
+	 */
+	private synchronized void discard(Set<String> removed, boolean fire) {
+		String[] k = new String[keys.length];
+		String[] v = new String[keys.length];
+		int first = -1;
+		int last = -1;
+		int count = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (removed.contains(keys[i])) {
+				typedValues.invalidate(keys[i]);
+				first = (first < 0) ? i : first;
+				last = i;
+			} else {
+				k[count] = keys[i];
+				v[count++] = values[i];
+			}
+		}
+		if (first < 0) {
+			return; // removed from the snapshot already
+		}
+		keys = Arrays.copyOf(k, count);
+		values = Arrays.copyOf(v, count);
+		if (!fire) {
+			return; // the caller fires the event
+		}
+		if (last - first + 1 == k.length - count) {
+			fireTableRowsDeleted(first, last);
+		} else {
+			fireTableDataChanged();
 		}
 	}
 
@@ -271,6 +1022,199 @@ public class PreferenceTableModel extends AbstractTableModel {
 		return this;
 	}
 
+	/**
+	 * Returns whether modifications are coalesced and synchronized with the
+	 * backing store later, rather than immediately.
+	 * 
+	 * @return <code>true</code> if enabled, else <code>false</code>
+	 */
+	public boolean isWriteBehindEnabled() {
+		return writeBehindEnabled;
+	}
+
+	/**
+	 * Enables or disables write-behind. Disabling it flushes any pending
+	 * writes.
+	 * 
+	 * @param enable
+	 *            <code>true</code> to coalesce modifications,
+	 *            <code>false</code> to synchronize each one immediately
+	 * @return the instance for additional configuration
+	 */
+	public PreferenceTableModel setWriteBehindEnabled(boolean enable) {
+		this.writeBehindEnabled = enable;
+		if (!enable) {
+			flushNow();
+		}
+		return this;
+	}
+
+	/**
+	 * Returns whether values are read a page at a time when displayed, rather
+	 * than all up front.
+	 * 
+	 * @see #setPagingEnabled(boolean)
+	 * @return <code>true</code> if enabled, else <code>false</code>
+	 */
+	public boolean isPagingEnabled() {
+		return pagingEnabled;
+	}
+
+	/**
+	 * Enables or disables paging. Disabling it reads any values not yet read.
+	 * Either way the listeners are notified that the whole table changed.
+	 * 
+	 * @see #isPagingEnabled()
+	 * @see #prefetch(int, int)
+	 * @param enable
+	 *            <code>true</code> to read values when displayed,
+	 *            <code>false</code> to read them all up front
+	 * @return the instance for additional configuration
+	 */
+	public PreferenceTableModel setPagingEnabled(boolean enable) {
+		boolean changed = pagingEnabled != enable;
+		this.pagingEnabled = enable;
+		if (changed) {
+			if (!enable) {
+				updateKeys();
+			}
+			fireTableDataChanged();
+		}
+		return this;
+	}
+
+	/**
+	 * Returns the number of values read at a time when paging.
+	 * 
+	 * @return the page size
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * Sets the number of values read at a time when paging.
+	 * 
+	 * @param rows
+	 *            the page size
+	 * @return the instance for additional configuration
+	 * @throws IllegalArgumentException
+	 *             if <code>rows</code> is less than 1
+	 */
+	public synchronized PreferenceTableModel setPageSize(int rows) {
+		if (rows < 1) {
+			throw new IllegalArgumentException("Invalid page size: " + rows);
+		}
+		this.pageSize = rows;
+		// pages being read are discarded, and read again when displayed
+		loadingPages.clear();
+		return this;
+	}
+
+	/**
+	 * Returns the registry describing the types of the values.
+	 * 
+	 * @return the type registry, or <code>null</code> if all values are
+	 *         strings
+	 */
+	public PreferenceTypeRegistry getTypeRegistry() {
+		return typeRegistry;
+	}
+
+	/**
+	 * Sets the registry describing the types of the values. The value column
+	 * holds typed values when a registry is set, and strings otherwise.
+	 * 
+	 * @param registry
+	 *            the type registry, or <code>null</code> for strings only
+	 * @return the instance for additional configuration
+	 */
+	public PreferenceTableModel setTypeRegistry(PreferenceTypeRegistry registry) {
+		this.typeRegistry = registry;
+		typedValues.clear();
+		fireTableDataChanged();
+		return this;
+	}
+
+	/**
+	 * Returns the type of the value at <code>rowIndex</code>.
+	 * 
+	 * @param rowIndex
+	 *            the row
+	 * @return the type, which is {@link PreferenceType#STRING} if there is no
+	 *         type registry
+	 */
+	public PreferenceType<?> getValueType(int rowIndex) {
+		if (typeRegistry == null) {
+			return PreferenceType.STRING;
+		}
+		return typeRegistry.getType(pref, keys[rowIndex]);
+	}
+
+	/**
+	 * Returns the value at <code>rowIndex</code> parsed as its type. Values
+	 * not read yet, and strings which are not valid for their type, are
+	 * returned as strings.
+	 * 
+	 * @see #getValueType(int)
+	 * @param rowIndex
+	 *            the row
+	 * @return the typed value
+	 */
+	public Object getTypedValue(int rowIndex) {
+		String raw = values[rowIndex];
+		PreferenceType<?> type = getValueType(rowIndex);
+		if (raw == null || raw == UNKNOWN || type == PreferenceType.STRING) {
+			return raw; // not read, without a value, or a string
+		}
+		Object value = typedValues.get(keys[rowIndex], raw, type);
+		return (value == null) ? raw : value;
+	}
+
+	/**
+	 * Returns the delay in milliseconds before pending writes are flushed.
+	 * 
+	 * @return the flush delay
+	 */
+	public long getFlushDelay() {
+		return flushDelay;
+	}
+
+	/**
+	 * Sets the delay in milliseconds before pending writes are flushed. This
+	 * only applies when write-behind is enabled.
+	 * 
+	 * @param millis
+	 *            the flush delay
+	 * @return the instance for additional configuration
+	 */
+	public PreferenceTableModel setFlushDelay(long millis) {
+		this.flushDelay = millis;
+		return this;
+	}
+
+	/**
+	 * Returns the number of pending writes which forces a flush.
+	 * 
+	 * @return the flush threshold
+	 */
+	public int getFlushThreshold() {
+		return flushThreshold;
+	}
+
+	/**
+	 * Sets the number of pending writes which forces a flush. This only
+	 * applies when write-behind is enabled.
+	 * 
+	 * @param writes
+	 *            the flush threshold
+	 * @return the instance for additional configuration
+	 */
+	public PreferenceTableModel setFlushThreshold(int writes) {
+		this.flushThreshold = writes;
+		return this;
+	}
+
 	@Override
 	public String getColumnName(int column) {
 		String name = null;
@@ -303,21 +1247,50 @@ public class PreferenceTableModel extends AbstractTableModel {
 		return editable;
 	}
 
+	/**
+	 * Stores <code>aValue</code> as the value of the preference in
+	 * <code>rowIndex</code>. If the model has a type registry the value must
+	 * be valid for the type of the preference; the typed cell editors of a
+	 * {@link PreferenceTable} reject invalid values before they get here.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the value is not valid for the type of the preference
+	 */
 	@Override
 	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
-		pref.put(keys[rowIndex], aValue.toString());
-		sync();
+		String value = aValue.toString();
+		if (typeRegistry != null) {
+			PreferenceType<?> type = getValueType(rowIndex);
+			value = type.formatValue(aValue);
+			try {
+				type.parse(value);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Not a valid "
+						+ type.getName() + " value for " + keys[rowIndex]
+						+ ": " + value, e);
+			}
+		}
+		store(keys[rowIndex], value);
+		values[rowIndex] = value;
+		written();
 		fireTableCellUpdated(rowIndex, columnIndex);
 	}
 
 	@Override
 	public Object getValueAt(int row, int column) {
 		Object value = null;
-		String key = keys[row];
 		if (column == KEY_COLUMN) {
-			value = key;
+			value = keys[row];
 		} else {
-			value = pref.get(key, "(Unknown)");
+			value = (typeRegistry == null) ? values[row] : getTypedValue(row);
+			if (value == null) {
+				if (pagingEnabled) {
+					loadPage(row / pageSize * pageSize);
+					value = LOADING_TEXT;
+				} else {
+					value = UNKNOWN;
+				}
+			}
 		}
 		return value;
 	}
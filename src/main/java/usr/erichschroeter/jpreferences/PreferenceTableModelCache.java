@@ -0,0 +1,275 @@
+package usr.erichschroeter.jpreferences;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics;
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics.Operation;
+import usr.erichschroeter.jpreferences.type.PreferenceTypeRegistry;
+
+/**
+ * A <code>PreferenceTableModelCache</code> keeps the most recently used
+ * {@link PreferenceTableModel}s keyed by their {@link Preferences} node, so
+ * revisiting a node reuses its model instead of creating a new one.
+ * <p>
+ * The cache is bounded. When a model is evicted, or the cache is cleared, the
+ * model is disposed which flushes its pending writes and removes its listener
+ * from the preference node.
+ * <p>
+ * The cache is not thread-safe and should be accessed on the event dispatch
+ * thread.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceTableModelCache {
+
+	/** The default maximum number of models kept in the cache. */
+	public static final int DEFAULT_CAPACITY = 16;
+
+	/** The maximum number of models kept in the cache. */
+	private int capacity;
+	/** The cached models in least recently used order. */
+	private Map<Preferences, PreferenceTableModel> models;
+	/** Whether new models read values a page at a time. */
+	private boolean pagingEnabled;
+	/** The type registry of new models, if any. */
+	private volatile PreferenceTypeRegistry typeRegistry;
+
+	/**
+	 * Constructs a <code>PreferenceTableModelCache</code> with the default
+	 * capacity.
+	 * <p>
+	 * This is equivalent to
+	 * <code>PreferenceTableModelCache(DEFAULT_CAPACITY)</code>.
+	 */
+	public PreferenceTableModelCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs a <code>PreferenceTableModelCache</code> specifying the
+	 * maximum number of models to keep.
+	 * 
+	 * @param capacity
+	 *            the maximum number of models to keep
+	 * @throws IllegalArgumentException
+	 *             if <code>capacity</code> is less than 1
+	 */
+	public PreferenceTableModelCache(int capacity) {
+		this.capacity = checkCapacity(capacity);
+		this.models = new LinkedHashMap<Preferences, PreferenceTableModel>(16,
+				0.75f, true);
+	}
+
+	/**
+	 * Returns the model for <code>pref</code>, creating it with
+	 * {@link #createModel(Preferences)} if it is not cached.
+	 * 
+	 * @param pref
+	 *            the preference node
+	 * @return the model for <code>pref</code>
+	 */
+	public PreferenceTableModel get(Preferences pref) {
+		PreferenceTableModel model = models.get(pref);
+		if (model == null) {
+			model = createModel(pref);
+			models.put(pref, model);
+			evict();
+		}
+		return model;
+	}
+
+	/**
+	 * Returns the model for <code>pref</code> if it is cached, without
+	 * creating it.
+	 * 
+	 * @param pref
+	 *            the preference node
+	 * @return the cached model, or <code>null</code> if not cached
+	 */
+	public PreferenceTableModel getCached(Preferences pref) {
+		return models.get(pref);
+	}
+
+	/**
+	 * Caches <code>model</code> for <code>pref</code>, disposing the model it
+	 * replaces, if any. This allows a model created with
+	 * {@link #createModel(Preferences)} on another thread to be cached.
+	 * 
+	 * @param pref
+	 *            the preference node
+	 * @param model
+	 *            the model for <code>pref</code>
+	 */
+	public void put(Preferences pref, PreferenceTableModel model) {
+		PreferenceTableModel replaced = models.put(pref, model);
+		if (replaced != null && replaced != model) {
+			replaced.dispose();
+		}
+		evict();
+	}
+
+	/**
+	 * Creates the model for <code>pref</code>. In derived classes this may be
+	 * overridden to customize the model.
+	 * <p>
+	 * This method may be called on a background thread, so it must not
+	 * access the cache.
+	 * 
+	 * @param pref
+	 *            the preference node
+	 * @return a new model for <code>pref</code>
+	 */
+	protected PreferenceTableModel createModel(Preferences pref) {
+		long start = PreferenceMetrics.start();
+		PreferenceTableModel model = new PreferenceTableModel(pref,
+				isPagingEnabled()).setTypeRegistry(getTypeRegistry());
+		PreferenceMetrics.stop(Operation.CREATE_MODEL, start);
+		return model;
+	}
+
+	/**
+	 * Disposes and removes the model for <code>pref</code>, if cached.
+	 * 
+	 * @param pref
+	 *            the preference node
+	 */
+	public void remove(Preferences pref) {
+		PreferenceTableModel model = models.remove(pref);
+		if (model != null) {
+			model.dispose();
+		}
+	}
+
+	/**
+	 * Disposes and removes all cached models.
+	 */
+	public void clear() {
+		List<PreferenceTableModel> evicted = new ArrayList<PreferenceTableModel>(
+				models.values());
+		models.clear();
+		for (PreferenceTableModel model : evicted) {
+			model.dispose();
+		}
+	}
+
+	/**
+	 * Returns the cached models in least recently used order.
+	 * 
+	 * @return the cached models
+	 */
+	public List<PreferenceTableModel> getModels() {
+		return new ArrayList<PreferenceTableModel>(models.values());
+	}
+
+	/**
+	 * Returns the number of cached models.
+	 * 
+	 * @return the number of models
+	 */
+	public int size() {
+		return models.size();
+	}
+
+	/**
+	 * Returns the maximum number of models kept in the cache.
+	 * 
+	 * @return the capacity
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum number of models kept in the cache, evicting models if
+	 * necessary.
+	 * 
+	 * @param capacity
+	 *            the capacity
+	 * @throws IllegalArgumentException
+	 *             if <code>capacity</code> is less than 1
+	 */
+	public void setCapacity(int capacity) {
+		this.capacity = checkCapacity(capacity);
+		evict();
+	}
+
+	/**
+	 * Checks that <code>capacity</code> leaves room for at least one model.
+	 * 
+	 * @param capacity
+	 *            the capacity
+	 * @return the capacity
+	 * @throws IllegalArgumentException
+	 *             if <code>capacity</code> is less than 1
+	 */
+	private static int checkCapacity(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		return capacity;
+	}
+
+	/**
+	 * Returns whether new models read values a page at a time.
+	 * 
+	 * @see PreferenceTableModel#isPagingEnabled()
+	 * @return <code>true</code> if enabled, else <code>false</code>
+	 */
+	public boolean isPagingEnabled() {
+		return pagingEnabled;
+	}
+
+	/**
+	 * Enables or disables paging for new models and the cached models.
+	 * 
+	 * @see PreferenceTableModel#setPagingEnabled(boolean)
+	 * @param enable
+	 *            <code>true</code> to enable, <code>false</code> to disable
+	 */
+	public void setPagingEnabled(boolean enable) {
+		this.pagingEnabled = enable;
+		for (PreferenceTableModel model : models.values()) {
+			model.setPagingEnabled(enable);
+		}
+	}
+
+	/**
+	 * Returns the type registry of new models.
+	 * 
+	 * @see PreferenceTableModel#getTypeRegistry()
+	 * @return the type registry, or <code>null</code> if none
+	 */
+	public PreferenceTypeRegistry getTypeRegistry() {
+		return typeRegistry;
+	}
+
+	/**
+	 * Sets the type registry of new models and the cached models.
+	 * 
+	 * @see PreferenceTableModel#setTypeRegistry(PreferenceTypeRegistry)
+	 * @param registry
+	 *            the type registry, or <code>null</code> for strings only
+	 */
+	public void setTypeRegistry(PreferenceTypeRegistry registry) {
+		this.typeRegistry = registry;
+		for (PreferenceTableModel model : models.values()) {
+			model.setTypeRegistry(registry);
+		}
+	}
+
+	/**
+	 * Disposes and removes the least recently used models until the cache is
+	 * within its capacity.
+	 */
+	private void evict() {
+		while (models.size() > capacity) {
+			Preferences eldest = models.keySet().iterator().next();
+			remove(eldest);
+		}
+	}
+
+}
@@ -0,0 +1,187 @@
+package usr.erichschroeter.jpreferences;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.prefs.BackingStoreException;
+
+import javax.swing.JTree;
+import javax.swing.SwingUtilities;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeWillExpandListener;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.ExpandVetoException;
+import javax.swing.tree.TreeNode;
+
+/**
+ * A <code>PreferenceTreeLoader</code> loads the children of lazy
+ * {@link PreferenceTreeNode}s on a background thread when they are about to be
+ * expanded in a {@link JTree}. While loading, the node displays a placeholder
+ * child which is replaced once the children node names have been read from the
+ * backing store.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceTreeLoader implements TreeWillExpandListener {
+
+	/** The model notified when the children of a node have been loaded. */
+	private DefaultTreeModel model;
+	/** The executor reading the children node names. */
+	private ExecutorService executor;
+	/** The nodes currently being loaded. */
+	private Set<PreferenceTreeNode> loading;
+
+	/**
+	 * Constructs a <code>PreferenceTreeLoader</code> specifying the model to
+	 * be notified when the children of a node have been loaded.
+	 * <p>
+	 * A single daemon thread is used to read from the backing store.
+	 * 
+	 * @param model
+	 *            the tree model containing the nodes
+	 */
+	public PreferenceTreeLoader(DefaultTreeModel model) {
+		this(model, Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PreferenceTreeLoader");
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+	}
+
+	/**
+	 * Constructs a <code>PreferenceTreeLoader</code> specifying the model to
+	 * be notified when the children of a node have been loaded and the
+	 * executor to read from the backing store on.
+	 * 
+	 * @param model
+	 *            the tree model containing the nodes
+	 * @param executor
+	 *            the executor to load the children on
+	 */
+	public PreferenceTreeLoader(DefaultTreeModel model,
+			ExecutorService executor) {
+		this.model = model;
+		this.executor = executor;
+		this.loading = Collections
+				.synchronizedSet(new HashSet<PreferenceTreeNode>());
+	}
+
+	/**
+	 * Loads the children of <code>node</code> in the background if they have
+	 * not been loaded and are not already loading.
+	 * 
+	 * @param node
+	 *            the node whose children to load
+	 */
+	public void load(final PreferenceTreeNode node) {
+		if (node.isLoaded() || !loading.add(node)) {
+			return; // return immediately
+		}
+		try {
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					final String[] loaded = fetch(node);
+					SwingUtilities.invokeLater(new Runnable() {
+
+						@Override
+						public void run() {
+							loaded(node, loaded);
+						}
+					});
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the loader has been shut down, load on this thread instead
+			loaded(node, fetch(node));
+		}
+	}
+
+	/**
+	 * Reads the children node names of <code>node</code> from the backing
+	 * store. A node which could not be read is given no children, so it is
+	 * displayed as a leaf rather than loading forever.
+	 * 
+	 * @param node
+	 *            the node whose children to read
+	 * @return the children node names, or <code>null</code> if they could not
+	 *         be read
+	 */
+	private String[] fetch(PreferenceTreeNode node) {
+		String[] names = null;
+		try {
+			names = node.fetchChildrenNames();
+		} catch (BackingStoreException e) {
+			e.printStackTrace();
+		} catch (IllegalStateException e) {
+			// the node has been removed
+		}
+		return names;
+	}
+
+	/**
+	 * Replaces the placeholder child of <code>node</code> with its loaded
+	 * children and notifies the model. This must be called on the event
+	 * dispatch thread.
+	 * 
+	 * @param node
+	 *            the node whose children were loaded
+	 * @param names
+	 *            the children node names
+	 */
+	protected void loaded(PreferenceTreeNode node, String[] names) {
+		loading.remove(node);
+		if (node.isLoaded()) {
+			return; // return immediately
+		}
+		TreeNode placeholder = node.getLoadingNode();
+		node.setChildrenNames(names);
+		model.nodesWereRemoved(node, new int[] { 0 },
+				new Object[] { placeholder });
+		int count = node.getChildCount();
+		if (count > 0) {
+			int[] indices = new int[count];
+			for (int i = 0; i < count; i++) {
+				indices[i] = i;
+			}
+			model.nodesWereInserted(node, indices);
+		} else {
+			// the node turned out to be a leaf
+			model.nodeChanged(node);
+		}
+	}
+
+	/**
+	 * Stops loading in the background. Loads already in progress are allowed
+	 * to finish, and nodes expanded afterwards are loaded on the event
+	 * dispatch thread.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	@Override
+	public void treeWillExpand(TreeExpansionEvent event)
+			throws ExpandVetoException {
+		Object node = event.getPath().getLastPathComponent();
+		if (node instanceof PreferenceTreeNode) {
+			load((PreferenceTreeNode) node);
+		}
+	}
+
+	@Override
+	public void treeWillCollapse(TreeExpansionEvent event)
+			throws ExpandVetoException {
+		// nothing to load
+	}
+
+}
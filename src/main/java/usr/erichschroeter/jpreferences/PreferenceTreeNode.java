@@ -1,29 +1,80 @@
 package usr.erichschroeter.jpreferences;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 import javax.swing.JTree;
 import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeModel;
 import javax.swing.tree.TreeNode;
 
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.NodeHandler;
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics;
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics.Operation;
+import usr.erichschroeter.jpreferences.metrics.PreferenceTracer.Trace;
+import usr.erichschroeter.jpreferences.utils.PrefUtils;
+
 /**
  * A <code>PreferenceTreeNode</code> wraps a {@link Preferences} object allowing
  * it to be used in a {@link JTree}.
+ * <p>
+ * Child nodes are created on demand and cached, so the same child is returned
+ * each time {@link #getChildAt(int)} is called for a given index. The cache is
+ * invalidated when a child node is added or removed from the backing store and
+ * is bounded by {@link #getCacheSize()}.
+ * <p>
+ * A node may be constructed lazily, in which case the children node names are
+ * not read from the backing store until {@link #setChildrenNames(String[])} is
+ * called, typically by a {@link PreferenceTreeLoader} when the node is first
+ * expanded. Until then the node reports a single placeholder child.
+ * <p>
+ * Children added to or removed from the backing store are delivered by a
+ * {@link PreferenceEventDispatcher} on the event dispatch thread, coalesced
+ * per frame. The children node names are then read once, and the tree model
+ * set with {@link #setTreeModel(DefaultTreeModel)} is notified of the
+ * children inserted and removed.
  * 
  * @author Erich Schroeter, http://www.roseindia.net/javatutorials/javaapi.shtml
  */
 @SuppressWarnings("serial")
 public class PreferenceTreeNode extends DefaultMutableTreeNode {
 
+	/** The default maximum number of child nodes kept in the cache. */
+	public static final int DEFAULT_CACHE_SIZE = 512;
+	/** The text displayed by the placeholder child of an unloaded node. */
+	public static final String LOADING_TEXT = "Loading...";
+
 	/** The preferences being wrapped. */
 	private Preferences pref;
-	/** The children node names. */
+	/** The children node names, or <code>null</code> if not yet loaded. */
 	private String[] children;
+	/** Whether the children node names are loaded on demand. */
+	private boolean lazy;
+	/** The placeholder child displayed while the children are loading. */
+	private TreeNode loadingNode;
+	/** The child nodes already created, in least recently used order. */
+	private Map<String, TreeNode> childCache;
+	/** The maximum number of child nodes kept in {@link #childCache}. */
+	private int cacheSize;
+	/** Invalidates the cached children when the backing store changes. */
+	private NodeHandler nodeHandler;
+	/** The model notified when children are added or removed, if any. */
+	private DefaultTreeModel model;
 
 	/**
 	 * Constructs a <code>PreferenceTreeNode</code> specifying the
 	 * <code>Preferences</code> node to be wrapped.
+	 * <p>
+	 * This is equivalent to
+	 * <code>PreferenceTreeNode(pref, DEFAULT_CACHE_SIZE)</code>.
 	 * 
 	 * @param pref
 	 *            the preference node
@@ -32,8 +83,68 @@ public class PreferenceTreeNode extends DefaultMutableTreeNode {
 	 *             communicate with it
 	 */
 	public PreferenceTreeNode(Preferences pref) throws BackingStoreException {
+		this(pref, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Constructs a <code>PreferenceTreeNode</code> specifying the
+	 * <code>Preferences</code> node to be wrapped and the maximum number of
+	 * child nodes to cache.
+	 * 
+	 * @param pref
+	 *            the preference node
+	 * @param cacheSize
+	 *            the maximum number of child nodes to cache
+	 * @throws BackingStoreException
+	 *             if a failure in the backing store occurs, or inability to
+	 *             communicate with it
+	 */
+	public PreferenceTreeNode(Preferences pref, int cacheSize)
+			throws BackingStoreException {
+		this(pref, cacheSize, false);
+	}
+
+	/**
+	 * Constructs a <code>PreferenceTreeNode</code> specifying the
+	 * <code>Preferences</code> node to be wrapped, the maximum number of child
+	 * nodes to cache and whether the children node names are loaded lazily.
+	 * <p>
+	 * Children of a lazy node are lazy as well.
+	 * 
+	 * @param pref
+	 *            the preference node
+	 * @param cacheSize
+	 *            the maximum number of child nodes to cache
+	 * @param lazy
+	 *            <code>true</code> to defer reading the children node names,
+	 *            <code>false</code> to read them now
+	 * @throws BackingStoreException
+	 *             if a failure in the backing store occurs, or inability to
+	 *             communicate with it
+	 */
+	public PreferenceTreeNode(Preferences pref, int cacheSize, boolean lazy)
+			throws BackingStoreException {
 		this.pref = pref;
-		this.children = pref.childrenNames();
+		this.cacheSize = cacheSize;
+		this.lazy = lazy;
+		if (!lazy) {
+			this.children = readChildrenNames();
+		}
+		this.childCache = new LinkedHashMap<String, TreeNode>(16, 0.75f, true);
+		this.nodeHandler = new NodeHandler() {
+
+			@Override
+			public void childrenChanged(Set<String> names) {
+				PreferenceTreeNode.this.childrenChanged(names);
+			}
+		};
+		try {
+			PreferenceEventDispatcher.getDefault().addNodeHandler(pref,
+					nodeHandler);
+		} catch (IllegalStateException e) {
+			// the node has been removed, nothing will change
+			nodeHandler = null;
+		}
 	}
 
 	/**
@@ -45,30 +156,436 @@ public class PreferenceTreeNode extends DefaultMutableTreeNode {
 		return pref;
 	}
 
+	/**
+	 * Returns the model notified when children are added to or removed from
+	 * the backing store.
+	 * 
+	 * @return the tree model, or <code>null</code> if none
+	 */
+	public DefaultTreeModel getTreeModel() {
+		return model;
+	}
+
+	/**
+	 * Sets the model notified when children are added to or removed from the
+	 * backing store. Children created afterwards notify the same model.
+	 * 
+	 * @param model
+	 *            the tree model containing this node, or <code>null</code>
+	 */
+	public synchronized void setTreeModel(DefaultTreeModel model) {
+		this.model = model;
+		for (TreeNode child : childCache.values()) {
+			if (child instanceof PreferenceTreeNode) {
+				((PreferenceTreeNode) child).setTreeModel(model);
+			}
+		}
+	}
+
+	/**
+	 * Returns the maximum number of child nodes kept in the cache.
+	 * 
+	 * @return the cache size
+	 */
+	public int getCacheSize() {
+		return cacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of child nodes kept in the cache. Children
+	 * which have their own children cached are never evicted, so a deeply
+	 * expanded tree may temporarily exceed this size.
+	 * 
+	 * @param cacheSize
+	 *            the cache size
+	 */
+	public synchronized void setCacheSize(int cacheSize) {
+		this.cacheSize = cacheSize;
+		evict();
+	}
+
+	/**
+	 * Returns whether the children node names are loaded on demand.
+	 * 
+	 * @return <code>true</code> if lazy, else <code>false</code>
+	 */
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	/**
+	 * Returns whether the children node names have been loaded.
+	 * 
+	 * @return <code>true</code> if loaded, else <code>false</code>
+	 */
+	public synchronized boolean isLoaded() {
+		return children != null;
+	}
+
+	/**
+	 * Reads the children node names from the backing store without modifying
+	 * this node. This may be called from any thread, and the result passed to
+	 * {@link #setChildrenNames(String[])} on the event dispatch thread.
+	 * 
+	 * @return the children node names
+	 * @throws BackingStoreException
+	 *             if a failure in the backing store occurs, or inability to
+	 *             communicate with it
+	 */
+	public String[] fetchChildrenNames() throws BackingStoreException {
+		return readChildrenNames();
+	}
+
+	/**
+	 * Reads the children node names from the backing store, measuring the
+	 * read.
+	 * 
+	 * @return the children node names
+	 * @throws BackingStoreException
+	 *             if a failure in the backing store occurs, or inability to
+	 *             communicate with it
+	 */
+	private String[] readChildrenNames() throws BackingStoreException {
+		long start = PreferenceMetrics.start();
+		Trace trace = PreferenceMetrics.trace(Operation.CHILDREN_NAMES);
+		String[] names = pref.childrenNames();
+		PreferenceMetrics.stop(Operation.CHILDREN_NAMES, start);
+		if (trace != null) {
+			trace.end(pref.absolutePath(), names.length);
+		}
+		return names;
+	}
+
+	/**
+	 * Returns a copy of the children node names, or <code>null</code> if they
+	 * have not been loaded.
+	 * 
+	 * @return the children node names
+	 */
+	public synchronized String[] getChildrenNames() {
+		return (children == null) ? null : children.clone();
+	}
+
+	/**
+	 * Sets the children node names, replacing the placeholder child of an
+	 * unloaded node. Cached children which are not named in
+	 * <code>names</code> are released.
+	 * 
+	 * @param names
+	 *            the children node names
+	 */
+	public synchronized void setChildrenNames(String[] names) {
+		children = (names == null) ? new String[0] : names;
+		Set<String> retained = new HashSet<String>(Arrays.asList(children));
+		Iterator<Map.Entry<String, TreeNode>> it = childCache.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, TreeNode> entry = it.next();
+			if (!retained.contains(entry.getKey())) {
+				it.remove();
+				if (entry.getValue() instanceof PreferenceTreeNode) {
+					((PreferenceTreeNode) entry.getValue()).dispose();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the placeholder child displayed while the children node names
+	 * are loading.
+	 * 
+	 * @return the placeholder node
+	 */
+	public synchronized TreeNode getLoadingNode() {
+		if (loadingNode == null) {
+			DefaultMutableTreeNode node = new DefaultMutableTreeNode(
+					LOADING_TEXT, false);
+			node.setParent(this);
+			loadingNode = node;
+		}
+		return loadingNode;
+	}
+
+	/**
+	 * Re-reads the children node names from the backing store once after the
+	 * children named <code>names</code> were added or removed, drops them from
+	 * the cache and notifies the tree model of the children inserted and
+	 * removed. This is called on the event dispatch thread.
+	 * 
+	 * @see #setTreeModel(DefaultTreeModel)
+	 * @param names
+	 *            the names of the children added or removed
+	 */
+	protected void childrenChanged(Set<String> names) {
+		String[] before;
+		Map<String, TreeNode> released = new LinkedHashMap<String, TreeNode>();
+		synchronized (this) {
+			before = children;
+			for (String name : names) {
+				TreeNode child = release(name);
+				if (child != null) {
+					released.put(name, child);
+				}
+			}
+			if (before == null) {
+				return; // not loaded yet, the placeholder is still shown
+			}
+			reload();
+		}
+		if (model != null) {
+			fireDifference(before, getChildrenNames(), released);
+		}
+	}
+
+	/**
+	 * Notifies the tree model of the children removed from
+	 * <code>before</code> and inserted into <code>after</code>. If the
+	 * children kept are not in the same order a structure changed event is
+	 * fired instead.
+	 * 
+	 * @param before
+	 *            the children node names before the change
+	 * @param after
+	 *            the children node names after the change
+	 * @param released
+	 *            the child nodes released from the cache, by name
+	 */
+	private void fireDifference(String[] before, String[] after,
+			Map<String, TreeNode> released) {
+		Set<String> old = new HashSet<String>(Arrays.asList(before));
+		Set<String> now = new HashSet<String>(Arrays.asList(after));
+		List<String> keptBefore = new ArrayList<String>();
+		List<Integer> removed = new ArrayList<Integer>();
+		for (int i = 0; i < before.length; i++) {
+			if (now.contains(before[i])) {
+				keptBefore.add(before[i]);
+			} else {
+				removed.add(i);
+			}
+		}
+		List<String> keptAfter = new ArrayList<String>();
+		List<Integer> inserted = new ArrayList<Integer>();
+		for (int i = 0; i < after.length; i++) {
+			if (old.contains(after[i])) {
+				keptAfter.add(after[i]);
+			} else {
+				inserted.add(i);
+			}
+		}
+		if (!keptBefore.equals(keptAfter)) {
+			model.nodeStructureChanged(this);
+			return; // return immediately
+		}
+		if (!removed.isEmpty()) {
+			int[] indices = new int[removed.size()];
+			Object[] nodes = new Object[indices.length];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = removed.get(i);
+				String name = before[indices[i]];
+				nodes[i] = released.containsKey(name) ? released.get(name)
+						: new DefaultMutableTreeNode(name, false);
+			}
+			model.nodesWereRemoved(this, indices, nodes);
+		}
+		if (!inserted.isEmpty()) {
+			int[] indices = new int[inserted.size()];
+			for (int i = 0; i < indices.length; i++) {
+				indices[i] = inserted.get(i);
+			}
+			model.nodesWereInserted(this, indices);
+		}
+	}
+
+	/**
+	 * Drops the cached child named <code>name</code>, disposing it.
+	 * 
+	 * @param name
+	 *            the child node name
+	 * @return the child dropped, or <code>null</code> if not cached
+	 */
+	private TreeNode release(String name) {
+		TreeNode child = childCache.remove(name);
+		if (child instanceof PreferenceTreeNode) {
+			((PreferenceTreeNode) child).dispose();
+		}
+		return child;
+	}
+
+	/**
+	 * Re-reads the children node names from the backing store, unless they
+	 * have not been loaded yet.
+	 */
+	private void reload() {
+		if (children == null) {
+			return; // not loaded yet, nothing to re-read
+		}
+		try {
+			children = readChildrenNames();
+		} catch (BackingStoreException e) {
+			e.printStackTrace();
+		} catch (IllegalStateException e) {
+			// this node has been removed
+			children = new String[0];
+		}
+	}
+
+	/**
+	 * Releases the cached child nodes. This should be called when the node is
+	 * collapsed so the subtree may be garbage collected.
+	 */
+	public synchronized void releaseChildren() {
+		for (TreeNode child : childCache.values()) {
+			if (child instanceof PreferenceTreeNode) {
+				((PreferenceTreeNode) child).dispose();
+			}
+		}
+		childCache.clear();
+	}
+
+	/**
+	 * Releases the cached child nodes and stops listening to the backing store
+	 * for changes. The node should not be used afterwards.
+	 */
+	public synchronized void dispose() {
+		releaseChildren();
+		if (nodeHandler != null) {
+			PreferenceEventDispatcher.getDefault().removeNodeHandler(pref,
+					nodeHandler);
+			nodeHandler = null;
+		}
+	}
+
+	/**
+	 * Returns whether any child nodes are currently cached.
+	 * 
+	 * @return <code>true</code> if children are cached, else
+	 *         <code>false</code>
+	 */
+	protected synchronized boolean hasCachedChildren() {
+		return !childCache.isEmpty();
+	}
+
+	/**
+	 * Evicts the least recently used children until the cache is within its
+	 * size. Children with cached children of their own are skipped, since they
+	 * are most likely expanded in a tree.
+	 */
+	private void evict() {
+		if (childCache.size() <= cacheSize) {
+			return; // return immediately
+		}
+		List<PreferenceTreeNode> evicted = new ArrayList<PreferenceTreeNode>();
+		Iterator<TreeNode> it = childCache.values().iterator();
+		while (childCache.size() > cacheSize && it.hasNext()) {
+			TreeNode child = it.next();
+			if (child instanceof PreferenceTreeNode) {
+				PreferenceTreeNode node = (PreferenceTreeNode) child;
+				if (node.hasCachedChildren()) {
+					continue;
+				}
+				evicted.add(node);
+			}
+			it.remove();
+		}
+		for (PreferenceTreeNode node : evicted) {
+			node.dispose();
+		}
+	}
+
 	@Override
-	public boolean isLeaf() {
-		return ((children == null) || (children.length == 0));
+	public synchronized boolean isLeaf() {
+		// an unloaded node may have children
+		return ((children != null) && (children.length == 0));
 	}
 
 	@Override
-	public int getChildCount() {
-		return children.length;
+	public synchronized int getChildCount() {
+		return (children == null) ? 1 : children.length;
 	}
 
 	@Override
-	public TreeNode getChildAt(int index) {
+	public synchronized TreeNode getChildAt(int index) {
 		TreeNode child = null;
-		if (index < children.length) {
+		if (children == null) {
+			if (index == 0) {
+				child = getLoadingNode();
+			}
+		} else if (index < children.length) {
+			child = getChild(children[index]);
+		}
+		return child;
+	}
+
+	/**
+	 * Returns the child node named <code>name</code>, creating and caching it
+	 * if necessary. This does not require the children node names to be
+	 * loaded, which allows a known descendant to be reached without reading
+	 * its siblings from the backing store.
+	 * <p>
+	 * If the child no longer exists, because <code>name</code> is stale, a
+	 * leaf standing in for it is returned rather than creating the child
+	 * again. The leaf is cached like a child, so the same node is returned
+	 * until the name is released by a change of the children, and paths
+	 * through it remain equal.
+	 * 
+	 * @param name
+	 *            the child node name
+	 * @return the child node
+	 */
+	public synchronized TreeNode getChild(String name) {
+		TreeNode child = childCache.get(name);
+		if (child == null) {
+			Preferences childPref = PrefUtils.childIfExists(pref, name);
+			if (childPref == null) {
+				DefaultMutableTreeNode stale = new DefaultMutableTreeNode(name,
+						false);
+				stale.setParent(this);
+				childCache.put(name, stale);
+				evict();
+				return stale;
+			}
 			try {
-				child = new PreferenceTreeNode(pref.node(children[index]));
+				PreferenceTreeNode node = new PreferenceTreeNode(childPref,
+						cacheSize, lazy);
+				node.setParent(this);
+				node.model = model;
+				child = node;
 			} catch (BackingStoreException e) {
 				e.printStackTrace();
 				child = new DefaultMutableTreeNode("Problem Child!");
 			}
+			childCache.put(name, child);
+			evict();
 		}
 		return child;
 	}
 
+	@Override
+	public synchronized int getIndex(TreeNode aChild) {
+		if (children == null) {
+			return (aChild != null && aChild == loadingNode) ? 0 : -1;
+		}
+		String name = null;
+		if (aChild instanceof PreferenceTreeNode) {
+			name = ((PreferenceTreeNode) aChild).getPrefObject().name();
+		} else {
+			for (Map.Entry<String, TreeNode> entry : childCache.entrySet()) {
+				if (entry.getValue() == aChild) {
+					name = entry.getKey();
+					break;
+				}
+			}
+		}
+		int index = -1;
+		for (int i = 0; name != null && i < children.length; i++) {
+			if (children[i].equals(name)) {
+				index = i;
+				break;
+			}
+		}
+		return index;
+	}
+
 	@Override
 	public String toString() {
 		String name = pref.name();
@@ -0,0 +1,557 @@
+package usr.erichschroeter.jpreferences.io;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * A <code>PreferenceExporter</code> writes preference nodes to a stream in one
+ * of the {@link PreferenceFormat}s.
+ * <p>
+ * Unlike <code>Preferences.exportSubtree</code>, which builds a document of
+ * the whole subtree before writing it, nodes are written as they are visited.
+ * Only the keys of the node being written and the path to it are held in
+ * memory, however large the subtree is.
+ * <p>
+ * Documents in the XML format can be read by
+ * <code>Preferences.importPreferences</code> as well as by
+ * {@link PreferenceImporter}.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceExporter {
+
+	/** The format nodes are written in. */
+	private PreferenceFormat format;
+	/** The number of nodes written by the last export. */
+	private long nodeCount;
+	/** The number of entries written by the last export. */
+	private long entryCount;
+
+	/**
+	 * Constructs a <code>PreferenceExporter</code> writing the XML format.
+	 * <p>
+	 * This is equivalent to
+	 * <code>PreferenceExporter(PreferenceFormat.XML)</code>.
+	 */
+	public PreferenceExporter() {
+		this(PreferenceFormat.XML);
+	}
+
+	/**
+	 * Constructs a <code>PreferenceExporter</code> specifying the format to
+	 * write.
+	 * 
+	 * @param format
+	 *            the format
+	 */
+	public PreferenceExporter(PreferenceFormat format) {
+		this.format = format;
+	}
+
+	/**
+	 * Returns the format nodes are written in.
+	 * 
+	 * @return the format
+	 */
+	public PreferenceFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * Sets the format nodes are written in.
+	 * 
+	 * @param format
+	 *            the format
+	 * @return this <code>PreferenceExporter</code>
+	 */
+	public PreferenceExporter setFormat(PreferenceFormat format) {
+		this.format = format;
+		return this;
+	}
+
+	/**
+	 * Returns the number of nodes written by the last export, not counting
+	 * the ancestors written without their entries.
+	 * 
+	 * @return the number of nodes
+	 */
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the number of entries written by the last export.
+	 * 
+	 * @return the number of entries
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Writes <code>node</code> and all of its descendants to <code>out</code>.
+	 * The stream is flushed but not closed.
+	 * 
+	 * @param node
+	 *            the root of the subtree to write
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing to the stream fails
+	 * @throws BackingStoreException
+	 *             if the preferences cannot be read
+	 */
+	public void exportSubtree(Preferences node, OutputStream out)
+			throws IOException, BackingStoreException {
+		export(node, out, true);
+	}
+
+	/**
+	 * Writes <code>node</code> to <code>out</code> without its descendants.
+	 * The stream is flushed but not closed.
+	 * 
+	 * @param node
+	 *            the node to write
+	 * @param out
+	 *            the stream to write to
+	 * @throws IOException
+	 *             if writing to the stream fails
+	 * @throws BackingStoreException
+	 *             if the preferences cannot be read
+	 */
+	public void exportNode(Preferences node, OutputStream out)
+			throws IOException, BackingStoreException {
+		export(node, out, false);
+	}
+
+	/**
+	 * Writes <code>node</code>, and its descendants if <code>subtree</code> is
+	 * <code>true</code>, to <code>out</code>.
+	 * 
+	 * @param node
+	 *            the node to write
+	 * @param out
+	 *            the stream to write to
+	 * @param subtree
+	 *            whether to write the descendants
+	 * @throws IOException
+	 *             if writing to the stream fails
+	 * @throws BackingStoreException
+	 *             if the preferences cannot be read
+	 */
+	private void export(Preferences node, OutputStream out, boolean subtree)
+			throws IOException, BackingStoreException {
+		nodeCount = 0;
+		entryCount = 0;
+		Writer writer = (format == PreferenceFormat.BINARY) ? new BinaryWriter(
+				out) : new XmlWriter(out);
+		writer.start(node);
+		visit(writer, node, subtree);
+		writer.end();
+	}
+
+	/**
+	 * Writes <code>node</code>, its entries and, if <code>subtree</code> is
+	 * <code>true</code>, its descendants.
+	 * 
+	 * @param writer
+	 *            the writer of the format
+	 * @param node
+	 *            the node to write
+	 * @param subtree
+	 *            whether to write the descendants
+	 * @throws IOException
+	 *             if writing to the stream fails
+	 * @throws BackingStoreException
+	 *             if the preferences cannot be read
+	 */
+	private void visit(Writer writer, Preferences node, boolean subtree)
+			throws IOException, BackingStoreException {
+		writer.startNode(node.name());
+		for (String key : node.keys()) {
+			String value = node.get(key, null);
+			if (value != null) { // null if removed since the keys were read
+				writer.entry(key, value);
+				entryCount++;
+			}
+		}
+		writer.endEntries();
+		nodeCount++;
+		if (subtree) {
+			for (String name : node.childrenNames()) {
+				visit(writer, node.node(name), true);
+			}
+		}
+		writer.endNode();
+	}
+
+	/**
+	 * A writer of one of the formats. The nodes are started and ended in
+	 * depth first order, and the entries of a node are written before its
+	 * children are started.
+	 */
+	private static abstract class Writer {
+
+		/**
+		 * Writes the beginning of the document, up to but not including the
+		 * node being exported.
+		 * 
+		 * @param node
+		 *            the node being exported
+		 * @throws IOException
+		 *             if writing fails
+		 */
+		abstract void start(Preferences node) throws IOException;
+
+		/**
+		 * Starts a node.
+		 * 
+		 * @param name
+		 *            the node name
+		 * @throws IOException
+		 *             if writing fails
+		 */
+		abstract void startNode(String name) throws IOException;
+
+		/**
+		 * Writes an entry of the current node.
+		 * 
+		 * @param key
+		 *            the key
+		 * @param value
+		 *            the value
+		 * @throws IOException
+		 *             if writing fails
+		 */
+		abstract void entry(String key, String value) throws IOException;
+
+		/**
+		 * Ends the entries of the current node.
+		 * 
+		 * @throws IOException
+		 *             if writing fails
+		 */
+		abstract void endEntries() throws IOException;
+
+		/**
+		 * Ends the current node.
+		 * 
+		 * @throws IOException
+		 *             if writing fails
+		 */
+		abstract void endNode() throws IOException;
+
+		/**
+		 * Writes the end of the document and flushes the stream.
+		 * 
+		 * @throws IOException
+		 *             if writing fails
+		 */
+		abstract void end() throws IOException;
+
+	}
+
+	/**
+	 * Writes the XML format of <code>Preferences.exportSubtree</code>. The
+	 * ancestors of the exported node are written as nodes with empty maps, as
+	 * the JDK does.
+	 */
+	private static class XmlWriter extends Writer {
+
+		/** The document type declaration of the JDK preferences format. */
+		private static final String DOCTYPE = "<!DOCTYPE preferences SYSTEM \"http://java.sun.com/dtd/preferences.dtd\">";
+
+		/** The XML writer. */
+		private XMLStreamWriter xml;
+		/** The text written to, which entries needing escaping are written to. */
+		private java.io.Writer text;
+		/** The depth of the current element, used to indent. */
+		private int depth;
+		/** The number of ancestors written before the exported node. */
+		private int ancestors;
+		/** Whether the exported node is the root, written as the root element. */
+		private boolean root;
+		/** Whether the map of the current node has been started. */
+		private boolean map;
+
+		public XmlWriter(OutputStream out) throws IOException {
+			this.text = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			try {
+				this.xml = XMLOutputFactory.newInstance().createXMLStreamWriter(
+						text);
+			} catch (XMLStreamException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		/**
+		 * Writes a new line and the indentation of the current depth.
+		 * 
+		 * @throws XMLStreamException
+		 *             if writing fails
+		 */
+		private void indent() throws XMLStreamException {
+			StringBuilder builder = new StringBuilder("\n");
+			for (int i = 0; i < depth; i++) {
+				builder.append("  ");
+			}
+			xml.writeCharacters(builder.toString());
+		}
+
+		/**
+		 * Returns whether <code>s</code> contains white space a parser would
+		 * replace by spaces in an attribute value.
+		 * 
+		 * @param s
+		 *            the attribute value
+		 * @return <code>true</code> if it must be written as character
+		 *         references, else <code>false</code>
+		 */
+		private static boolean needsReferences(String s) {
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				if (c == '\n' || c == '\r' || c == '\t') {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns <code>s</code> escaped as an attribute value, with white
+		 * space other than spaces written as character references.
+		 * 
+		 * @param s
+		 *            the attribute value
+		 * @return the escaped value
+		 */
+		private static String escape(String s) {
+			StringBuilder builder = new StringBuilder(s.length() + 16);
+			for (int i = 0; i < s.length(); i++) {
+				char c = s.charAt(i);
+				switch (c) {
+				case '&':
+					builder.append("&amp;");
+					break;
+				case '<':
+					builder.append("&lt;");
+					break;
+				case '>':
+					builder.append("&gt;");
+					break;
+				case '"':
+					builder.append("&quot;");
+					break;
+				case '\n':
+				case '\r':
+				case '\t':
+					builder.append("&#").append((int) c).append(';');
+					break;
+				default:
+					builder.append(c);
+				}
+			}
+			return builder.toString();
+		}
+
+		@Override
+		void start(Preferences node) throws IOException {
+			try {
+				xml.writeStartDocument("UTF-8", "1.0");
+				xml.writeCharacters("\n");
+				xml.writeDTD(DOCTYPE);
+				xml.writeCharacters("\n");
+				xml.writeStartElement("preferences");
+				xml.writeAttribute("EXTERNAL_XML_VERSION", "1.0");
+				depth++;
+				indent();
+				xml.writeStartElement("root");
+				xml.writeAttribute("type", node.isUserNode() ? "user" : "system");
+				root = node.parent() == null;
+				if (!root) {
+					depth++;
+					indent();
+					xml.writeEmptyElement("map");
+					String path = node.parent().absolutePath();
+					for (String name : path.substring(1).split("/")) {
+						if (name.length() > 0) {
+							indent();
+							xml.writeStartElement("node");
+							xml.writeAttribute("name", name);
+							depth++;
+							indent();
+							xml.writeEmptyElement("map");
+							ancestors++;
+						}
+					}
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		@Override
+		void startNode(String name) throws IOException {
+			try {
+				if (root) {
+					// the root element was written by start
+					root = false;
+				} else {
+					indent();
+					xml.writeStartElement("node");
+					xml.writeAttribute("name", name);
+				}
+				depth++;
+				map = false;
+			} catch (XMLStreamException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		@Override
+		void entry(String key, String value) throws IOException {
+			try {
+				if (!map) {
+					indent();
+					xml.writeStartElement("map");
+					depth++;
+					map = true;
+				}
+				indent();
+				if (needsReferences(key) || needsReferences(value)) {
+					// the writer would leave the white space to be normalized
+					xml.flush();
+					text.write("<entry key=\"" + escape(key) + "\" value=\""
+							+ escape(value) + "\"/>");
+				} else {
+					xml.writeEmptyElement("entry");
+					xml.writeAttribute("key", key);
+					xml.writeAttribute("value", value);
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		@Override
+		void endEntries() throws IOException {
+			try {
+				if (map) {
+					depth--;
+					indent();
+					xml.writeEndElement();
+				} else {
+					indent();
+					xml.writeEmptyElement("map");
+				}
+			} catch (XMLStreamException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		@Override
+		void endNode() throws IOException {
+			try {
+				depth--;
+				indent();
+				xml.writeEndElement();
+			} catch (XMLStreamException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+		@Override
+		void end() throws IOException {
+			try {
+				for (; ancestors > 0; ancestors--) {
+					depth--;
+					indent();
+					xml.writeEndElement();
+				}
+				if (depth > 1) {
+					// the root element enclosing the ancestors
+					depth--;
+					indent();
+					xml.writeEndElement();
+				}
+				depth--;
+				indent();
+				xml.writeEndElement();
+				xml.writeCharacters("\n");
+				xml.writeEndDocument();
+				xml.flush();
+				text.flush();
+			} catch (XMLStreamException e) {
+				throw new IOException(e.toString());
+			}
+		}
+
+	}
+
+	/**
+	 * Writes the binary format. A document begins with
+	 * {@link PreferenceFormat#BINARY_MAGIC}, the version, whether the tree is
+	 * the user tree and the absolute path of the parent of the exported node,
+	 * followed by the records of the nodes and ended by
+	 * {@link PreferenceFormat#BINARY_END}.
+	 */
+	private static class BinaryWriter extends Writer {
+
+		/** The buffered stream written to. */
+		private DataOutputStream data;
+
+		public BinaryWriter(OutputStream out) {
+			this.data = new DataOutputStream(new BufferedOutputStream(out));
+		}
+
+		@Override
+		void start(Preferences node) throws IOException {
+			data.writeInt(PreferenceFormat.BINARY_MAGIC);
+			data.writeByte(PreferenceFormat.BINARY_VERSION);
+			data.writeBoolean(node.isUserNode());
+			Preferences parent = node.parent();
+			data.writeUTF((parent == null) ? "" : parent.absolutePath());
+		}
+
+		@Override
+		void startNode(String name) throws IOException {
+			data.writeByte(PreferenceFormat.BINARY_NODE);
+			data.writeUTF(name);
+		}
+
+		@Override
+		void entry(String key, String value) throws IOException {
+			data.writeByte(PreferenceFormat.BINARY_ENTRY);
+			data.writeUTF(key);
+			data.writeUTF(value);
+		}
+
+		@Override
+		void endEntries() throws IOException {
+			// the entries of a node end where its children or end begin
+		}
+
+		@Override
+		void endNode() throws IOException {
+			data.writeByte(PreferenceFormat.BINARY_END_NODE);
+		}
+
+		@Override
+		void end() throws IOException {
+			data.writeByte(PreferenceFormat.BINARY_END);
+			data.flush();
+		}
+
+	}
+
+}
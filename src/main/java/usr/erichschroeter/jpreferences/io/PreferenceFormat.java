@@ -0,0 +1,43 @@
+package usr.erichschroeter.jpreferences.io;
+
+/**
+ * The formats preferences can be exported in and imported from.
+ * 
+ * @author Erich Schroeter
+ */
+public enum PreferenceFormat {
+
+	/**
+	 * The XML format of <code>Preferences.exportSubtree</code>, which the JDK
+	 * and other tools can read.
+	 */
+	XML,
+	/** A compact binary format, faster to write and read than XML. */
+	BINARY;
+
+	/** The value beginning every binary document. */
+	static final int BINARY_MAGIC = 0x4A505246;
+	/** The version of the binary format. */
+	static final int BINARY_VERSION = 1;
+	/** A binary record starting a node. */
+	static final byte BINARY_NODE = 1;
+	/** A binary record of a key and value. */
+	static final byte BINARY_ENTRY = 2;
+	/** A binary record ending a node. */
+	static final byte BINARY_END_NODE = 3;
+	/** The binary record ending the document. */
+	static final byte BINARY_END = 0;
+
+	/**
+	 * Returns the format usually stored in a file named <code>name</code>,
+	 * which is XML for names ending in <code>.xml</code> and binary otherwise.
+	 * 
+	 * @param name
+	 *            the file name
+	 * @return the format
+	 */
+	public static PreferenceFormat forFileName(String name) {
+		return name.toLowerCase().endsWith(".xml") ? XML : BINARY;
+	}
+
+}
@@ -0,0 +1,435 @@
+package usr.erichschroeter.jpreferences.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A <code>PreferenceImporter</code> reads documents written by
+ * {@link PreferenceExporter} or <code>Preferences.exportSubtree</code> and
+ * applies them to the user or system tree. The format of a document is
+ * detected from its first bytes.
+ * <p>
+ * Documents are read and applied node by node, so the memory used does not
+ * depend on the size of the document. The entries of a node are collected in
+ * batches of at most {@link #getBatchSize()} entries, and an entry is only put
+ * if its value differs from the current value, so importing a document again
+ * causes no changes. The tree is flushed once, after the whole document has
+ * been applied.
+ * <p>
+ * The trees imported into default to <code>Preferences.userRoot()</code> and
+ * <code>Preferences.systemRoot()</code> but may be any trees, such as a
+ * <code>LogPreferences</code> tree or the tree shown by a
+ * <code>PreferenceDialog</code>.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceImporter {
+
+	/** The default maximum number of entries applied together. */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/** The root of the tree user preferences are imported into. */
+	private Preferences userRoot;
+	/** The root of the tree system preferences are imported into. */
+	private Preferences systemRoot;
+	/** The maximum number of entries applied together. */
+	private int batchSize;
+	/** The number of nodes read by the last import. */
+	private long nodeCount;
+	/** The number of entries read by the last import. */
+	private long entryCount;
+	/** The number of entries put by the last import. */
+	private long changeCount;
+
+	/**
+	 * Constructs a <code>PreferenceImporter</code> importing into the default
+	 * user and system trees.
+	 * <p>
+	 * This is equivalent to
+	 * <code>PreferenceImporter(Preferences.userRoot(), Preferences.systemRoot())</code>
+	 * .
+	 */
+	public PreferenceImporter() {
+		this(Preferences.userRoot(), Preferences.systemRoot());
+	}
+
+	/**
+	 * Constructs a <code>PreferenceImporter</code> specifying the trees to
+	 * import into.
+	 * 
+	 * @param userRoot
+	 *            the root of the tree user preferences are imported into
+	 * @param systemRoot
+	 *            the root of the tree system preferences are imported into
+	 */
+	public PreferenceImporter(Preferences userRoot, Preferences systemRoot) {
+		this.userRoot = userRoot;
+		this.systemRoot = systemRoot;
+		this.batchSize = DEFAULT_BATCH_SIZE;
+	}
+
+	/**
+	 * Returns the maximum number of entries applied together.
+	 * 
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of entries applied together.
+	 * 
+	 * @param batchSize
+	 *            the batch size
+	 * @return this <code>PreferenceImporter</code>
+	 */
+	public PreferenceImporter setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * Returns the number of nodes read by the last import.
+	 * 
+	 * @return the number of nodes
+	 */
+	public long getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the number of entries read by the last import.
+	 * 
+	 * @return the number of entries
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Returns the number of entries put by the last import, which excludes
+	 * the entries already having the imported value.
+	 * 
+	 * @return the number of changes
+	 */
+	public long getChangeCount() {
+		return changeCount;
+	}
+
+	/**
+	 * Reads the document in <code>in</code> and applies it to the user or
+	 * system tree, whichever it was exported from. The stream is not closed.
+	 * 
+	 * @param in
+	 *            the stream to read from
+	 * @throws IOException
+	 *             if reading from the stream fails
+	 * @throws InvalidPreferencesFormatException
+	 *             if the document is in neither format
+	 * @throws BackingStoreException
+	 *             if the tree cannot be flushed
+	 */
+	public void importPreferences(InputStream in) throws IOException,
+			InvalidPreferencesFormatException, BackingStoreException {
+		nodeCount = 0;
+		entryCount = 0;
+		changeCount = 0;
+		BufferedInputStream buffered = new BufferedInputStream(in);
+		buffered.mark(4);
+		DataInputStream data = new DataInputStream(buffered);
+		int magic;
+		try {
+			magic = data.readInt();
+		} catch (EOFException e) {
+			magic = 0; // too short to be binary
+		}
+		Batch batch = new Batch();
+		if (magic == PreferenceFormat.BINARY_MAGIC) {
+			readBinary(data, batch);
+		} else {
+			buffered.reset();
+			readXml(buffered, batch);
+		}
+		batch.finish();
+	}
+
+	/**
+	 * Reads a document in the binary format, after its magic number.
+	 * 
+	 * @param data
+	 *            the stream to read from
+	 * @param batch
+	 *            the batch applying the document
+	 * @throws IOException
+	 *             if reading from the stream fails
+	 * @throws InvalidPreferencesFormatException
+	 *             if the document is malformed
+	 */
+	private void readBinary(DataInputStream data, Batch batch)
+			throws IOException, InvalidPreferencesFormatException {
+		int version = data.readUnsignedByte();
+		if (version != PreferenceFormat.BINARY_VERSION) {
+			throw new InvalidPreferencesFormatException(
+					"Unsupported binary preferences version: " + version);
+		}
+		Preferences root = data.readBoolean() ? userRoot : systemRoot;
+		String parent = data.readUTF();
+		// like the ancestors of an XML document, the path is relative to the
+		// root imported into, which need not be the root of its tree
+		Preferences base = (parent.length() > 1) ? root.node(parent
+				.substring(1)) : root;
+		batch.begin(root, base);
+		while (true) {
+			byte record = data.readByte();
+			switch (record) {
+			case PreferenceFormat.BINARY_NODE:
+				batch.startNode(data.readUTF());
+				break;
+			case PreferenceFormat.BINARY_ENTRY:
+				batch.entry(data.readUTF(), data.readUTF());
+				break;
+			case PreferenceFormat.BINARY_END_NODE:
+				batch.endNode();
+				break;
+			case PreferenceFormat.BINARY_END:
+				return; // return immediately
+			default:
+				throw new InvalidPreferencesFormatException(
+						"Invalid binary preferences record: " + record);
+			}
+		}
+	}
+
+	/**
+	 * Reads a document in the XML format.
+	 * 
+	 * @param in
+	 *            the stream to read from
+	 * @param batch
+	 *            the batch applying the document
+	 * @throws InvalidPreferencesFormatException
+	 *             if the document is malformed
+	 */
+	private void readXml(InputStream in, Batch batch)
+			throws InvalidPreferencesFormatException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// the document type is known, so it is never fetched
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+		try {
+			XMLStreamReader xml = factory.createXMLStreamReader(in);
+			try {
+				while (xml.hasNext()) {
+					int event = xml.next();
+					if (event == XMLStreamConstants.START_ELEMENT) {
+						startElement(xml, batch);
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+						String element = xml.getLocalName();
+						if ("node".equals(element) || "root".equals(element)) {
+							batch.endNode();
+						}
+					}
+				}
+			} finally {
+				xml.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new InvalidPreferencesFormatException(e);
+		}
+	}
+
+	/**
+	 * Applies the element <code>xml</code> is positioned at.
+	 * 
+	 * @param xml
+	 *            the reader positioned at the start of an element
+	 * @param batch
+	 *            the batch applying the document
+	 * @throws InvalidPreferencesFormatException
+	 *             if the element is invalid
+	 */
+	private void startElement(XMLStreamReader xml, Batch batch)
+			throws InvalidPreferencesFormatException {
+		String element = xml.getLocalName();
+		if ("preferences".equals(element)) {
+			String version = xml.getAttributeValue(null, "EXTERNAL_XML_VERSION");
+			if (version != null && version.compareTo("1.0") > 0) {
+				throw new InvalidPreferencesFormatException(
+						"Exported preferences file format version " + version
+								+ " is not supported");
+			}
+		} else if ("root".equals(element)) {
+			Preferences root = "system".equals(xml.getAttributeValue(null,
+					"type")) ? systemRoot : userRoot;
+			batch.begin(root, root);
+			batch.startNode("");
+		} else if ("node".equals(element)) {
+			batch.startNode(required(xml, "name"));
+		} else if ("entry".equals(element)) {
+			batch.entry(required(xml, "key"), required(xml, "value"));
+		}
+	}
+
+	/**
+	 * Returns the value of the attribute <code>name</code> of the current
+	 * element.
+	 * 
+	 * @param xml
+	 *            the reader positioned at the start of an element
+	 * @param name
+	 *            the attribute name
+	 * @return the attribute value
+	 * @throws InvalidPreferencesFormatException
+	 *             if the element has no such attribute
+	 */
+	private static String required(XMLStreamReader xml, String name)
+			throws InvalidPreferencesFormatException {
+		String value = xml.getAttributeValue(null, name);
+		if (value == null) {
+			throw new InvalidPreferencesFormatException("Element "
+					+ xml.getLocalName() + " is missing attribute " + name);
+		}
+		return value;
+	}
+
+	/**
+	 * Applies the nodes and entries of a document as they are read. Only the
+	 * path to the current node and the pending entries of the current node
+	 * are held.
+	 */
+	private class Batch {
+
+		/** The root of the tree imported into. */
+		private Preferences root;
+		/** The node the document nodes are relative to. */
+		private Preferences base;
+		/** The nodes from the base to the current node. */
+		private List<Preferences> path = new ArrayList<Preferences>();
+		/** The entries of the current node not applied yet. */
+		private Map<String, String> pending = new LinkedHashMap<String, String>();
+
+		/**
+		 * Begins applying a tree.
+		 * 
+		 * @param root
+		 *            the root of the tree, which is flushed at the end
+		 * @param base
+		 *            the node the document nodes are relative to
+		 */
+		void begin(Preferences root, Preferences base) {
+			this.root = root;
+			this.base = base;
+		}
+
+		/**
+		 * Starts applying the child <code>name</code> of the current node.
+		 * 
+		 * @param name
+		 *            the node name
+		 * @throws InvalidPreferencesFormatException
+		 *             if no tree has begun
+		 */
+		void startNode(String name) throws InvalidPreferencesFormatException {
+			if (base == null) {
+				throw new InvalidPreferencesFormatException("Node " + name
+						+ " is outside of a root");
+			}
+			apply();
+			Preferences parent = path.isEmpty() ? base : current();
+			path.add(parent.node(name));
+			nodeCount++;
+		}
+
+		/**
+		 * Adds an entry of the current node, applying the pending entries if
+		 * the batch is full.
+		 * 
+		 * @param key
+		 *            the key
+		 * @param value
+		 *            the value
+		 * @throws InvalidPreferencesFormatException
+		 *             if there is no current node
+		 */
+		void entry(String key, String value)
+				throws InvalidPreferencesFormatException {
+			if (path.isEmpty()) {
+				throw new InvalidPreferencesFormatException("Entry " + key
+						+ " is outside of a node");
+			}
+			entryCount++;
+			pending.put(key, value);
+			if (pending.size() >= batchSize) {
+				apply();
+			}
+		}
+
+		/**
+		 * Ends applying the current node.
+		 */
+		void endNode() {
+			apply();
+			if (!path.isEmpty()) {
+				path.remove(path.size() - 1);
+			}
+		}
+
+		/**
+		 * Applies the pending entries and flushes the tree.
+		 * 
+		 * @throws BackingStoreException
+		 *             if the tree cannot be flushed
+		 */
+		void finish() throws BackingStoreException {
+			apply();
+			if (root != null) {
+				root.flush();
+			}
+		}
+
+		/**
+		 * Returns the current node.
+		 * 
+		 * @return the current node
+		 */
+		private Preferences current() {
+			return path.get(path.size() - 1);
+		}
+
+		/**
+		 * Puts the pending entries whose value differs from the current value
+		 * into the current node.
+		 */
+		private void apply() {
+			if (pending.isEmpty()) {
+				return; // return immediately
+			}
+			Preferences node = current();
+			for (Map.Entry<String, String> entry : pending.entrySet()) {
+				if (!entry.getValue().equals(node.get(entry.getKey(), null))) {
+					node.put(entry.getKey(), entry.getValue());
+					changeCount++;
+				}
+			}
+			pending.clear();
+		}
+
+	}
+
+}
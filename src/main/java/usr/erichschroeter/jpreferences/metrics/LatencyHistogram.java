@@ -0,0 +1,177 @@
+package usr.erichschroeter.jpreferences.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A <code>LatencyHistogram</code> counts durations in buckets whose bounds are
+ * powers of two nanoseconds. Recording a duration is lock-free and does not
+ * allocate, so it may be called from any thread on the hot path.
+ * <p>
+ * Percentiles are approximated by the upper bound of the bucket they fall in,
+ * so they are within a factor of two of the exact value.
+ * 
+ * @author Erich Schroeter
+ */
+public class LatencyHistogram {
+
+	/** The number of buckets, one per bit of a <code>long</code>. */
+	public static final int BUCKETS = 64;
+
+	/** The number of durations recorded in each bucket. */
+	private AtomicLongArray buckets;
+	/** The number of durations recorded. */
+	private AtomicLong count;
+	/** The sum of the durations recorded, in nanoseconds. */
+	private AtomicLong total;
+	/** The longest duration recorded, in nanoseconds. */
+	private AtomicLong max;
+
+	/**
+	 * Constructs an empty <code>LatencyHistogram</code>.
+	 */
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new AtomicLong();
+		this.total = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records a duration. Negative durations, which a clock adjustment may
+	 * produce, are recorded as zero.
+	 * 
+	 * @param nanos
+	 *            the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucketOf(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long longest = max.get();
+		while (nanos > longest && !max.compareAndSet(longest, nanos)) {
+			longest = max.get();
+		}
+	}
+
+	/**
+	 * Returns the number of durations recorded.
+	 * 
+	 * @return the count
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the sum of the durations recorded.
+	 * 
+	 * @return the total in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return total.get();
+	}
+
+	/**
+	 * Returns the longest duration recorded.
+	 * 
+	 * @return the maximum in nanoseconds, or 0 if none was recorded
+	 */
+	public long getMaxNanos() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the durations recorded.
+	 * 
+	 * @return the mean in nanoseconds, or 0 if none was recorded
+	 */
+	public double getMeanNanos() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * Returns the duration which <code>percentile</code> percent of the
+	 * durations recorded do not exceed, approximated by the upper bound of its
+	 * bucket and capped at the maximum.
+	 * 
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the duration in nanoseconds, or 0 if none was recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] counts = getBuckets();
+		long n = 0;
+		for (long c : counts) {
+			n += c;
+		}
+		if (n == 0) {
+			return 0; // return immediately
+		}
+		long rank = (long) Math.ceil(n * Math.min(percentile, 100) / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns a copy of the number of durations in each bucket. Bucket
+	 * <code>i</code> counts the durations between
+	 * <code>2<sup>i-1</sup></code> and <code>2<sup>i</sup> - 1</code>
+	 * nanoseconds, and bucket 0 the durations of 0 nanoseconds.
+	 * 
+	 * @return the counts of the buckets
+	 */
+	public long[] getBuckets() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Discards the durations recorded. Durations recorded concurrently may be
+	 * partially discarded.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * Returns the bucket of a duration.
+	 * 
+	 * @param nanos
+	 *            the duration, not negative
+	 * @return the bucket index
+	 */
+	private static int bucketOf(long nanos) {
+		return Math.min(BUCKETS - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the longest duration counted by a bucket.
+	 * 
+	 * @param bucket
+	 *            the bucket index
+	 * @return the upper bound in nanoseconds
+	 */
+	private static long upperBound(int bucket) {
+		return (bucket >= BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+}
@@ -0,0 +1,299 @@
+package usr.erichschroeter.jpreferences.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import usr.erichschroeter.jpreferences.metrics.PreferenceTracer.Trace;
+
+/**
+ * The <code>PreferenceMetrics</code> counts the backing store operations
+ * performed by the models, and the model and dialog operations, and records
+ * their latencies in a {@link LatencyHistogram} per {@link Operation}.
+ * <p>
+ * Measuring is disabled by default. An operation is measured by calling
+ * {@link #start()} before it and {@link #stop(Operation, long)} after it;
+ * while measuring is disabled both only read a volatile field.
+ * <p>
+ * The measurements are read with {@link #getHistogram(Operation)}, or through
+ * JMX once {@link #register()} has published the metrics as the MBean named
+ * {@link #OBJECT_NAME}.
+ * <p>
+ * Individual operations are also passed to the {@link PreferenceTracer}, if
+ * one is installed, such as the tracer emitting Java Flight Recorder events
+ * built from the <code>jfr</code> source set.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceMetrics implements PreferenceMetricsMBean {
+
+	/** The name the metrics are published under. */
+	public static final String OBJECT_NAME = "usr.erichschroeter.jpreferences:type=PreferenceMetrics";
+
+	/** The operations measured. */
+	public enum Operation {
+		/** Reading the keys of a node. */
+		KEYS,
+		/** Reading a value. */
+		GET,
+		/** Writing a value. */
+		PUT,
+		/** Removing a value. */
+		REMOVE,
+		/** Synchronizing a node with the backing store. */
+		SYNC,
+		/** Writing the modifications of a table model to the backing store. */
+		FLUSH,
+		/** Reading the children names of a node. */
+		CHILDREN_NAMES,
+		/** Reloading the keys and values of a table model. */
+		UPDATE_KEYS,
+		/** Reading a page of values of a paging table model. */
+		LOAD_PAGE,
+		/** Building the table model of a node for the dialog. */
+		CREATE_MODEL,
+		/** Delivering a batch of change events to a model. */
+		DISPATCH,
+		/** Switching the page displayed by the dialog. */
+		SET_PAGE
+	}
+
+	/** The metrics of the library. */
+	private static final PreferenceMetrics INSTANCE = new PreferenceMetrics();
+	/** The tracer recording individual operations, if any. */
+	private static volatile PreferenceTracer tracer = loadTracer();
+
+	/** Whether operations are being measured. */
+	private volatile boolean enabled;
+	/** The latencies of each operation, indexed by ordinal. */
+	private LatencyHistogram[] histograms;
+
+	/**
+	 * Constructs a disabled <code>PreferenceMetrics</code>.
+	 */
+	private PreferenceMetrics() {
+		Operation[] operations = Operation.values();
+		this.histograms = new LatencyHistogram[operations.length];
+		for (int i = 0; i < operations.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Returns the metrics of the library.
+	 * 
+	 * @return the metrics
+	 */
+	public static PreferenceMetrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns the start time of an operation to pass to
+	 * {@link #stop(Operation, long)}.
+	 * 
+	 * @return the current time in nanoseconds, or 0 if measuring is disabled
+	 */
+	public static long start() {
+		return INSTANCE.enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records that <code>operation</code> finished. If <code>start</code> is
+	 * 0, because measuring was disabled when the operation started, nothing
+	 * is recorded.
+	 * 
+	 * @param operation
+	 *            the operation
+	 * @param start
+	 *            the value returned by {@link #start()}
+	 */
+	public static void stop(Operation operation, long start) {
+		if (start == 0) {
+			return; // return immediately
+		}
+		INSTANCE.histograms[operation.ordinal()].record(System.nanoTime()
+				- start);
+	}
+
+	/**
+	 * Returns the trace of <code>operation</code>, to be ended once it is
+	 * performed.
+	 * 
+	 * @param operation
+	 *            the operation
+	 * @return the trace, or <code>null</code> if there is no tracer or it is
+	 *         not recording the operation
+	 */
+	public static Trace trace(Operation operation) {
+		PreferenceTracer current = tracer;
+		return (current == null) ? null : current.begin(operation);
+	}
+
+	/**
+	 * Returns the tracer recording individual operations.
+	 * 
+	 * @return the tracer, or <code>null</code> if none
+	 */
+	public static PreferenceTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Sets the tracer recording individual operations, replacing the one
+	 * found by the <code>ServiceLoader</code>.
+	 * 
+	 * @param tracer
+	 *            the tracer, or <code>null</code> for none
+	 */
+	public static void setTracer(PreferenceTracer tracer) {
+		PreferenceMetrics.tracer = tracer;
+	}
+
+	/**
+	 * Returns the first tracer provided to the <code>ServiceLoader</code>
+	 * which can be loaded by this JVM.
+	 * 
+	 * @return the tracer, or <code>null</code> if none
+	 */
+	private static PreferenceTracer loadTracer() {
+		Iterator<PreferenceTracer> it = ServiceLoader.load(
+				PreferenceTracer.class).iterator();
+		while (true) {
+			try {
+				return it.hasNext() ? it.next() : null;
+			} catch (ServiceConfigurationError e) {
+				// a tracer requiring a newer JVM, such as the JFR tracer
+				continue;
+			} catch (LinkageError e) {
+				// a tracer requiring a newer JVM, such as the JFR tracer
+				continue;
+			}
+		}
+	}
+
+	/**
+	 * Returns the latencies recorded for <code>operation</code>.
+	 * 
+	 * @param operation
+	 *            the operation
+	 * @return the histogram
+	 */
+	public LatencyHistogram getHistogram(Operation operation) {
+		return histograms[operation.ordinal()];
+	}
+
+	/**
+	 * Publishes the metrics to the platform MBean server as
+	 * {@link #OBJECT_NAME}, unless published already.
+	 * 
+	 * @throws JMException
+	 *             if the metrics could not be published
+	 */
+	public static synchronized void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name)) {
+			server.registerMBean(INSTANCE, name);
+		}
+	}
+
+	/**
+	 * Removes the metrics from the platform MBean server, if published.
+	 * 
+	 * @throws JMException
+	 *             if the metrics could not be removed
+	 */
+	public static synchronized void unregister() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (server.isRegistered(name)) {
+			server.unregisterMBean(name);
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enable) {
+		this.enabled = enable;
+	}
+
+	@Override
+	public String[] getOperationNames() {
+		Operation[] operations = Operation.values();
+		String[] names = new String[operations.length];
+		for (int i = 0; i < operations.length; i++) {
+			names[i] = operations[i].name();
+		}
+		return names;
+	}
+
+	@Override
+	public String[] getSummary() {
+		List<String> lines = new ArrayList<String>();
+		for (Operation operation : Operation.values()) {
+			LatencyHistogram histogram = getHistogram(operation);
+			if (histogram.getCount() > 0) {
+				lines.add(String.format(
+						"%s count=%d mean=%.3fms p99=%.3fms max=%.3fms",
+						operation.name(), histogram.getCount(),
+						histogram.getMeanNanos() / 1e6,
+						histogram.getPercentileNanos(99) / 1e6,
+						histogram.getMaxNanos() / 1e6));
+			}
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	@Override
+	public long getCount(String operation) {
+		return histogram(operation).getCount();
+	}
+
+	@Override
+	public double getMeanMillis(String operation) {
+		return histogram(operation).getMeanNanos() / 1e6;
+	}
+
+	@Override
+	public double getMaxMillis(String operation) {
+		return histogram(operation).getMaxNanos() / 1e6;
+	}
+
+	@Override
+	public double getPercentileMillis(String operation, double percentile) {
+		return histogram(operation).getPercentileNanos(percentile) / 1e6;
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : histograms) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * Returns the histogram of the operation named <code>name</code>.
+	 * 
+	 * @param name
+	 *            the operation name, ignoring case
+	 * @return the histogram
+	 * @throws IllegalArgumentException
+	 *             if there is no such operation
+	 */
+	private LatencyHistogram histogram(String name) {
+		return getHistogram(Operation.valueOf(name.trim().toUpperCase()));
+	}
+
+}
@@ -0,0 +1,84 @@
+package usr.erichschroeter.jpreferences.metrics;
+
+/**
+ * The management interface of {@link PreferenceMetrics}, published as a
+ * standard MBean.
+ * 
+ * @author Erich Schroeter
+ */
+public interface PreferenceMetricsMBean {
+
+	/**
+	 * Returns whether operations are being measured.
+	 * 
+	 * @return <code>true</code> if enabled, else <code>false</code>
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Enables or disables measuring operations.
+	 * 
+	 * @param enable
+	 *            <code>true</code> to measure, <code>false</code> to stop
+	 */
+	void setEnabled(boolean enable);
+
+	/**
+	 * Returns the names of the operations measured.
+	 * 
+	 * @return the operation names
+	 */
+	String[] getOperationNames();
+
+	/**
+	 * Returns one line per operation measured at least once, with its count
+	 * and latencies.
+	 * 
+	 * @return the summary lines
+	 */
+	String[] getSummary();
+
+	/**
+	 * Returns the number of times an operation was measured.
+	 * 
+	 * @param operation
+	 *            the operation name
+	 * @return the count
+	 */
+	long getCount(String operation);
+
+	/**
+	 * Returns the mean latency of an operation.
+	 * 
+	 * @param operation
+	 *            the operation name
+	 * @return the mean in milliseconds
+	 */
+	double getMeanMillis(String operation);
+
+	/**
+	 * Returns the longest latency of an operation.
+	 * 
+	 * @param operation
+	 *            the operation name
+	 * @return the maximum in milliseconds
+	 */
+	double getMaxMillis(String operation);
+
+	/**
+	 * Returns a percentile of the latency of an operation.
+	 * 
+	 * @param operation
+	 *            the operation name
+	 * @param percentile
+	 *            the percentile, between 0 and 100
+	 * @return the latency in milliseconds
+	 */
+	double getPercentileMillis(String operation, double percentile);
+
+	/**
+	 * Discards the measurements of all operations.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,47 @@
+package usr.erichschroeter.jpreferences.metrics;
+
+import usr.erichschroeter.jpreferences.metrics.PreferenceMetrics.Operation;
+
+/**
+ * A <code>PreferenceTracer</code> records individual operations as events,
+ * for tools such as Java Flight Recorder to correlate with the rest of the
+ * application.
+ * <p>
+ * The tracer is found with <code>java.util.ServiceLoader</code> when
+ * {@link PreferenceMetrics} is first used, or set with
+ * {@link PreferenceMetrics#setTracer(PreferenceTracer)}. Without a tracer,
+ * tracing an operation costs a single volatile read.
+ * 
+ * @author Erich Schroeter
+ */
+public interface PreferenceTracer {
+
+	/**
+	 * Called before <code>operation</code> is performed.
+	 * 
+	 * @param operation
+	 *            the operation
+	 * @return the trace to end once the operation is performed, or
+	 *         <code>null</code> if the operation is not being recorded
+	 */
+	Trace begin(Operation operation);
+
+	/**
+	 * The trace of an operation being performed.
+	 */
+	interface Trace {
+
+		/**
+		 * Called once the operation is performed.
+		 * 
+		 * @param path
+		 *            the absolute path of the node operated on, or the title
+		 *            of the page switched to
+		 * @param count
+		 *            the number of keys or children involved
+		 */
+		void end(String path, int count);
+
+	}
+
+}
@@ -11,6 +11,13 @@ import usr.erichschroeter.jpreferences.PreferenceDialog;
  * intended to be derived from for creating custom preference pages. It provides
  * a means to customizing a UI component to be displayed in a
  * {@link PreferenceDialog} as a custom preference page.
+ * <p>
+ * By default {@link #initializePage(Component)} is called by the constructor.
+ * A page constructed with initialization deferred is initialized when it is
+ * first displayed, or when {@link #initialize()} is called, so pages which are
+ * never opened never build their components. Since initialization then
+ * happens after construction, fields of derived classes may also be used in
+ * <code>initializePage</code>.
  * 
  * @author Erich Schroeter
  */
@@ -22,6 +29,8 @@ public abstract class CustomPage<C extends Component> implements Page {
 	protected String description;
 	/** A reference to the actual UI component. */
 	protected C page;
+	/** Whether {@link #initializePage(Component)} has been called. */
+	private boolean initialized;
 
 	/**
 	 * Creates a <code>CustomPage</code> specifying the title.
@@ -91,17 +100,65 @@ public abstract class CustomPage<C extends Component> implements Page {
 	 * @param component
 	 *            the UI component of the custom page
 	 */
-	@SuppressWarnings("unchecked")
 	public CustomPage(String title, String description, C component) {
+		this(title, description, component, false);
+	}
+
+	/**
+	 * Creates a <code>CustomPage</code> specifying the title, description, the
+	 * UI component, and whether to defer initializing it.
+	 * <p>
+	 * If <code>title</code> or <code>description</code> are <code>null</code>
+	 * they are set to an empty string. If <code>component</code> is
+	 * <code>null</code> it is set to a {@link JPanel} instance.
+	 * 
+	 * @see #initialize()
+	 * @param title
+	 *            a short string to represent the custom page in a tree
+	 * @param description
+	 *            a short description of what page is useful for
+	 * @param component
+	 *            the UI component of the custom page
+	 * @param deferred
+	 *            <code>true</code> to initialize the page when first
+	 *            displayed, <code>false</code> to initialize it now
+	 */
+	@SuppressWarnings("unchecked")
+	public CustomPage(String title, String description, C component,
+			boolean deferred) {
 		setPageTitle(title);
 		setPageDescription(description);
 		if (component == null) {
 			component = (C) new JPanel();
 		}
 		setPage(component);
+		if (!deferred) {
+			initialize();
+		}
+	}
+
+	/**
+	 * Initializes the page by calling {@link #initializePage(Component)}, unless
+	 * it has been initialized already. This must be called on the event
+	 * dispatch thread once the page may be displayed.
+	 */
+	public void initialize() {
+		if (initialized) {
+			return; // return immediately
+		}
+		initialized = true;
 		initializePage(getPage());
 	}
 
+	/**
+	 * Returns whether the page has been initialized.
+	 * 
+	 * @return <code>true</code> if initialized, else <code>false</code>
+	 */
+	public boolean isInitialized() {
+		return initialized;
+	}
+
 	/**
 	 * Initializes the preference page. This is where you customize the page UI
 	 * component which determines what is displayed to the user in a
@@ -2,8 +2,11 @@ package usr.erichschroeter.jpreferences.page;
 
 import java.util.prefs.Preferences;
 
+import javax.swing.JLabel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.SwingConstants;
+import javax.swing.table.TableModel;
 
 import usr.erichschroeter.jpreferences.PreferenceTable;
 import usr.erichschroeter.jpreferences.PreferenceTableModel;
@@ -11,6 +14,9 @@ import usr.erichschroeter.jpreferences.PreferenceTableModel;
 /**
  * A <code>PreferencePage</code> is a page that displays {@link Preferences} and
  * allows users to view, edit, and delete preferences.
+ * <p>
+ * While the model of the next preference node is being built the page can be
+ * put in a loading state, which displays a message in place of the table.
  * 
  * @author Erich Schroeter
  */
@@ -18,6 +24,10 @@ public class PreferencePage extends CustomPage<JScrollPane> {
 
 	/** The preference table. */
 	private JTable prefTable;
+	/** The message displayed while loading. */
+	private JLabel loadingLabel;
+	/** Whether the page is in the loading state. */
+	private boolean loading;
 
 	/**
 	 * Constructs a <code>PreferencePage</code> specifying the preference node
@@ -33,17 +43,58 @@ public class PreferencePage extends CustomPage<JScrollPane> {
 	@Override
 	protected void initializePage(JScrollPane page) {
 		prefTable = new PreferenceTable();
+		loadingLabel = new JLabel(PreferenceTableModel.LOADING_TEXT,
+				SwingConstants.CENTER);
 		page.setViewportView(prefTable);
 	}
 
 	/**
-	 * Sets the table model.
+	 * Sets the table model. This ends the loading state.
 	 * 
 	 * @param model
 	 *            the model to set
 	 */
 	public void setModel(PreferenceTableModel model) {
 		prefTable.setModel(model);
+		setLoading(false);
+	}
+
+	/**
+	 * Returns whether the page is in the loading state.
+	 * 
+	 * @return <code>true</code> if loading, else <code>false</code>
+	 */
+	public boolean isLoading() {
+		return loading;
+	}
+
+	/**
+	 * Enters or leaves the loading state. While loading a message is displayed
+	 * in place of the table.
+	 * 
+	 * @param loading
+	 *            <code>true</code> to display the loading message,
+	 *            <code>false</code> to display the table
+	 */
+	public void setLoading(boolean loading) {
+		if (this.loading == loading) {
+			return; // return immediately
+		}
+		this.loading = loading;
+		getPage().setViewportView(loading ? loadingLabel : prefTable);
+	}
+
+	/**
+	 * Returns the table model, or <code>null</code> if it has not been set.
+	 * 
+	 * @return the model
+	 */
+	public PreferenceTableModel getModel() {
+		TableModel model = prefTable.getModel();
+		if (model instanceof PreferenceTableModel) {
+			return (PreferenceTableModel) model;
+		}
+		return null;
 	}
 
 }
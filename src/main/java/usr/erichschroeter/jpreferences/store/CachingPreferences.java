@@ -0,0 +1,464 @@
+package usr.erichschroeter.jpreferences.store;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * A <code>CachingPreferences</code> node decorates another {@link Preferences}
+ * node, serving reads from an immutable snapshot of the keys and values of the
+ * decorated node. Reading a key, the keys or the children names of a node
+ * which has been read before neither locks the node nor accesses the decorated
+ * node.
+ * <p>
+ * Modifications are written through to the decorated node. Snapshots are
+ * replaced, never modified, when the decorated node reports a change, so
+ * changes made to the decorated tree directly are visible too. Only
+ * {@link #sync()} discards the snapshots, to pick up changes the decorated
+ * nodes cannot report. Listeners
+ * added to a <code>CachingPreferences</code> node are notified of every change
+ * to the decorated node, with events whose source is the caching node.
+ * <p>
+ * The decorated node becomes the root of the caching tree, so a decorated
+ * subtree can be passed to a <code>PreferenceDialog</code> or
+ * <code>PreferenceTableModel</code> in place of the subtree itself.
+ * 
+ * @author Erich Schroeter
+ */
+public class CachingPreferences extends AbstractPreferences {
+
+	/** The decorated node. */
+	private Preferences delegate;
+	/** The snapshot of the keys and values, or <code>null</code> if not read. */
+	private volatile Map<String, String> snapshot;
+	/** The snapshot of the children names, or <code>null</code> if not read. */
+	private volatile String[] childrenNames;
+	/** Whether this node has been removed, readable without locking. */
+	private volatile boolean removed;
+	/** The children created so far, keyed by name. */
+	private Map<String, CachingPreferences> kids;
+	/** The listeners notified of preference changes. */
+	private List<PreferenceChangeListener> preferenceListeners;
+	/** The listeners notified of node changes. */
+	private List<NodeChangeListener> nodeListeners;
+	/** Updates the snapshots when the decorated node changes. */
+	private PreferenceChangeListener preferenceListener;
+	/** Updates the children when the decorated node changes. */
+	private NodeChangeListener nodeListener;
+
+	/**
+	 * Constructs a <code>CachingPreferences</code> tree decorating
+	 * <code>delegate</code> and its descendants.
+	 * 
+	 * @param delegate
+	 *            the node to decorate
+	 */
+	public CachingPreferences(Preferences delegate) {
+		super(null, "");
+		initialize(delegate);
+	}
+
+	/**
+	 * Constructs a child node of <code>parent</code> decorating
+	 * <code>delegate</code>.
+	 * 
+	 * @param parent
+	 *            the parent node
+	 * @param name
+	 *            the node name
+	 * @param delegate
+	 *            the node to decorate
+	 */
+	protected CachingPreferences(CachingPreferences parent, String name,
+			Preferences delegate) {
+		super(parent, name);
+		initialize(delegate);
+	}
+
+	/**
+	 * Starts following the changes of <code>delegate</code>.
+	 * 
+	 * @param delegate
+	 *            the node to decorate
+	 */
+	private void initialize(Preferences delegate) {
+		this.delegate = delegate;
+		this.kids = new ConcurrentHashMap<String, CachingPreferences>();
+		this.preferenceListeners = new CopyOnWriteArrayList<PreferenceChangeListener>();
+		this.nodeListeners = new CopyOnWriteArrayList<NodeChangeListener>();
+		this.preferenceListener = new PreferenceChangeListener() {
+
+			@Override
+			public void preferenceChange(PreferenceChangeEvent evt) {
+				delegateChanged(evt.getKey());
+			}
+		};
+		this.nodeListener = new NodeChangeListener() {
+
+			@Override
+			public void childAdded(NodeChangeEvent evt) {
+				delegateChildAdded(evt.getChild().name());
+			}
+
+			@Override
+			public void childRemoved(NodeChangeEvent evt) {
+				delegateChildRemoved(evt.getChild().name());
+			}
+		};
+		delegate.addPreferenceChangeListener(preferenceListener);
+		delegate.addNodeChangeListener(nodeListener);
+	}
+
+	/**
+	 * Returns the decorated node.
+	 * 
+	 * @return the decorated node
+	 */
+	public Preferences getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Discards the snapshots of this node and its descendants, so they are
+	 * read from the decorated nodes again.
+	 */
+	public void invalidate() {
+		synchronized (lock) {
+			snapshot = null;
+			childrenNames = null;
+		}
+		for (CachingPreferences kid : kids.values()) {
+			kid.invalidate();
+		}
+	}
+
+	/**
+	 * Returns the snapshot of the keys and values, reading it from the
+	 * decorated node if necessary.
+	 * 
+	 * @return the snapshot
+	 */
+	private Map<String, String> snapshot() {
+		Map<String, String> current = snapshot;
+		if (current != null) {
+			return current;
+		}
+		synchronized (lock) {
+			if (snapshot == null) {
+				Map<String, String> entries = new HashMap<String, String>();
+				try {
+					for (String key : delegate.keys()) {
+						String value = delegate.get(key, null);
+						if (value != null) {
+							entries.put(key, value);
+						}
+					}
+				} catch (BackingStoreException e) {
+					e.printStackTrace();
+				}
+				snapshot = Collections.unmodifiableMap(entries);
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Replaces the snapshot with a copy in which <code>key</code> has
+	 * <code>value</code>, if the snapshot has been read.
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value, or <code>null</code> if the key was removed
+	 */
+	private void update(String key, String value) {
+		synchronized (lock) {
+			if (snapshot == null) {
+				return; // return immediately
+			}
+			Map<String, String> entries = new HashMap<String, String>(snapshot);
+			if (value == null) {
+				entries.remove(key);
+			} else {
+				entries.put(key, value);
+			}
+			snapshot = Collections.unmodifiableMap(entries);
+		}
+	}
+
+	/**
+	 * Updates the snapshot with the current value of <code>key</code> and
+	 * notifies the listeners.
+	 * 
+	 * @param key
+	 *            the key which changed
+	 */
+	private void delegateChanged(String key) {
+		String value;
+		try {
+			// the event may be stale, so the current value is read instead
+			value = delegate.get(key, null);
+		} catch (IllegalStateException e) {
+			return; // the node has been removed
+		}
+		update(key, value);
+		PreferenceChangeEvent event = new PreferenceChangeEvent(this, key,
+				value);
+		for (PreferenceChangeListener listener : preferenceListeners) {
+			listener.preferenceChange(event);
+		}
+	}
+
+	/**
+	 * Discards the snapshot of the children names and notifies the listeners.
+	 * 
+	 * @param name
+	 *            the name of the child which was added
+	 */
+	private void delegateChildAdded(String name) {
+		synchronized (lock) {
+			childrenNames = null;
+		}
+		if (nodeListeners.isEmpty() || removed) {
+			return; // return immediately
+		}
+		NodeChangeEvent event = new NodeChangeEvent(this, node(name));
+		for (NodeChangeListener listener : nodeListeners) {
+			listener.childAdded(event);
+		}
+	}
+
+	/**
+	 * Removes the child decorating a removed node and notifies the listeners.
+	 * 
+	 * @param name
+	 *            the name of the child which was removed
+	 */
+	private void delegateChildRemoved(String name) {
+		synchronized (lock) {
+			childrenNames = null;
+		}
+		CachingPreferences kid = kids.get(name);
+		if (kid == null || kid.delegateExists()) {
+			// never read, or a node of the same name has been added since
+			return;
+		}
+		kids.remove(name);
+		try {
+			kid.removeNode();
+		} catch (IllegalStateException e) {
+			// already removed through this tree
+		} catch (BackingStoreException e) {
+			e.printStackTrace();
+		}
+		NodeChangeEvent event = new NodeChangeEvent(this, kid);
+		for (NodeChangeListener listener : nodeListeners) {
+			listener.childRemoved(event);
+		}
+	}
+
+	/**
+	 * Returns whether the decorated node still exists.
+	 * 
+	 * @return <code>true</code> if it exists, else <code>false</code>
+	 */
+	private boolean delegateExists() {
+		try {
+			return delegate.nodeExists("");
+		} catch (BackingStoreException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Throws an <code>IllegalStateException</code> if this node has been
+	 * removed.
+	 */
+	private void checkRemoved() {
+		if (removed) {
+			throw new IllegalStateException("Node has been removed.");
+		}
+	}
+
+	@Override
+	public boolean isUserNode() {
+		return delegate.isUserNode();
+	}
+
+	/**
+	 * Returns the value associated with <code>key</code> from the snapshot,
+	 * without locking this node once the snapshot has been read.
+	 */
+	@Override
+	public String get(String key, String def) {
+		if (key == null) {
+			throw new NullPointerException("Null key");
+		}
+		checkRemoved();
+		String value = snapshot().get(key);
+		return (value == null) ? def : value;
+	}
+
+	/**
+	 * Returns the keys of this node from the snapshot, without locking this
+	 * node once the snapshot has been read.
+	 */
+	@Override
+	public String[] keys() throws BackingStoreException {
+		checkRemoved();
+		Map<String, String> current = snapshot();
+		return current.keySet().toArray(new String[current.size()]);
+	}
+
+	/**
+	 * Returns the children names of this node from the snapshot, without
+	 * locking this node once the snapshot has been read.
+	 */
+	@Override
+	public String[] childrenNames() throws BackingStoreException {
+		checkRemoved();
+		String[] names = childrenNames;
+		if (names == null) {
+			synchronized (lock) {
+				if (childrenNames == null) {
+					childrenNames = super.childrenNames();
+				}
+				names = childrenNames;
+			}
+		}
+		return names.clone();
+	}
+
+	@Override
+	public void addPreferenceChangeListener(PreferenceChangeListener pcl) {
+		if (pcl == null) {
+			throw new NullPointerException("Change listener is null.");
+		}
+		checkRemoved();
+		preferenceListeners.add(pcl);
+	}
+
+	@Override
+	public void removePreferenceChangeListener(PreferenceChangeListener pcl) {
+		checkRemoved();
+		if (!preferenceListeners.remove(pcl)) {
+			throw new IllegalArgumentException("Listener not registered.");
+		}
+	}
+
+	@Override
+	public void addNodeChangeListener(NodeChangeListener ncl) {
+		if (ncl == null) {
+			throw new NullPointerException("Change listener is null.");
+		}
+		checkRemoved();
+		nodeListeners.add(ncl);
+	}
+
+	@Override
+	public void removeNodeChangeListener(NodeChangeListener ncl) {
+		checkRemoved();
+		if (!nodeListeners.remove(ncl)) {
+			throw new IllegalArgumentException("Listener not registered.");
+		}
+	}
+
+	@Override
+	protected void putSpi(String key, String value) {
+		delegate.put(key, value);
+		update(key, value);
+	}
+
+	@Override
+	protected String getSpi(String key) {
+		return snapshot().get(key);
+	}
+
+	@Override
+	protected void removeSpi(String key) {
+		delegate.remove(key);
+		update(key, null);
+	}
+
+	@Override
+	protected void removeNodeSpi() throws BackingStoreException {
+		removed = true;
+		if (delegateExists()) {
+			delegate.removeNode();
+		} else {
+			try {
+				delegate.removePreferenceChangeListener(preferenceListener);
+				delegate.removeNodeChangeListener(nodeListener);
+			} catch (IllegalStateException e) {
+				// the listeners were discarded with the node
+			}
+		}
+		snapshot = null;
+		kids.clear();
+	}
+
+	@Override
+	protected String[] keysSpi() throws BackingStoreException {
+		return delegate.keys();
+	}
+
+	@Override
+	protected String[] childrenNamesSpi() throws BackingStoreException {
+		return delegateExists() ? delegate.childrenNames() : new String[0];
+	}
+
+	@Override
+	protected AbstractPreferences childSpi(String name) {
+		CachingPreferences kid = new CachingPreferences(this, name,
+				delegate.node(name));
+		kids.put(name, kid);
+		return kid;
+	}
+
+	/**
+	 * Synchronizes the decorated tree with its backing store and discards the
+	 * snapshots, which may no longer reflect the backing store.
+	 * <p>
+	 * This is a full refresh of the subtree: every snapshot is read again
+	 * when next used. Modifications need not be followed by a sync, since the
+	 * snapshots follow the changes the decorated nodes report; use
+	 * {@link #flush()} to write them to the backing store.
+	 */
+	@Override
+	public void sync() throws BackingStoreException {
+		checkRemoved();
+		delegate.sync();
+		invalidate();
+	}
+
+	@Override
+	protected void syncSpi() throws BackingStoreException {
+		delegate.sync();
+	}
+
+	/**
+	 * Flushes the decorated tree, which holds every modification.
+	 */
+	@Override
+	public void flush() throws BackingStoreException {
+		if (!removed) {
+			delegate.flush();
+		}
+	}
+
+	@Override
+	protected void flushSpi() throws BackingStoreException {
+		delegate.flush();
+	}
+
+}
@@ -0,0 +1,154 @@
+package usr.erichschroeter.jpreferences.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+
+/**
+ * A <code>LogPreferences</code> node stores its keys and children in a
+ * {@link PreferenceLog}. Reads are served from memory and every modification
+ * costs a single append to the log, so a preference tree of any size can be
+ * edited without rewriting it.
+ * <p>
+ * A tree can be opened directly with {@link #open(File, boolean)} and passed
+ * to a <code>PreferenceDialog</code> like any other preference node, or
+ * installed as the default preference tree with {@link LogPreferencesFactory}.
+ * 
+ * @author Erich Schroeter
+ */
+public class LogPreferences extends AbstractPreferences {
+
+	/** The log storing the tree this node belongs to. */
+	private PreferenceLog log;
+
+	/**
+	 * Constructs the root node of the tree stored in <code>log</code>.
+	 * 
+	 * @param log
+	 *            the log storing the tree
+	 */
+	protected LogPreferences(PreferenceLog log) {
+		super(null, "");
+		this.log = log;
+	}
+
+	/**
+	 * Constructs a child node of <code>parent</code>, creating it in the log if
+	 * it does not exist.
+	 * 
+	 * @param parent
+	 *            the parent node
+	 * @param name
+	 *            the node name
+	 */
+	protected LogPreferences(LogPreferences parent, String name) {
+		super(parent, name);
+		this.log = parent.log;
+		newNode = log.createNode(absolutePath());
+	}
+
+	/**
+	 * Opens the preference tree stored in <code>file</code>, creating it if it
+	 * does not exist.
+	 * 
+	 * @param file
+	 *            the log file
+	 * @param user
+	 *            <code>true</code> if the tree holds user preferences,
+	 *            <code>false</code> for system preferences
+	 * @return the root node of the tree
+	 * @throws IOException
+	 *             if the file cannot be read or is not a preference log
+	 */
+	public static LogPreferences open(File file, boolean user)
+			throws IOException {
+		return new LogPreferences(new PreferenceLog(file, user));
+	}
+
+	/**
+	 * Returns the log storing the tree this node belongs to.
+	 * 
+	 * @return the log
+	 */
+	public PreferenceLog getLog() {
+		return log;
+	}
+
+	@Override
+	public boolean isUserNode() {
+		return log.isUser();
+	}
+
+	@Override
+	protected void putSpi(String key, String value) {
+		log.put(absolutePath(), key, value);
+	}
+
+	@Override
+	protected String getSpi(String key) {
+		return log.get(absolutePath(), key);
+	}
+
+	@Override
+	protected void removeSpi(String key) {
+		log.remove(absolutePath(), key);
+	}
+
+	@Override
+	protected void removeNodeSpi() throws BackingStoreException {
+		log.removeNode(absolutePath());
+	}
+
+	@Override
+	protected String[] keysSpi() throws BackingStoreException {
+		return log.keys(absolutePath());
+	}
+
+	@Override
+	protected String[] childrenNamesSpi() throws BackingStoreException {
+		return log.childrenNames(absolutePath());
+	}
+
+	@Override
+	protected AbstractPreferences childSpi(String name) {
+		return new LogPreferences(this, name);
+	}
+
+	@Override
+	public void sync() throws BackingStoreException {
+		// the whole tree is in memory, so syncing is a single flush of the log
+		synchronized (lock) {
+			if (isRemoved()) {
+				throw new IllegalStateException("Node has been removed");
+			}
+		}
+		flushSpi();
+	}
+
+	@Override
+	protected void syncSpi() throws BackingStoreException {
+		flushSpi();
+	}
+
+	@Override
+	public void flush() throws BackingStoreException {
+		synchronized (lock) {
+			if (isRemoved()) {
+				return; // the removal has already been logged
+			}
+		}
+		flushSpi();
+	}
+
+	@Override
+	protected void flushSpi() throws BackingStoreException {
+		try {
+			log.flush();
+		} catch (IOException e) {
+			throw new BackingStoreException(e);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package usr.erichschroeter.jpreferences.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import java.util.prefs.PreferencesFactory;
+
+/**
+ * A <code>LogPreferencesFactory</code> provides {@link LogPreferences} trees
+ * as the default user and system preferences. It is installed by setting the
+ * <code>java.util.prefs.PreferencesFactory</code> system property to the name
+ * of this class.
+ * <p>
+ * The user tree is stored in <code>~/.jpreferences/user.log</code> and the
+ * system tree in <code>~/.jpreferences/system.log</code> unless the
+ * {@link #USER_ROOT_PROPERTY} or {@link #SYSTEM_ROOT_PROPERTY} system
+ * properties specify other files. Both logs are flushed when the virtual
+ * machine shuts down.
+ * 
+ * @author Erich Schroeter
+ */
+public class LogPreferencesFactory implements PreferencesFactory {
+
+	/** The system property specifying the user preference log file. */
+	public static final String USER_ROOT_PROPERTY = "usr.erichschroeter.jpreferences.userRoot";
+	/** The system property specifying the system preference log file. */
+	public static final String SYSTEM_ROOT_PROPERTY = "usr.erichschroeter.jpreferences.systemRoot";
+
+	/** The root of the user preference tree. */
+	private static Preferences userRoot;
+	/** The root of the system preference tree. */
+	private static Preferences systemRoot;
+
+	@Override
+	public Preferences userRoot() {
+		synchronized (LogPreferencesFactory.class) {
+			if (userRoot == null) {
+				userRoot = openRoot(USER_ROOT_PROPERTY, "user.log", true);
+			}
+			return userRoot;
+		}
+	}
+
+	@Override
+	public Preferences systemRoot() {
+		synchronized (LogPreferencesFactory.class) {
+			if (systemRoot == null) {
+				systemRoot = openRoot(SYSTEM_ROOT_PROPERTY, "system.log", false);
+			}
+			return systemRoot;
+		}
+	}
+
+	/**
+	 * Opens the tree stored in the file specified by <code>property</code>,
+	 * or <code>defaultName</code> in the <code>.jpreferences</code> directory
+	 * of the user home directory, and flushes it on shut down.
+	 * 
+	 * @param property
+	 *            the system property specifying the log file
+	 * @param defaultName
+	 *            the log file name if the property is not set
+	 * @param user
+	 *            <code>true</code> for the user tree, <code>false</code> for
+	 *            the system tree
+	 * @return the root node of the tree
+	 */
+	private static Preferences openRoot(String property, String defaultName,
+			boolean user) {
+		String path = System.getProperty(property);
+		File file = (path != null) ? new File(path) : new File(new File(
+				System.getProperty("user.home"), ".jpreferences"), defaultName);
+		final LogPreferences root;
+		try {
+			root = LogPreferences.open(file, user);
+		} catch (IOException e) {
+			// the preferences API does not allow a factory to fail
+			throw new IllegalStateException("Could not open preferences: "
+					+ file, e);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread("LogPreferences") {
+
+			@Override
+			public void run() {
+				try {
+					root.flush();
+					root.getLog().close();
+				} catch (BackingStoreException e) {
+					e.printStackTrace();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		return root;
+	}
+
+}
@@ -0,0 +1,152 @@
+package usr.erichschroeter.jpreferences.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+
+/**
+ * A <code>MemoryPreferences</code> node keeps its keys in memory and is never
+ * persisted, which makes it suitable for tests, headless tools and caches
+ * shared by many threads.
+ * <p>
+ * <code>AbstractPreferences</code> serializes every access to a node on the
+ * node's lock. This implementation keeps the keys of each node in a
+ * {@link ConcurrentHashMap}, so {@link #get(String, String)}, the typed
+ * getters and {@link #keys()} read without locking and never wait for a
+ * writer. Modifications still lock only the node they modify, so threads
+ * writing to different nodes do not contend, and preference change listeners
+ * are notified as usual.
+ * 
+ * @author Erich Schroeter
+ */
+public class MemoryPreferences extends AbstractPreferences {
+
+	/** Whether the tree holds user preferences. */
+	private boolean user;
+	/** The keys and values of this node. */
+	private ConcurrentMap<String, String> entries;
+	/** Whether this node has been removed, readable without locking. */
+	private volatile boolean removed;
+
+	/**
+	 * Constructs the root node of an empty user preference tree.
+	 */
+	public MemoryPreferences() {
+		this(true);
+	}
+
+	/**
+	 * Constructs the root node of an empty preference tree.
+	 * 
+	 * @param user
+	 *            <code>true</code> if the tree holds user preferences,
+	 *            <code>false</code> for system preferences
+	 */
+	public MemoryPreferences(boolean user) {
+		super(null, "");
+		this.user = user;
+		this.entries = new ConcurrentHashMap<String, String>();
+	}
+
+	/**
+	 * Constructs a child node of <code>parent</code>.
+	 * 
+	 * @param parent
+	 *            the parent node
+	 * @param name
+	 *            the node name
+	 */
+	protected MemoryPreferences(MemoryPreferences parent, String name) {
+		super(parent, name);
+		this.user = parent.user;
+		this.entries = new ConcurrentHashMap<String, String>();
+		newNode = true;
+	}
+
+	@Override
+	public boolean isUserNode() {
+		return user;
+	}
+
+	/**
+	 * Returns the value associated with <code>key</code> without locking this
+	 * node.
+	 */
+	@Override
+	public String get(String key, String def) {
+		if (key == null) {
+			throw new NullPointerException("Null key");
+		}
+		checkRemoved();
+		String value = entries.get(key);
+		return (value == null) ? def : value;
+	}
+
+	/**
+	 * Returns the keys of this node without locking it.
+	 */
+	@Override
+	public String[] keys() throws BackingStoreException {
+		checkRemoved();
+		return entries.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * Throws an <code>IllegalStateException</code> if this node has been
+	 * removed.
+	 */
+	private void checkRemoved() {
+		if (removed) {
+			throw new IllegalStateException("Node has been removed.");
+		}
+	}
+
+	@Override
+	protected void putSpi(String key, String value) {
+		entries.put(key, value);
+	}
+
+	@Override
+	protected String getSpi(String key) {
+		return entries.get(key);
+	}
+
+	@Override
+	protected void removeSpi(String key) {
+		entries.remove(key);
+	}
+
+	@Override
+	protected void removeNodeSpi() throws BackingStoreException {
+		removed = true;
+		entries.clear();
+	}
+
+	@Override
+	protected String[] keysSpi() throws BackingStoreException {
+		return entries.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	protected String[] childrenNamesSpi() throws BackingStoreException {
+		// every child is held in the cache of AbstractPreferences
+		return new String[0];
+	}
+
+	@Override
+	protected AbstractPreferences childSpi(String name) {
+		return new MemoryPreferences(this, name);
+	}
+
+	@Override
+	protected void syncSpi() throws BackingStoreException {
+		// nothing to synchronize
+	}
+
+	@Override
+	protected void flushSpi() throws BackingStoreException {
+		// nothing to flush
+	}
+
+}
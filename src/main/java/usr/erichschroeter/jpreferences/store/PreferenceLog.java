@@ -0,0 +1,804 @@
+package usr.erichschroeter.jpreferences.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A <code>PreferenceLog</code> stores a whole preference tree in a single
+ * append-only file which is memory mapped. Every modification appends a small
+ * record, and the current state of the tree is kept in memory, rebuilt by
+ * replaying the records when the log is opened.
+ * <p>
+ * Records which have been superseded are counted as garbage. When the garbage
+ * outweighs the live records the log is compacted by rewriting only the live
+ * records to a new file which replaces the old one.
+ * <p>
+ * Each record is written before its length and carries a CRC-32 of its
+ * contents. When the log is replayed it ends at the first record with a
+ * length of zero. A record which is short or fails its checksum, for example
+ * because a crash tore it, also ends the log: a warning is logged and the
+ * log is truncated there, keeping the records before it.
+ * <p>
+ * A compacted log is written next to the log file and renamed over it once
+ * durable. If a crash interrupts the replacement the log is recovered from
+ * whichever file is complete when it is next opened.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceLog {
+
+	/** The value identifying a preference log file. */
+	private static final int MAGIC = 0x4A50524C;
+	/** The version of the record format. */
+	private static final int VERSION = 2;
+	/** The number of bytes before the first record. */
+	private static final int HEADER_SIZE = 8;
+	/** The number of bytes before each record: its length and checksum. */
+	private static final int RECORD_HEADER_SIZE = 8;
+	/** The suffix of the compacted log while it is being written. */
+	private static final String COMPACT_SUFFIX = ".compact";
+	/** The suffix of the log while it is being replaced by the compacted log. */
+	private static final String OLD_SUFFIX = ".old";
+	/** The logger warning about damaged logs. */
+	private static final Logger LOGGER = Logger.getLogger(PreferenceLog.class
+			.getName());
+	/** The initial number of bytes mapped. */
+	private static final int INITIAL_CAPACITY = 1 << 16;
+	/** The default number of garbage bytes before compaction is considered. */
+	public static final int DEFAULT_COMPACTION_THRESHOLD = 1 << 20;
+
+	/** A record setting the value of a key. */
+	private static final byte PUT = 1;
+	/** A record removing a key. */
+	private static final byte REMOVE = 2;
+	/** A record creating a node. */
+	private static final byte CREATE_NODE = 3;
+	/** A record removing a node. */
+	private static final byte REMOVE_NODE = 4;
+
+	/** The log file. */
+	private File file;
+	/** Whether the log stores a user preference tree. */
+	private boolean user;
+	/** The open log file. */
+	private RandomAccessFile raf;
+	/** The channel of {@link #raf}. */
+	private FileChannel channel;
+	/** The mapped contents of the log file. */
+	private MappedByteBuffer buffer;
+	/** The offset after the last record. */
+	private int position;
+	/** The number of bytes of superseded records. */
+	private long garbage;
+	/** The number of garbage bytes before compaction is considered. */
+	private long compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	/** Whether records were appended since the last flush. */
+	private boolean dirty;
+	/** The keys and values of each node, keyed by absolute path. */
+	private Map<String, Map<String, String>> nodes;
+	/** The children names of each node, keyed by absolute path. */
+	private Map<String, Set<String>> children;
+	/** Computes the checksums of records. */
+	private CRC32 crc = new CRC32();
+
+	/**
+	 * Opens the log stored in <code>file</code>, creating it if it does not
+	 * exist.
+	 * 
+	 * @param file
+	 *            the log file
+	 * @param user
+	 *            <code>true</code> if the log stores a user preference tree,
+	 *            <code>false</code> for a system preference tree
+	 * @throws IOException
+	 *             if the file cannot be read or is not a preference log
+	 */
+	public PreferenceLog(File file, boolean user) throws IOException {
+		this.file = file;
+		this.user = user;
+		this.nodes = new HashMap<String, Map<String, String>>();
+		this.children = new HashMap<String, Set<String>>();
+		recover();
+		reset();
+		open();
+	}
+
+	/**
+	 * Finishes or undoes a compaction interrupted by a crash. While the log
+	 * file exists it is complete and any other file is left over. Without it,
+	 * the compacted log is complete if it was renamed aside, otherwise the
+	 * log renamed aside is restored.
+	 * 
+	 * @throws IOException
+	 *             if the log file could not be restored
+	 */
+	private void recover() throws IOException {
+		File compacted = new File(file.getPath() + COMPACT_SUFFIX);
+		File old = new File(file.getPath() + OLD_SUFFIX);
+		if (!file.exists()) {
+			if (old.exists() && compacted.exists()) {
+				// the compacted log was durable before the log was renamed
+				rename(compacted, file);
+			} else if (old.exists()) {
+				rename(old, file);
+			}
+		}
+		if (compacted.exists() && !compacted.delete()) {
+			LOGGER.warning("Could not delete " + compacted);
+		}
+		if (old.exists() && !old.delete()) {
+			LOGGER.warning("Could not delete " + old);
+		}
+	}
+
+	/**
+	 * Renames <code>from</code> to <code>to</code>.
+	 * 
+	 * @param from
+	 *            the file to rename
+	 * @param to
+	 *            the new name, which must not exist
+	 * @throws IOException
+	 *             if the file could not be renamed
+	 */
+	private static void rename(File from, File to) throws IOException {
+		if (!from.renameTo(to)) {
+			throw new IOException("Could not rename " + from + " to " + to);
+		}
+	}
+
+	/** Clears the in-memory state before the log is replayed. */
+	private void reset() {
+		nodes.clear();
+		children.clear();
+		nodes.put("/", new HashMap<String, String>());
+		children.put("/", new LinkedHashSet<String>());
+		garbage = 0;
+	}
+
+	/**
+	 * Maps the log file and replays its records.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read or is not a preference log
+	 */
+	private void open() throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory: " + dir);
+		}
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+		long length = channel.size();
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Preference log too large: " + file);
+		}
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				Math.max(INITIAL_CAPACITY, (int) length));
+		if (length == 0 || (buffer.getInt(0) == 0 && buffer.getInt(4) == 0)) {
+			// a new log, or one whose header was never written to disk
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+			position = HEADER_SIZE;
+			dirty = true;
+			return;
+		}
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			close();
+			throw new IOException("Not a preference log: " + file);
+		}
+		position = HEADER_SIZE;
+		String damage = null;
+		while (position + RECORD_HEADER_SIZE <= buffer.capacity()) {
+			int size = buffer.getInt(position);
+			if (size == 0) {
+				break; // the end of the log
+			}
+			if (size < 0
+					|| (long) position + RECORD_HEADER_SIZE + size > buffer
+							.capacity()) {
+				damage = "a short record";
+				break;
+			}
+			int checksum = buffer.getInt(position + 4);
+			byte[] record = new byte[size];
+			buffer.position(position + RECORD_HEADER_SIZE);
+			buffer.get(record);
+			if (checksum != checksum(record)) {
+				damage = "a corrupt record";
+				break;
+			}
+			try {
+				replay(record);
+			} catch (IOException e) {
+				damage = "a malformed record (" + e.getMessage() + ")";
+				break;
+			}
+			position += RECORD_HEADER_SIZE + size;
+		}
+		if (damage != null) {
+			LOGGER.warning("Truncating preference log " + file + " at offset "
+					+ position + " after " + damage);
+			truncate();
+		}
+	}
+
+	/**
+	 * Discards everything after the last record, so damaged bytes are never
+	 * mistaken for records once new records are appended.
+	 */
+	private void truncate() {
+		for (int i = position; i < buffer.capacity(); i++) {
+			buffer.put(i, (byte) 0);
+		}
+		dirty = true;
+	}
+
+	/**
+	 * Returns the CRC-32 of <code>record</code>.
+	 * 
+	 * @param record
+	 *            the record
+	 * @return the checksum
+	 */
+	private int checksum(byte[] record) {
+		crc.reset();
+		crc.update(record, 0, record.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Applies a record read from the log to the in-memory state.
+	 * 
+	 * @param record
+	 *            the record
+	 * @throws IOException
+	 *             if the record is malformed
+	 */
+	private void replay(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record));
+		byte op = in.readByte();
+		String path = in.readUTF();
+		switch (op) {
+		case PUT:
+			applyPut(path, in.readUTF(), in.readUTF());
+			break;
+		case REMOVE:
+			applyRemove(path, in.readUTF());
+			garbage += RECORD_HEADER_SIZE + record.length;
+			break;
+		case CREATE_NODE:
+			applyCreateNode(path);
+			break;
+		case REMOVE_NODE:
+			applyRemoveNode(path);
+			garbage += RECORD_HEADER_SIZE + record.length;
+			break;
+		default:
+			throw new IOException("Unknown record type " + op + " in " + file);
+		}
+	}
+
+	/**
+	 * Returns whether the log stores a user preference tree.
+	 * 
+	 * @return <code>true</code> for a user tree, <code>false</code> for a
+	 *         system tree
+	 */
+	public boolean isUser() {
+		return user;
+	}
+
+	/**
+	 * Returns the log file.
+	 * 
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the number of bytes of superseded records in the log.
+	 * 
+	 * @return the garbage size
+	 */
+	public synchronized long getGarbage() {
+		return garbage;
+	}
+
+	/**
+	 * Returns the number of bytes of records in the log.
+	 * 
+	 * @return the log size
+	 */
+	public synchronized int getSize() {
+		return position - HEADER_SIZE;
+	}
+
+	/**
+	 * Returns the number of garbage bytes before compaction is considered.
+	 * 
+	 * @return the compaction threshold
+	 */
+	public synchronized long getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * Sets the number of garbage bytes before compaction is considered. The
+	 * log is compacted on {@link #flush()} once the garbage exceeds both this
+	 * threshold and the size of the live records.
+	 * 
+	 * @param bytes
+	 *            the compaction threshold
+	 */
+	public synchronized void setCompactionThreshold(long bytes) {
+		this.compactionThreshold = bytes;
+	}
+
+	/**
+	 * Returns whether the node at <code>path</code> exists.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @return <code>true</code> if the node exists, else <code>false</code>
+	 */
+	public synchronized boolean exists(String path) {
+		return nodes.containsKey(path);
+	}
+
+	/**
+	 * Returns the value of <code>key</code> in the node at <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key
+	 * @return the value, or <code>null</code> if there is none
+	 */
+	public synchronized String get(String path, String key) {
+		Map<String, String> entries = nodes.get(path);
+		return (entries == null) ? null : entries.get(key);
+	}
+
+	/**
+	 * Returns the keys of the node at <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @return the keys
+	 */
+	public synchronized String[] keys(String path) {
+		Map<String, String> entries = nodes.get(path);
+		if (entries == null) {
+			return new String[0];
+		}
+		return entries.keySet().toArray(new String[entries.size()]);
+	}
+
+	/**
+	 * Returns the children names of the node at <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @return the children names
+	 */
+	public synchronized String[] childrenNames(String path) {
+		Set<String> names = children.get(path);
+		if (names == null) {
+			return new String[0];
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Creates the node at <code>path</code>, and its ancestors, if it does not
+	 * exist.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @return <code>true</code> if the node was created, <code>false</code> if
+	 *         it already existed
+	 */
+	public synchronized boolean createNode(String path) {
+		if (nodes.containsKey(path)) {
+			return false;
+		}
+		applyCreateNode(path);
+		append(CREATE_NODE, path, null, null);
+		return true;
+	}
+
+	/**
+	 * Sets the value of <code>key</code> in the node at <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 */
+	public synchronized void put(String path, String key, String value) {
+		createNode(path);
+		if (value.equals(nodes.get(path).get(key))) {
+			return; // return immediately
+		}
+		applyPut(path, key, value);
+		append(PUT, path, key, value);
+	}
+
+	/**
+	 * Removes <code>key</code> from the node at <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key
+	 */
+	public synchronized void remove(String path, String key) {
+		if (applyRemove(path, key) != null) {
+			garbage += append(REMOVE, path, key, null);
+		}
+	}
+
+	/**
+	 * Removes the node at <code>path</code> and its descendants.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 */
+	public synchronized void removeNode(String path) {
+		if (nodes.containsKey(path) && !"/".equals(path)) {
+			applyRemoveNode(path);
+			garbage += append(REMOVE_NODE, path, null, null);
+		}
+	}
+
+	/**
+	 * Writes any appended records to the storage device, then compacts the
+	 * log if it holds more garbage than live records.
+	 * 
+	 * @throws IOException
+	 *             if the log could not be compacted
+	 */
+	public synchronized void flush() throws IOException {
+		if (dirty) {
+			buffer.force();
+			dirty = false;
+		}
+		if (garbage > compactionThreshold && garbage > getSize() - garbage) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the log with only the live records, replacing the log file.
+	 * <p>
+	 * The compacted log is written and made durable first. The log is then
+	 * renamed over by the compacted log, or, where a file cannot be replaced,
+	 * renamed aside before the compacted log is renamed in. Whichever log
+	 * file remains is reopened, so the log remains usable if the replacement
+	 * fails.
+	 * 
+	 * @throws IOException
+	 *             if the compacted log could not be written or could not
+	 *             replace the log
+	 */
+	public synchronized void compact() throws IOException {
+		File compacted = new File(file.getPath() + COMPACT_SUFFIX);
+		FileOutputStream fos = new FileOutputStream(compacted);
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(fos));
+		boolean written = false;
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			List<String> paths = new ArrayList<String>(nodes.keySet());
+			// parents sort before their children
+			Collections.sort(paths);
+			for (String path : paths) {
+				writeRecord(out, encode(CREATE_NODE, path, null, null));
+				for (Map.Entry<String, String> entry : nodes.get(path)
+						.entrySet()) {
+					writeRecord(out, encode(PUT, path, entry.getKey(),
+							entry.getValue()));
+				}
+			}
+			out.flush();
+			// the compacted log must be durable before it replaces the log
+			fos.getFD().sync();
+			written = true;
+		} finally {
+			out.close();
+			if (!written) {
+				compacted.delete();
+			}
+		}
+		close();
+		IOException failure = null;
+		if (!compacted.renameTo(file)) {
+			// some platforms cannot replace a file, so rename it aside first
+			try {
+				rename(file, new File(file.getPath() + OLD_SUFFIX));
+				rename(compacted, file);
+			} catch (IOException e) {
+				failure = e;
+			}
+			// removes the log renamed aside, or restores a log file
+			recover();
+		}
+		reset();
+		open();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Releases the mapped log file. The log should not be used afterwards.
+	 * 
+	 * @throws IOException
+	 *             if the file could not be closed
+	 */
+	public synchronized void close() throws IOException {
+		if (dirty && buffer != null) {
+			buffer.force();
+			dirty = false;
+		}
+		buffer = null;
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+		if (raf != null) {
+			raf.close();
+			raf = null;
+		}
+	}
+
+	/**
+	 * Writes a record to <code>out</code>, preceded by its length and
+	 * checksum.
+	 * 
+	 * @param out
+	 *            the stream to write to
+	 * @param record
+	 *            the record
+	 * @throws IOException
+	 *             if the record could not be written
+	 */
+	private void writeRecord(DataOutputStream out, byte[] record)
+			throws IOException {
+		out.writeInt(record.length);
+		out.writeInt(checksum(record));
+		out.write(record);
+	}
+
+	/**
+	 * Encodes a record.
+	 * 
+	 * @param op
+	 *            the record type
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key, or <code>null</code> if not applicable
+	 * @param value
+	 *            the value, or <code>null</code> if not applicable
+	 * @return the encoded record
+	 */
+	private static byte[] encode(byte op, String path, String key, String value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(op);
+			out.writeUTF(path);
+			if (key != null) {
+				out.writeUTF(key);
+			}
+			if (value != null) {
+				out.writeUTF(value);
+			}
+		} catch (IOException e) {
+			// cannot happen when writing to memory
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Appends a record to the log, growing the mapping if necessary.
+	 * 
+	 * @param op
+	 *            the record type
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key, or <code>null</code> if not applicable
+	 * @param value
+	 *            the value, or <code>null</code> if not applicable
+	 * @return the number of bytes appended
+	 */
+	private int append(byte op, String path, String key, String value) {
+		byte[] record = encode(op, path, key, value);
+		int size = RECORD_HEADER_SIZE + record.length;
+		if (position + size > buffer.capacity()) {
+			long capacity = Math.max(2L * buffer.capacity(), position + size);
+			if (capacity > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Preference log full: " + file);
+			}
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+						capacity);
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not grow preference log: "
+						+ file, e);
+			}
+		}
+		buffer.putInt(position + 4, checksum(record));
+		buffer.position(position + RECORD_HEADER_SIZE);
+		buffer.put(record);
+		// the length is written last so an interrupted record ends the log
+		buffer.putInt(position, record.length);
+		position += size;
+		dirty = true;
+		return size;
+	}
+
+	/**
+	 * Returns the size of a record setting <code>key</code> to
+	 * <code>value</code>, without encoding it.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @return the record size in bytes, including its length and checksum
+	 */
+	private static int putSize(String path, String key, String value) {
+		return RECORD_HEADER_SIZE + 1 + 6 + utfLength(path) + utfLength(key)
+				+ utfLength(value);
+	}
+
+	/**
+	 * Returns the number of bytes <code>str</code> occupies in modified UTF-8.
+	 * 
+	 * @param str
+	 *            the string
+	 * @return the encoded length
+	 */
+	private static int utfLength(String str) {
+		int length = 0;
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the absolute path of the parent of <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute node path, other than the root
+	 * @return the parent path
+	 */
+	private static String parentOf(String path) {
+		int slash = path.lastIndexOf('/');
+		return (slash == 0) ? "/" : path.substring(0, slash);
+	}
+
+	/**
+	 * Creates the node at <code>path</code>, and its ancestors, in memory.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 */
+	private void applyCreateNode(String path) {
+		if (nodes.containsKey(path)) {
+			return;
+		}
+		String parent = parentOf(path);
+		applyCreateNode(parent);
+		nodes.put(path, new HashMap<String, String>());
+		children.put(path, new LinkedHashSet<String>());
+		children.get(parent).add(path.substring(path.lastIndexOf('/') + 1));
+	}
+
+	/**
+	 * Sets the value of <code>key</code> in memory, counting the replaced value
+	 * as garbage.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the value
+	 * @return the replaced value, or <code>null</code> if there was none
+	 */
+	private String applyPut(String path, String key, String value) {
+		applyCreateNode(path);
+		String old = nodes.get(path).put(key, value);
+		if (old != null) {
+			garbage += putSize(path, key, old);
+		}
+		return old;
+	}
+
+	/**
+	 * Removes <code>key</code> in memory, counting the removed value as
+	 * garbage.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 * @param key
+	 *            the key
+	 * @return the removed value, or <code>null</code> if there was none
+	 */
+	private String applyRemove(String path, String key) {
+		Map<String, String> entries = nodes.get(path);
+		String old = (entries == null) ? null : entries.remove(key);
+		if (old != null) {
+			garbage += putSize(path, key, old);
+		}
+		return old;
+	}
+
+	/**
+	 * Removes the node at <code>path</code> and its descendants in memory,
+	 * counting their records as garbage.
+	 * 
+	 * @param path
+	 *            the absolute node path
+	 */
+	private void applyRemoveNode(String path) {
+		Set<String> names = children.get(path);
+		if (names == null) {
+			return;
+		}
+		for (String name : new ArrayList<String>(names)) {
+			applyRemoveNode(path + "/" + name);
+		}
+		for (Map.Entry<String, String> entry : nodes.remove(path).entrySet()) {
+			garbage += putSize(path, entry.getKey(), entry.getValue());
+		}
+		children.remove(path);
+		// the record which created the node
+		garbage += RECORD_HEADER_SIZE + 1 + 2 + utfLength(path);
+		Set<String> siblings = children.get(parentOf(path));
+		if (siblings != null) {
+			siblings.remove(path.substring(path.lastIndexOf('/') + 1));
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package usr.erichschroeter.jpreferences.type;
+
+/**
+ * Encodes and decodes byte arrays in the Base64 encoding of RFC 2045 without
+ * line breaks, which is how <code>Preferences.putByteArray</code> stores them.
+ * 
+ * @author Erich Schroeter
+ */
+class Base64 {
+
+	/** The characters encoding each 6 bit value. */
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+			.toCharArray();
+	/** The 6 bit value of each character, or -1 if not in the alphabet. */
+	private static final int[] VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < VALUES.length; i++) {
+			VALUES[i] = -1;
+		}
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = i;
+		}
+	}
+
+	/**
+	 * Returns <code>bytes</code> encoded in Base64.
+	 * 
+	 * @param bytes
+	 *            the bytes to encode
+	 * @return the encoded text
+	 */
+	static String encode(byte[] bytes) {
+		StringBuilder builder = new StringBuilder((bytes.length + 2) / 3 * 4);
+		for (int i = 0; i < bytes.length; i += 3) {
+			int remaining = Math.min(3, bytes.length - i);
+			int bits = (bytes[i] & 0xff) << 16;
+			if (remaining > 1) {
+				bits |= (bytes[i + 1] & 0xff) << 8;
+			}
+			if (remaining > 2) {
+				bits |= bytes[i + 2] & 0xff;
+			}
+			builder.append(ALPHABET[(bits >> 18) & 0x3f]);
+			builder.append(ALPHABET[(bits >> 12) & 0x3f]);
+			builder.append((remaining > 1) ? ALPHABET[(bits >> 6) & 0x3f] : '=');
+			builder.append((remaining > 2) ? ALPHABET[bits & 0x3f] : '=');
+		}
+		return builder.toString();
+	}
+
+	/**
+	 * Returns the bytes encoded in <code>text</code>.
+	 * 
+	 * @param text
+	 *            the Base64 text
+	 * @return the decoded bytes
+	 * @throws IllegalArgumentException
+	 *             if <code>text</code> is not valid Base64
+	 */
+	static byte[] decode(String text) {
+		int length = text.length();
+		if (length % 4 != 0) {
+			throw new IllegalArgumentException("Invalid Base64 length: "
+					+ length);
+		}
+		int padding = 0;
+		if (length > 0 && text.charAt(length - 1) == '=') {
+			padding++;
+			if (text.charAt(length - 2) == '=') {
+				padding++;
+			}
+		}
+		byte[] bytes = new byte[length / 4 * 3 - padding];
+		int index = 0;
+		for (int i = 0; i < length; i += 4) {
+			int bits = 0;
+			for (int j = 0; j < 4; j++) {
+				char c = text.charAt(i + j);
+				int value;
+				if (c == '=' && i + j >= length - padding) {
+					value = 0;
+				} else if (c >= VALUES.length || (value = VALUES[c]) < 0) {
+					throw new IllegalArgumentException(
+							"Invalid Base64 character: " + c);
+				}
+				bits = (bits << 6) | value;
+			}
+			for (int shift = 16; shift >= 0 && index < bytes.length; shift -= 8) {
+				bytes[index++] = (byte) (bits >> shift);
+			}
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,172 @@
+package usr.erichschroeter.jpreferences.type;
+
+/**
+ * A <code>PreferenceType</code> describes how the string stored for a
+ * preference is parsed into a typed value and formatted back. The built-in
+ * types parse and format values the same way the typed accessors of
+ * <code>Preferences</code>, such as <code>getInt</code> and
+ * <code>putByteArray</code>, do.
+ * 
+ * @author Erich Schroeter
+ * @param <T>
+ *            the type of the values
+ */
+public abstract class PreferenceType<T> {
+
+	/** Values stored as they are. */
+	public static final PreferenceType<String> STRING = new PreferenceType<String>(
+			"string", String.class) {
+
+		@Override
+		public String parse(String text) {
+			return text;
+		}
+	};
+	/** Values parsed as by <code>Preferences.getInt</code>. */
+	public static final PreferenceType<Integer> INTEGER = new PreferenceType<Integer>(
+			"int", Integer.class) {
+
+		@Override
+		public Integer parse(String text) {
+			return Integer.valueOf(text);
+		}
+	};
+	/** Values parsed as by <code>Preferences.getLong</code>. */
+	public static final PreferenceType<Long> LONG = new PreferenceType<Long>(
+			"long", Long.class) {
+
+		@Override
+		public Long parse(String text) {
+			return Long.valueOf(text);
+		}
+	};
+	/** Values parsed as by <code>Preferences.getFloat</code>. */
+	public static final PreferenceType<Float> FLOAT = new PreferenceType<Float>(
+			"float", Float.class) {
+
+		@Override
+		public Float parse(String text) {
+			return Float.valueOf(text);
+		}
+	};
+	/** Values parsed as by <code>Preferences.getDouble</code>. */
+	public static final PreferenceType<Double> DOUBLE = new PreferenceType<Double>(
+			"double", Double.class) {
+
+		@Override
+		public Double parse(String text) {
+			return Double.valueOf(text);
+		}
+	};
+	/**
+	 * Values parsed as by <code>Preferences.getBoolean</code>, which accepts
+	 * only <code>"true"</code> and <code>"false"</code> ignoring case.
+	 */
+	public static final PreferenceType<Boolean> BOOLEAN = new PreferenceType<Boolean>(
+			"boolean", Boolean.class) {
+
+		@Override
+		public Boolean parse(String text) {
+			if ("true".equalsIgnoreCase(text)) {
+				return Boolean.TRUE;
+			} else if ("false".equalsIgnoreCase(text)) {
+				return Boolean.FALSE;
+			}
+			throw new IllegalArgumentException("Not a boolean: " + text);
+		}
+	};
+	/** Values parsed as by <code>Preferences.getByteArray</code>. */
+	public static final PreferenceType<byte[]> BYTE_ARRAY = new PreferenceType<byte[]>(
+			"byte[]", byte[].class) {
+
+		@Override
+		public byte[] parse(String text) {
+			return Base64.decode(text);
+		}
+
+		@Override
+		public String format(byte[] value) {
+			return Base64.encode(value);
+		}
+	};
+
+	/** The name of the type. */
+	private String name;
+	/** The class of the values. */
+	private Class<T> valueClass;
+
+	/**
+	 * Constructs a <code>PreferenceType</code>.
+	 * 
+	 * @param name
+	 *            the name of the type
+	 * @param valueClass
+	 *            the class of the values
+	 */
+	protected PreferenceType(String name, Class<T> valueClass) {
+		this.name = name;
+		this.valueClass = valueClass;
+	}
+
+	/**
+	 * Returns the name of the type.
+	 * 
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the class of the values.
+	 * 
+	 * @return the value class
+	 */
+	public Class<T> getValueClass() {
+		return valueClass;
+	}
+
+	/**
+	 * Parses the string stored for a preference.
+	 * 
+	 * @param text
+	 *            the stored string
+	 * @return the value
+	 * @throws IllegalArgumentException
+	 *             if <code>text</code> is not a valid value
+	 */
+	public abstract T parse(String text);
+
+	/**
+	 * Formats <code>value</code> as the string to store. The default
+	 * implementation returns <code>String.valueOf(value)</code>.
+	 * 
+	 * @param value
+	 *            the value
+	 * @return the string to store
+	 */
+	public String format(T value) {
+		return String.valueOf(value);
+	}
+
+	/**
+	 * Formats <code>value</code> as the string to store if it is of this
+	 * type, or returns its <code>toString()</code> otherwise.
+	 * 
+	 * @param value
+	 *            the value, of any type
+	 * @return the string to store
+	 */
+	public String formatValue(Object value) {
+		if (valueClass.isInstance(value)) {
+			return format(valueClass.cast(value));
+		}
+		return String.valueOf(value);
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
@@ -0,0 +1,147 @@
+package usr.erichschroeter.jpreferences.type;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.prefs.Preferences;
+
+/**
+ * A <code>PreferenceTypeRegistry</code> records the {@link PreferenceType} of
+ * preference keys. A type may be registered for a key in a particular node,
+ * identified by its absolute path, or for a key in every node. Keys without a
+ * registered type have the default type, {@link PreferenceType#STRING} unless
+ * changed.
+ * <p>
+ * The registry is safe to use from several threads.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceTypeRegistry {
+
+	/** The types of keys in every node. */
+	private Map<String, PreferenceType<?>> keyTypes;
+	/** The types of keys in particular nodes, by absolute path. */
+	private Map<String, Map<String, PreferenceType<?>>> nodeTypes;
+	/** The type of keys without a registered type. */
+	private volatile PreferenceType<?> defaultType;
+
+	/**
+	 * Constructs an empty <code>PreferenceTypeRegistry</code>.
+	 */
+	public PreferenceTypeRegistry() {
+		this.keyTypes = new ConcurrentHashMap<String, PreferenceType<?>>();
+		this.nodeTypes = new ConcurrentHashMap<String, Map<String, PreferenceType<?>>>();
+		this.defaultType = PreferenceType.STRING;
+	}
+
+	/**
+	 * Registers <code>type</code> for <code>key</code> in every node.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @param type
+	 *            the type
+	 * @return this <code>PreferenceTypeRegistry</code>
+	 */
+	public PreferenceTypeRegistry register(String key, PreferenceType<?> type) {
+		keyTypes.put(key, type);
+		return this;
+	}
+
+	/**
+	 * Registers <code>type</code> for <code>key</code> in the node at
+	 * <code>path</code>, taking precedence over a type registered for
+	 * <code>key</code> in every node.
+	 * 
+	 * @param path
+	 *            the absolute path of the node
+	 * @param key
+	 *            the preference key
+	 * @param type
+	 *            the type
+	 * @return this <code>PreferenceTypeRegistry</code>
+	 */
+	public synchronized PreferenceTypeRegistry register(String path,
+			String key, PreferenceType<?> type) {
+		Map<String, PreferenceType<?>> types = nodeTypes.get(path);
+		if (types == null) {
+			types = new ConcurrentHashMap<String, PreferenceType<?>>();
+			nodeTypes.put(path, types);
+		}
+		types.put(key, type);
+		return this;
+	}
+
+	/**
+	 * Removes the type registered for <code>key</code> in every node.
+	 * 
+	 * @param key
+	 *            the preference key
+	 */
+	public void unregister(String key) {
+		keyTypes.remove(key);
+	}
+
+	/**
+	 * Removes the type registered for <code>key</code> in the node at
+	 * <code>path</code>.
+	 * 
+	 * @param path
+	 *            the absolute path of the node
+	 * @param key
+	 *            the preference key
+	 */
+	public synchronized void unregister(String path, String key) {
+		Map<String, PreferenceType<?>> types = nodeTypes.get(path);
+		if (types != null) {
+			types.remove(key);
+			if (types.isEmpty()) {
+				nodeTypes.remove(path);
+			}
+		}
+	}
+
+	/**
+	 * Returns the type of <code>key</code> in <code>node</code>.
+	 * 
+	 * @param node
+	 *            the preference node
+	 * @param key
+	 *            the preference key
+	 * @return the type registered for the key in the node, else the type
+	 *         registered for the key, else the default type
+	 */
+	public PreferenceType<?> getType(Preferences node, String key) {
+		if (!nodeTypes.isEmpty()) {
+			Map<String, PreferenceType<?>> types = nodeTypes.get(node
+					.absolutePath());
+			PreferenceType<?> type = (types == null) ? null : types.get(key);
+			if (type != null) {
+				return type;
+			}
+		}
+		PreferenceType<?> type = keyTypes.get(key);
+		return (type == null) ? defaultType : type;
+	}
+
+	/**
+	 * Returns the type of keys without a registered type.
+	 * 
+	 * @return the default type
+	 */
+	public PreferenceType<?> getDefaultType() {
+		return defaultType;
+	}
+
+	/**
+	 * Sets the type of keys without a registered type.
+	 * 
+	 * @param type
+	 *            the default type
+	 * @return this <code>PreferenceTypeRegistry</code>
+	 */
+	public PreferenceTypeRegistry setDefaultType(PreferenceType<?> type) {
+		this.defaultType = type;
+		return this;
+	}
+
+}
@@ -0,0 +1,207 @@
+package usr.erichschroeter.jpreferences.type;
+
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+/**
+ * A <code>TypedPreferences</code> reads typed values from a preference node,
+ * parsing the string of each preference only when it changes. The typed
+ * accessors of <code>Preferences</code> parse the string, or decode it in the
+ * case of <code>getByteArray</code>, every time they are called.
+ * <p>
+ * Values are parsed as by the accessors of <code>Preferences</code>, and the
+ * default value is returned when the stored string is not valid. Cached values
+ * are discarded when the node reports a change, and are never returned for a
+ * string they were not parsed from.
+ * 
+ * @author Erich Schroeter
+ */
+public class TypedPreferences {
+
+	/** The node read. */
+	private Preferences node;
+	/** The parsed values. */
+	private TypedValueCache cache;
+	/** Discards cached values when they change. */
+	private PreferenceChangeListener changeListener;
+
+	/**
+	 * Constructs a <code>TypedPreferences</code> reading <code>node</code>.
+	 * 
+	 * @param node
+	 *            the preference node
+	 */
+	public TypedPreferences(Preferences node) {
+		this.node = node;
+		this.cache = new TypedValueCache();
+		this.changeListener = new PreferenceChangeListener() {
+
+			@Override
+			public void preferenceChange(PreferenceChangeEvent evt) {
+				cache.invalidate(evt.getKey(), evt.getNewValue());
+			}
+		};
+		node.addPreferenceChangeListener(changeListener);
+	}
+
+	/**
+	 * Returns the node read.
+	 * 
+	 * @return the preference node
+	 */
+	public Preferences getNode() {
+		return node;
+	}
+
+	/**
+	 * Stops listening to the node for changes and discards the cached values.
+	 */
+	public void dispose() {
+		try {
+			node.removePreferenceChangeListener(changeListener);
+		} catch (IllegalStateException e) {
+			// the node has been removed, the listener went with it
+		} catch (IllegalArgumentException e) {
+			// the listener was already removed
+		}
+		cache.clear();
+	}
+
+	/**
+	 * Returns the value of <code>key</code> as <code>type</code>.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @param type
+	 *            the type of the preference
+	 * @param def
+	 *            the value returned if there is no valid value
+	 * @return the value, or <code>def</code>
+	 */
+	public <T> T get(String key, PreferenceType<T> type, T def) {
+		String raw = node.get(key, null);
+		if (raw == null) {
+			return def;
+		}
+		T value = cache.get(key, raw, type);
+		return (value == null) ? def : value;
+	}
+
+	/**
+	 * Stores <code>value</code> formatted as <code>type</code> for
+	 * <code>key</code>, caching it so it is not parsed when read.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @param type
+	 *            the type of the preference
+	 * @param value
+	 *            the value
+	 */
+	public <T> void put(String key, PreferenceType<T> type, T value) {
+		String raw = type.format(value);
+		node.put(key, raw);
+		cache.put(key, raw, type, value);
+	}
+
+	/**
+	 * Returns the value of <code>key</code> as an <code>int</code>.
+	 * 
+	 * @see Preferences#getInt(String, int)
+	 * @param key
+	 *            the preference key
+	 * @param def
+	 *            the value returned if there is no valid value
+	 * @return the value, or <code>def</code>
+	 */
+	public int getInt(String key, int def) {
+		return get(key, PreferenceType.INTEGER, def);
+	}
+
+	/**
+	 * Returns the value of <code>key</code> as a <code>long</code>.
+	 * 
+	 * @see Preferences#getLong(String, long)
+	 * @param key
+	 *            the preference key
+	 * @param def
+	 *            the value returned if there is no valid value
+	 * @return the value, or <code>def</code>
+	 */
+	public long getLong(String key, long def) {
+		return get(key, PreferenceType.LONG, def);
+	}
+
+	/**
+	 * Returns the value of <code>key</code> as a <code>float</code>.
+	 * 
+	 * @see Preferences#getFloat(String, float)
+	 * @param key
+	 *            the preference key
+	 * @param def
+	 *            the value returned if there is no valid value
+	 * @return the value, or <code>def</code>
+	 */
+	public float getFloat(String key, float def) {
+		return get(key, PreferenceType.FLOAT, def);
+	}
+
+	/**
+	 * Returns the value of <code>key</code> as a <code>double</code>.
+	 * 
+	 * @see Preferences#getDouble(String, double)
+	 * @param key
+	 *            the preference key
+	 * @param def
+	 *            the value returned if there is no valid value
+	 * @return the value, or <code>def</code>
+	 */
+	public double getDouble(String key, double def) {
+		return get(key, PreferenceType.DOUBLE, def);
+	}
+
+	/**
+	 * Returns the value of <code>key</code> as a <code>boolean</code>.
+	 * 
+	 * @see Preferences#getBoolean(String, boolean)
+	 * @param key
+	 *            the preference key
+	 * @param def
+	 *            the value returned if there is no valid value
+	 * @return the value, or <code>def</code>
+	 */
+	public boolean getBoolean(String key, boolean def) {
+		return get(key, PreferenceType.BOOLEAN, def);
+	}
+
+	/**
+	 * Returns the value of <code>key</code> decoded as a byte array. The
+	 * array is decoded once and copied on each call, so it may be modified.
+	 * 
+	 * @see Preferences#getByteArray(String, byte[])
+	 * @param key
+	 *            the preference key
+	 * @param def
+	 *            the value returned if there is no valid value
+	 * @return a copy of the value, or <code>def</code>
+	 */
+	public byte[] getByteArray(String key, byte[] def) {
+		byte[] value = get(key, PreferenceType.BYTE_ARRAY, null);
+		return (value == null) ? def : value.clone();
+	}
+
+	/**
+	 * Stores <code>value</code> encoded for <code>key</code>.
+	 * 
+	 * @see Preferences#putByteArray(String, byte[])
+	 * @param key
+	 *            the preference key
+	 * @param value
+	 *            the value
+	 */
+	public void putByteArray(String key, byte[] value) {
+		put(key, PreferenceType.BYTE_ARRAY, value.clone());
+	}
+
+}
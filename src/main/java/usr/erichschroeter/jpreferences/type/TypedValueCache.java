@@ -0,0 +1,136 @@
+package usr.erichschroeter.jpreferences.type;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A <code>TypedValueCache</code> keeps the value parsed from the string of
+ * each preference key, alongside the string it was parsed from. A cached value
+ * is returned only while the string passed in is the string it was parsed
+ * from, so a changed preference is parsed again even if the cache was not
+ * told about the change. Strings which are not valid for their type are
+ * remembered too, so they are not parsed again either.
+ * <p>
+ * The cache is safe to use from several threads.
+ * 
+ * @author Erich Schroeter
+ */
+public class TypedValueCache {
+
+	/** The parsed values, by key. */
+	private Map<String, Entry> entries;
+
+	/** A value and the string and type it was parsed from. */
+	private static class Entry {
+
+		/** The string parsed. */
+		private String raw;
+		/** The type parsed as. */
+		private PreferenceType<?> type;
+		/** The value, or <code>null</code> if the string was invalid. */
+		private Object value;
+
+	}
+
+	/**
+	 * Constructs an empty <code>TypedValueCache</code>.
+	 */
+	public TypedValueCache() {
+		this.entries = new ConcurrentHashMap<String, Entry>();
+	}
+
+	/**
+	 * Returns the value of <code>key</code> parsed from <code>raw</code> as
+	 * <code>type</code>, parsing it only if the cached value was not parsed
+	 * from the same string as the same type.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @param raw
+	 *            the string stored for the preference
+	 * @param type
+	 *            the type of the preference
+	 * @return the value, or <code>null</code> if <code>raw</code> is not valid
+	 *         for <code>type</code>
+	 */
+	public <T> T get(String key, String raw, PreferenceType<T> type) {
+		Entry entry = entries.get(key);
+		if (entry == null || entry.type != type || !raw.equals(entry.raw)) {
+			entry = new Entry();
+			entry.raw = raw;
+			entry.type = type;
+			try {
+				entry.value = type.parse(raw);
+			} catch (IllegalArgumentException e) {
+				// remembered as invalid
+			}
+			entries.put(key, entry);
+		}
+		return type.getValueClass().cast(entry.value);
+	}
+
+	/**
+	 * Caches <code>value</code> as the value of <code>key</code> parsed from
+	 * <code>raw</code>, such as after storing a formatted value.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @param raw
+	 *            the string stored for the preference
+	 * @param type
+	 *            the type of the preference
+	 * @param value
+	 *            the value <code>raw</code> parses to
+	 */
+	public <T> void put(String key, String raw, PreferenceType<T> type, T value) {
+		Entry entry = new Entry();
+		entry.raw = raw;
+		entry.type = type;
+		entry.value = value;
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Discards the value of <code>key</code>.
+	 * 
+	 * @param key
+	 *            the preference key
+	 */
+	public void invalidate(String key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Discards the value of <code>key</code> unless it was parsed from
+	 * <code>raw</code>, such as when notified that the preference changed to
+	 * <code>raw</code>.
+	 * 
+	 * @param key
+	 *            the preference key
+	 * @param raw
+	 *            the string now stored, or <code>null</code> if removed
+	 */
+	public void invalidate(String key, String raw) {
+		Entry entry = entries.get(key);
+		if (entry != null && (raw == null || !raw.equals(entry.raw))) {
+			entries.remove(key);
+		}
+	}
+
+	/**
+	 * Discards all values.
+	 */
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of values cached.
+	 * 
+	 * @return the number of values
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+}
@@ -0,0 +1,220 @@
+package usr.erichschroeter.jpreferences.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+
+/**
+ * The <code>IdentityKeys</code> create map keys comparing their referent by
+ * identity, referencing it strongly, weakly or softly. A key may carry the
+ * entry it belongs to, so the entry of a key returned by a
+ * <code>ReferenceQueue</code> can be found and removed.
+ * <p>
+ * Keys remain equal to themselves after their referent has been cleared, so
+ * they can still be removed from a map. A strong key can be used to look up
+ * the entry of a referent stored under a weak or soft key.
+ * 
+ * @author Erich Schroeter
+ */
+public final class IdentityKeys {
+
+	/**
+	 * A key comparing its referent by identity.
+	 * 
+	 * @param <T>
+	 *            the type of the referent
+	 * @param <E>
+	 *            the type of the entry the key belongs to
+	 */
+	public interface Key<T, E> {
+
+		/**
+		 * Returns the referent.
+		 * 
+		 * @return the referent, or <code>null</code> if cleared
+		 */
+		T get();
+
+		/**
+		 * Returns the entry the key belongs to.
+		 * 
+		 * @return the entry, or <code>null</code> if none
+		 */
+		E getEntry();
+
+	}
+
+	private IdentityKeys() {
+	}
+
+	/**
+	 * Returns a key referencing <code>referent</code> strongly.
+	 * 
+	 * @param referent
+	 *            the referent
+	 * @param entry
+	 *            the entry the key belongs to, or <code>null</code> for a
+	 *            lookup key
+	 * @return the key
+	 */
+	public static <T, E> Key<T, E> strong(T referent, E entry) {
+		return new StrongKey<T, E>(referent, entry);
+	}
+
+	/**
+	 * Returns a key referencing <code>referent</code> weakly, which is
+	 * enqueued on <code>queue</code> once the referent is collected.
+	 * 
+	 * @param referent
+	 *            the referent
+	 * @param entry
+	 *            the entry the key belongs to, or <code>null</code>
+	 * @param queue
+	 *            the queue to enqueue the key on
+	 * @return the key
+	 */
+	public static <T, E> Key<T, E> weak(T referent, E entry,
+			ReferenceQueue<? super T> queue) {
+		return new WeakKey<T, E>(referent, entry, queue);
+	}
+
+	/**
+	 * Returns a key referencing <code>referent</code> softly, which is
+	 * enqueued on <code>queue</code> once the referent is collected.
+	 * 
+	 * @param referent
+	 *            the referent
+	 * @param entry
+	 *            the entry the key belongs to, or <code>null</code>
+	 * @param queue
+	 *            the queue to enqueue the key on
+	 * @return the key
+	 */
+	public static <T, E> Key<T, E> soft(T referent, E entry,
+			ReferenceQueue<? super T> queue) {
+		return new SoftKey<T, E>(referent, entry, queue);
+	}
+
+	/**
+	 * Returns whether the key <code>a</code> equals <code>other</code>.
+	 * 
+	 * @param a
+	 *            a key
+	 * @param other
+	 *            the object to compare with
+	 * @return <code>true</code> if the same key or the same live referent
+	 */
+	private static boolean keyEquals(Key<?, ?> a, Object other) {
+		if (a == other) {
+			return true;
+		}
+		if (!(other instanceof Key<?, ?>)) {
+			return false;
+		}
+		Object referent = a.get();
+		return referent != null && referent == ((Key<?, ?>) other).get();
+	}
+
+	/** A key referencing its referent strongly. */
+	private static class StrongKey<T, E> implements Key<T, E> {
+
+		/** The referent. */
+		private T referent;
+		/** The entry the key belongs to. */
+		private E entry;
+		/** The identity hash code of the referent. */
+		private int hash;
+
+		public StrongKey(T referent, E entry) {
+			this.referent = referent;
+			this.entry = entry;
+			this.hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public T get() {
+			return referent;
+		}
+
+		@Override
+		public E getEntry() {
+			return entry;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return keyEquals(this, obj);
+		}
+
+	}
+
+	/** A key referencing its referent weakly. */
+	private static class WeakKey<T, E> extends WeakReference<T> implements
+			Key<T, E> {
+
+		/** The entry the key belongs to. */
+		private E entry;
+		/** The identity hash code of the referent. */
+		private int hash;
+
+		public WeakKey(T referent, E entry, ReferenceQueue<? super T> queue) {
+			super(referent, queue);
+			this.entry = entry;
+			this.hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public E getEntry() {
+			return entry;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return keyEquals(this, obj);
+		}
+
+	}
+
+	/** A key referencing its referent softly. */
+	private static class SoftKey<T, E> extends SoftReference<T> implements
+			Key<T, E> {
+
+		/** The entry the key belongs to. */
+		private E entry;
+		/** The identity hash code of the referent. */
+		private int hash;
+
+		public SoftKey(T referent, E entry, ReferenceQueue<? super T> queue) {
+			super(referent, queue);
+			this.entry = entry;
+			this.hash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public E getEntry() {
+			return entry;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return keyEquals(this, obj);
+		}
+
+	}
+
+}
@@ -1,5 +1,6 @@
 package usr.erichschroeter.jpreferences.utils;
 
+import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
 /**
@@ -10,25 +11,107 @@ import java.util.prefs.Preferences;
  */
 public class PrefUtils {
 
+	/** The registry resolving the nodes of classes in the user tree. */
+	private static PreferenceNodeRegistry userNodes;
+	/** The registry resolving the nodes of classes in the system tree. */
+	private static PreferenceNodeRegistry systemNodes;
+
 	/**
-	 * Returns the class for the given <code>Object</code>. This handles
-	 * catching the <code>ClassNotFoundException</code> thrown by
-	 * {@link Class#forName(String)}. If the exception is caught the
-	 * {@link Preferences} class is returned.
+	 * Returns the class for the given <code>Object</code>.
+	 * <p>
+	 * This used to look the class up again by its canonical name, which fails
+	 * for local, anonymous and generated classes and for nested classes, whose
+	 * canonical name is not their binary name. The class of the object is now
+	 * returned as is.
 	 * 
 	 * @param obj
 	 *            the object whose class to retrieve
-	 * @return <code>obj</code>'s class, or the {@link Preferences} class
+	 * @return <code>obj</code>'s class
+	 * @deprecated use {@link #userNodeFor(Object)} to find the node of an
+	 *             object, which caches the node of each class
 	 */
+	@Deprecated
 	public static Class<?> classFor(Object obj) {
-		Class<?> c = null;
+		return obj.getClass();
+	}
+
+	/**
+	 * Returns the node of the package of <code>obj</code>'s class in the user
+	 * tree. This is the node <code>Preferences.userNodeForPackage</code>
+	 * returns, but the node is cached per class, and nested, anonymous and
+	 * generated classes map to the node of the class they belong to.
+	 * 
+	 * @see PreferenceNodeRegistry
+	 * @param obj
+	 *            the object
+	 * @return the node
+	 */
+	public static Preferences userNodeFor(Object obj) {
+		return userNodes().nodeFor(obj.getClass());
+	}
+
+	/**
+	 * Returns the node of the package of <code>obj</code>'s class in the
+	 * system tree.
+	 * 
+	 * @see #userNodeFor(Object)
+	 * @param obj
+	 *            the object
+	 * @return the node
+	 */
+	public static Preferences systemNodeFor(Object obj) {
+		return systemNodes().nodeFor(obj.getClass());
+	}
+
+	/**
+	 * Returns the child of <code>parent</code> named <code>name</code> if it
+	 * exists. Unlike <code>Preferences.node(String)</code> this never creates
+	 * the child, so a stale name does not bring a removed node back.
+	 * 
+	 * @param parent
+	 *            the parent node
+	 * @param name
+	 *            the child node name
+	 * @return the child, or <code>null</code> if it does not exist or
+	 *         <code>parent</code> has been removed
+	 */
+	public static Preferences childIfExists(Preferences parent, String name) {
 		try {
-			c = Class.forName(obj.getClass().getCanonicalName());
-		} catch (ClassNotFoundException e) {
+			return parent.nodeExists(name) ? parent.node(name) : null;
+		} catch (BackingStoreException e) {
 			e.printStackTrace();
-			c = Preferences.class;
+		} catch (IllegalStateException e) {
+			// the parent has been removed
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the registry of the user tree, creating it when first used so
+	 * the other utilities do not access the user tree.
+	 * 
+	 * @return the registry
+	 */
+	private static synchronized PreferenceNodeRegistry userNodes() {
+		if (userNodes == null) {
+			userNodes = new PreferenceNodeRegistry(Preferences.userRoot(),
+					PreferenceNodeRegistry.Granularity.PACKAGE);
+		}
+		return userNodes;
+	}
+
+	/**
+	 * Returns the registry of the system tree, creating it when first used
+	 * since the system tree may not be accessible.
+	 * 
+	 * @return the registry
+	 */
+	private static synchronized PreferenceNodeRegistry systemNodes() {
+		if (systemNodes == null) {
+			systemNodes = new PreferenceNodeRegistry(Preferences.systemRoot(),
+					PreferenceNodeRegistry.Granularity.PACKAGE);
 		}
-		return c;
+		return systemNodes;
 	}
 
 }
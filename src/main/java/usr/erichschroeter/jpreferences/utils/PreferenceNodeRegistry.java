@@ -0,0 +1,337 @@
+package usr.erichschroeter.jpreferences.utils;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.Preferences;
+
+import usr.erichschroeter.jpreferences.utils.IdentityKeys.Key;
+
+/**
+ * A <code>PreferenceNodeRegistry</code> maps classes to the preference nodes
+ * storing their preferences. The path of a class is resolved once, and the
+ * node handle cached, so finding the node of an object afterwards is a lookup
+ * by the identity of its class, without reflection or building paths.
+ * <p>
+ * By default a class maps to the node of its package, as
+ * <code>Preferences.userNodeForPackage</code> does. With
+ * {@link Granularity#CLASS} each top level class has a node of its own below
+ * the node of its package. Nested, local and anonymous classes map to the
+ * node of their top level class, and generated classes to the node of the
+ * class they were generated from: a proxy class to its first interface, and a
+ * class whose name contains <code>$$</code>, as generated subclasses and
+ * lambdas do, to the class named before it. A class may also be registered
+ * with an explicit path.
+ * <p>
+ * Classes are referenced weakly, so registering a class does not prevent its
+ * class loader from being garbage collected. The registry is safe to use from
+ * several threads.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceNodeRegistry {
+
+	/** Which classes share a node. */
+	public enum Granularity {
+		/** The classes of a package share its node. */
+		PACKAGE,
+		/** Each top level class has a node of its own. */
+		CLASS
+	}
+
+	/** The node path of the unnamed package, as used by the JDK. */
+	public static final String UNNAMED_PACKAGE = "/<unnamed>";
+
+	/** The root of the tree the nodes are in. */
+	private Preferences root;
+	/** Which classes share a node. */
+	private Granularity granularity;
+	/** The resolved and registered classes. */
+	private ConcurrentMap<Key<Class<?>, Object>, Entry> entries;
+	/** The queue of keys whose class has been garbage collected. */
+	private ReferenceQueue<Class<?>> collected;
+	/** The parents of the cached nodes which are listened to. */
+	private Set<Preferences> listened;
+	/** Drops the cached handle of a node when it is removed. */
+	private NodeChangeListener removalListener;
+
+	/** The path and node of a class. */
+	private static class Entry {
+
+		/** The absolute path of the node. */
+		private String path;
+		/** The node, or <code>null</code> if not read yet. */
+		private volatile Preferences node;
+		/** Whether the path was registered rather than resolved. */
+		private boolean registered;
+
+	}
+
+	/**
+	 * Constructs a <code>PreferenceNodeRegistry</code> mapping classes to the
+	 * nodes of their packages in the user tree.
+	 * <p>
+	 * This is equivalent to
+	 * <code>PreferenceNodeRegistry(Preferences.userRoot(), Granularity.PACKAGE)</code>
+	 * .
+	 */
+	public PreferenceNodeRegistry() {
+		this(Preferences.userRoot(), Granularity.PACKAGE);
+	}
+
+	/**
+	 * Constructs a <code>PreferenceNodeRegistry</code> specifying the tree and
+	 * which classes share a node.
+	 * 
+	 * @param root
+	 *            the root of the tree the nodes are in
+	 * @param granularity
+	 *            which classes share a node
+	 */
+	public PreferenceNodeRegistry(Preferences root, Granularity granularity) {
+		this.root = root;
+		this.granularity = granularity;
+		this.entries = new ConcurrentHashMap<Key<Class<?>, Object>, Entry>();
+		this.collected = new ReferenceQueue<Class<?>>();
+		this.listened = Collections
+				.newSetFromMap(new ConcurrentHashMap<Preferences, Boolean>());
+		this.removalListener = new NodeChangeListener() {
+
+			@Override
+			public void childAdded(NodeChangeEvent evt) {
+			}
+
+			@Override
+			public void childRemoved(NodeChangeEvent evt) {
+				removed(evt.getChild());
+			}
+		};
+	}
+
+	/**
+	 * Returns the root of the tree the nodes are in.
+	 * 
+	 * @return the root node
+	 */
+	public Preferences getRoot() {
+		return root;
+	}
+
+	/**
+	 * Returns which classes share a node.
+	 * 
+	 * @return the granularity
+	 */
+	public Granularity getGranularity() {
+		return granularity;
+	}
+
+	/**
+	 * Returns the node of the class of <code>obj</code>.
+	 * 
+	 * @see #nodeFor(Class)
+	 * @param obj
+	 *            the object
+	 * @return the node
+	 */
+	public Preferences nodeFor(Object obj) {
+		return nodeFor(obj.getClass());
+	}
+
+	/**
+	 * Returns the node of <code>type</code>, creating it if necessary. The
+	 * handle is cached without locking the node on later lookups. The
+	 * registry listens to the parent of each cached node and drops the handle
+	 * once notified that the node was removed, so the node is created again.
+	 * 
+	 * @param type
+	 *            the class
+	 * @return the node
+	 */
+	public Preferences nodeFor(Class<?> type) {
+		Entry entry = entryFor(type);
+		Preferences node = entry.node;
+		if (node == null) {
+			node = root.node(entry.path);
+			listenToParent(node);
+			entry.node = node;
+		}
+		return node;
+	}
+
+	/**
+	 * Listens to the parent of <code>node</code> for its removal, unless
+	 * already listening.
+	 * 
+	 * @param node
+	 *            the cached node
+	 */
+	private void listenToParent(Preferences node) {
+		Preferences parent = node.parent();
+		if (parent != null && listened.add(parent)) {
+			try {
+				parent.addNodeChangeListener(removalListener);
+			} catch (IllegalStateException e) {
+				// the parent has been removed meanwhile
+				listened.remove(parent);
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached handles of <code>node</code>, which has been removed.
+	 * 
+	 * @param node
+	 *            the removed node
+	 */
+	private void removed(Preferences node) {
+		// a removed parent notifies nothing more
+		listened.remove(node);
+		for (Entry entry : entries.values()) {
+			if (entry.node == node) {
+				entry.node = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the absolute path of the node of <code>type</code>.
+	 * 
+	 * @param type
+	 *            the class
+	 * @return the absolute path
+	 */
+	public String pathFor(Class<?> type) {
+		return entryFor(type).path;
+	}
+
+	/**
+	 * Maps <code>type</code> to the node at <code>path</code> rather than its
+	 * resolved node.
+	 * 
+	 * @param type
+	 *            the class
+	 * @param path
+	 *            the absolute path of the node
+	 */
+	public void register(Class<?> type, String path) {
+		purge();
+		Entry entry = new Entry();
+		entry.path = path;
+		entry.registered = true;
+		entries.put(IdentityKeys.<Class<?>, Object> weak(type, null, collected),
+				entry);
+	}
+
+	/**
+	 * Removes the path registered for <code>type</code>, so it maps to its
+	 * resolved node again.
+	 * 
+	 * @param type
+	 *            the class
+	 */
+	public void unregister(Class<?> type) {
+		entries.remove(IdentityKeys.<Class<?>, Object> strong(type, null));
+	}
+
+	/**
+	 * Discards the resolved paths and node handles, keeping the registered
+	 * paths.
+	 */
+	public void clearCache() {
+		for (Entry entry : entries.values()) {
+			entry.node = null;
+		}
+		for (Key<Class<?>, Object> key : entries.keySet()) {
+			Entry entry = entries.get(key);
+			if (entry != null && !entry.registered) {
+				entries.remove(key, entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of classes resolved or registered.
+	 * 
+	 * @return the number of classes
+	 */
+	public int size() {
+		purge();
+		return entries.size();
+	}
+
+	/**
+	 * Returns the entry of <code>type</code>, resolving it if necessary.
+	 * 
+	 * @param type
+	 *            the class
+	 * @return the entry
+	 */
+	private Entry entryFor(Class<?> type) {
+		Entry entry = entries.get(IdentityKeys.<Class<?>, Object> strong(type,
+				null));
+		if (entry == null) {
+			purge();
+			entry = new Entry();
+			entry.path = resolvePath(type);
+			Entry existing = entries.putIfAbsent(IdentityKeys
+					.<Class<?>, Object> weak(type, null, collected), entry);
+			if (existing != null) {
+				entry = existing; // resolved by another thread meanwhile
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the absolute path of the node of <code>type</code> when it is
+	 * not registered. This is called once per class. In derived classes this
+	 * may be overridden to customize the mapping.
+	 * 
+	 * @param type
+	 *            the class
+	 * @return the absolute path
+	 */
+	protected String resolvePath(Class<?> type) {
+		while (type.isArray()) {
+			type = type.getComponentType();
+		}
+		if (Proxy.isProxyClass(type) && type.getInterfaces().length > 0) {
+			type = type.getInterfaces()[0];
+		}
+		String name = type.getName();
+		int generated = name.indexOf("$$");
+		if (generated > 0) {
+			name = name.substring(0, generated);
+		}
+		int dot = name.lastIndexOf('.');
+		String path = (dot < 0) ? UNNAMED_PACKAGE : "/"
+				+ name.substring(0, dot).replace('.', '/');
+		if (granularity == Granularity.CLASS) {
+			String simple = name.substring(dot + 1);
+			int nested = simple.indexOf('$');
+			if (nested > 0) {
+				simple = simple.substring(0, nested);
+			}
+			path += "/" + simple;
+		}
+		return path;
+	}
+
+	/**
+	 * Forgets the classes which have been garbage collected.
+	 */
+	private void purge() {
+		Reference<?> ref;
+		while ((ref = collected.poll()) != null) {
+			entries.remove(ref);
+		}
+	}
+
+}
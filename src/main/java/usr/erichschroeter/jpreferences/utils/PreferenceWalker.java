@@ -0,0 +1,483 @@
+package usr.erichschroeter.jpreferences.utils;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import java.util.regex.Pattern;
+
+/**
+ * A <code>PreferenceWalker</code> visits every node of a preference subtree,
+ * in parallel when its parallelism is greater than one.
+ * <p>
+ * Each node is visited by exactly one thread. A thread visiting a node hands
+ * all but one of its children to the other threads and continues with the
+ * remaining child itself, so work spreads across the threads as soon as the
+ * tree branches while a long chain of nodes is walked without handing off.
+ * The walker never holds the lock of one node while reading another, so
+ * walking does not block the backing store for longer than a single
+ * <code>childrenNames()</code> or <code>nodeExists(String)</code> call, and
+ * visitors may lock or modify the node they are given.
+ * <p>
+ * Nodes removed while the tree is being walked are skipped, and never
+ * recreated by the walker.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceWalker {
+
+	/** What the walker does after visiting a node. */
+	public enum VisitResult {
+		/** Continue with the children of the node. */
+		CONTINUE,
+		/** Continue without visiting the children of the node. */
+		SKIP_CHILDREN,
+		/** Stop walking as soon as possible. */
+		TERMINATE
+	}
+
+	/**
+	 * A <code>Visitor</code> is called with each node walked. With a
+	 * parallelism greater than one it is called from several threads at once.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Visits <code>node</code>.
+		 * 
+		 * @param node
+		 *            the node
+		 * @return what to do next
+		 * @throws BackingStoreException
+		 *             to stop walking and make the walk throw it
+		 */
+		VisitResult visit(Preferences node) throws BackingStoreException;
+
+	}
+
+	/**
+	 * A <code>PathFilter</code> decides which nodes are visited, by their
+	 * absolute path. Nodes which are not accepted are still walked through, so
+	 * their descendants may be visited, unless the filter tells the walker not
+	 * to descend.
+	 */
+	public static abstract class PathFilter {
+
+		/**
+		 * Returns whether the node at <code>path</code> is visited.
+		 * 
+		 * @param path
+		 *            the absolute path of the node
+		 * @return <code>true</code> if visited, else <code>false</code>
+		 */
+		public abstract boolean accept(String path);
+
+		/**
+		 * Returns whether the children of the node at <code>path</code> are
+		 * walked. The default implementation returns <code>true</code>.
+		 * 
+		 * @param path
+		 *            the absolute path of the node
+		 * @return <code>true</code> to walk the children, else
+		 *         <code>false</code>
+		 */
+		public boolean descend(String path) {
+			return true;
+		}
+
+	}
+
+	/** The number of nodes and time taken by a walk. */
+	public static class Statistics {
+
+		/** The number of nodes visited. */
+		private long visited;
+		/** The number of nodes walked through without being visited. */
+		private long filtered;
+		/** The time taken in nanoseconds. */
+		private long elapsed;
+		/** Whether a visitor terminated the walk. */
+		private boolean terminated;
+
+		/**
+		 * Returns the number of nodes visited.
+		 * 
+		 * @return the number of nodes visited
+		 */
+		public long getVisited() {
+			return visited;
+		}
+
+		/**
+		 * Returns the number of nodes walked through without being visited,
+		 * because the filter did not accept them.
+		 * 
+		 * @return the number of nodes filtered
+		 */
+		public long getFiltered() {
+			return filtered;
+		}
+
+		/**
+		 * Returns the time the walk took.
+		 * 
+		 * @return the elapsed time in nanoseconds
+		 */
+		public long getElapsedNanos() {
+			return elapsed;
+		}
+
+		/**
+		 * Returns whether a visitor terminated the walk before every node was
+		 * walked.
+		 * 
+		 * @return <code>true</code> if terminated, else <code>false</code>
+		 */
+		public boolean isTerminated() {
+			return terminated;
+		}
+
+		/**
+		 * Returns the number of nodes walked, visited or not, per second.
+		 * 
+		 * @return the throughput in nodes per second
+		 */
+		public double getNodesPerSecond() {
+			return (elapsed == 0) ? 0 : (visited + filtered) * 1e9 / elapsed;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d nodes visited, %d filtered in %.1f ms"
+					+ " (%.0f nodes/s)%s", visited, filtered, elapsed / 1e6,
+					getNodesPerSecond(), terminated ? ", terminated" : "");
+		}
+
+	}
+
+	/** The number of threads walking a tree. */
+	private int parallelism;
+	/** Decides which nodes are visited, or <code>null</code> for all. */
+	private PathFilter filter;
+
+	/**
+	 * Constructs a <code>PreferenceWalker</code> using a thread per available
+	 * processor.
+	 */
+	public PreferenceWalker() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Constructs a <code>PreferenceWalker</code> specifying the number of
+	 * threads walking a tree. With a parallelism of one the tree is walked by
+	 * the calling thread.
+	 * 
+	 * @param parallelism
+	 *            the number of threads
+	 */
+	public PreferenceWalker(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Returns the number of threads walking a tree.
+	 * 
+	 * @return the parallelism
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Returns the filter deciding which nodes are visited.
+	 * 
+	 * @return the filter, or <code>null</code> if all nodes are visited
+	 */
+	public PathFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * Sets the filter deciding which nodes are visited.
+	 * 
+	 * @param filter
+	 *            the filter, or <code>null</code> to visit all nodes
+	 * @return this <code>PreferenceWalker</code>
+	 */
+	public PreferenceWalker setFilter(PathFilter filter) {
+		this.filter = filter;
+		return this;
+	}
+
+	/**
+	 * Returns a filter accepting the node at <code>path</code> and its
+	 * descendants. Only the ancestors of the node are descended into, so other
+	 * branches are not read beyond their first node.
+	 * 
+	 * @param path
+	 *            the absolute path of the node
+	 * @return the filter
+	 */
+	public static PathFilter subtree(String path) {
+		final String prefix = path.endsWith("/") ? path : path + "/";
+		return new PathFilter() {
+
+			@Override
+			public boolean accept(String path) {
+				return (path + "/").startsWith(prefix);
+			}
+
+			@Override
+			public boolean descend(String path) {
+				String dir = path.endsWith("/") ? path : path + "/";
+				return dir.startsWith(prefix) || prefix.startsWith(dir);
+			}
+		};
+	}
+
+	/**
+	 * Returns a filter accepting the nodes whose absolute path matches the
+	 * regular expression <code>regex</code>.
+	 * 
+	 * @param regex
+	 *            the regular expression
+	 * @return the filter
+	 */
+	public static PathFilter matching(String regex) {
+		final Pattern pattern = Pattern.compile(regex);
+		return new PathFilter() {
+
+			@Override
+			public boolean accept(String path) {
+				return pattern.matcher(path).matches();
+			}
+		};
+	}
+
+	/**
+	 * Walks <code>root</code> and its descendants, calling
+	 * <code>visitor</code> with each node accepted by the filter. Returns once
+	 * every node has been walked or the walk has been terminated.
+	 * 
+	 * @param root
+	 *            the root of the subtree to walk
+	 * @param visitor
+	 *            the visitor
+	 * @return the statistics of the walk
+	 * @throws BackingStoreException
+	 *             if the tree cannot be read, or the visitor throws it
+	 */
+	public Statistics walk(Preferences root, Visitor visitor)
+			throws BackingStoreException {
+		Walk walk = new Walk(visitor);
+		long start = System.nanoTime();
+		if (parallelism == 1) {
+			walk.walkSerially(root);
+		} else {
+			walk.walkInParallel(root);
+		}
+		Statistics stats = new Statistics();
+		stats.elapsed = System.nanoTime() - start;
+		stats.visited = walk.visited.get();
+		stats.filtered = walk.filtered.get();
+		stats.terminated = walk.terminated;
+		if (walk.failure instanceof BackingStoreException) {
+			throw (BackingStoreException) walk.failure;
+		} else if (walk.failure instanceof RuntimeException) {
+			throw (RuntimeException) walk.failure;
+		} else if (walk.failure instanceof Error) {
+			throw (Error) walk.failure;
+		}
+		return stats;
+	}
+
+	/** The state of one walk. */
+	private class Walk {
+
+		/** The visitor. */
+		private Visitor visitor;
+		/** The number of nodes visited. */
+		private AtomicLong visited = new AtomicLong();
+		/** The number of nodes walked through without being visited. */
+		private AtomicLong filtered = new AtomicLong();
+		/** Whether to stop walking. */
+		private volatile boolean terminated;
+		/** The first failure, which stops the walk. */
+		private volatile Throwable failure;
+		/** The nodes waiting to be walked by the calling thread. */
+		private Deque<Preferences> stack;
+		/** The threads of a parallel walk. */
+		private ExecutorService executor;
+		/** The number of nodes handed to the threads and not yet walked. */
+		private AtomicInteger pending;
+		/** Released when no nodes are pending. */
+		private CountDownLatch done;
+
+		public Walk(Visitor visitor) {
+			this.visitor = visitor;
+		}
+
+		/**
+		 * Walks the tree in the calling thread, depth first.
+		 * 
+		 * @param root
+		 *            the root of the subtree
+		 */
+		void walkSerially(Preferences root) {
+			stack = new ArrayDeque<Preferences>();
+			stack.push(root);
+			while (!stack.isEmpty() && !terminated) {
+				walkNode(stack.pop());
+			}
+		}
+
+		/**
+		 * Walks the tree with the threads, waiting for them to finish.
+		 * 
+		 * @param root
+		 *            the root of the subtree
+		 */
+		void walkInParallel(Preferences root) {
+			executor = Executors.newFixedThreadPool(parallelism,
+					new ThreadFactory() {
+
+						/** The number of threads created, used to name them. */
+						private int count;
+
+						@Override
+						public synchronized Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "PreferenceWalker-"
+									+ count++);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			pending = new AtomicInteger();
+			done = new CountDownLatch(1);
+			try {
+				fork(root);
+				done.await();
+			} catch (InterruptedException e) {
+				terminated = true;
+				Thread.currentThread().interrupt();
+			} finally {
+				executor.shutdown();
+			}
+		}
+
+		/**
+		 * Hands <code>node</code> to the threads.
+		 * 
+		 * @param node
+		 *            the node to walk
+		 */
+		private void fork(final Preferences node) {
+			pending.incrementAndGet();
+			executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Preferences next = node;
+						while (next != null && !terminated) {
+							next = walkNode(next);
+						}
+					} finally {
+						if (pending.decrementAndGet() == 0) {
+							done.countDown();
+						}
+					}
+				}
+			});
+		}
+
+		/**
+		 * Returns the children of <code>node</code> which still exist, without
+		 * recreating the children removed since their names were read.
+		 * 
+		 * @param node
+		 *            the parent node
+		 * @return the existing children in order
+		 * @throws BackingStoreException
+		 *             if the children names could not be read
+		 */
+		private Preferences[] children(Preferences node)
+				throws BackingStoreException {
+			String[] names = node.childrenNames();
+			int count = 0;
+			Preferences[] children = new Preferences[names.length];
+			for (String name : names) {
+				Preferences child = PrefUtils.childIfExists(node, name);
+				if (child != null) {
+					children[count++] = child;
+				}
+			}
+			if (count < children.length) {
+				Preferences[] existing = new Preferences[count];
+				System.arraycopy(children, 0, existing, 0, count);
+				return existing;
+			}
+			return children;
+		}
+
+		/**
+		 * Visits <code>node</code> if it is accepted and schedules its
+		 * children.
+		 * 
+		 * @param node
+		 *            the node to walk
+		 * @return the child the calling thread continues with, or
+		 *         <code>null</code> if none
+		 */
+		private Preferences walkNode(Preferences node) {
+			try {
+				String path = node.absolutePath();
+				VisitResult result = VisitResult.CONTINUE;
+				if (filter == null || filter.accept(path)) {
+					result = visitor.visit(node);
+					visited.incrementAndGet();
+				} else {
+					filtered.incrementAndGet();
+				}
+				if (result == VisitResult.TERMINATE) {
+					terminated = true;
+					return null;
+				}
+				if (result == VisitResult.SKIP_CHILDREN
+						|| (filter != null && !filter.descend(path))) {
+					return null;
+				}
+				Preferences[] children = children(node);
+				if (stack != null) {
+					// pushed in reverse so they are walked in order
+					for (int i = children.length - 1; i >= 0; i--) {
+						stack.push(children[i]);
+					}
+					return null;
+				}
+				for (int i = 0; i < children.length - 1 && !terminated; i++) {
+					fork(children[i]);
+				}
+				return (children.length == 0) ? null
+						: children[children.length - 1];
+			} catch (IllegalStateException e) {
+				return null; // the node was removed while walking
+			} catch (Throwable e) {
+				if (failure == null) {
+					failure = e;
+				}
+				terminated = true;
+				return null;
+			}
+		}
+
+	}
+
+}
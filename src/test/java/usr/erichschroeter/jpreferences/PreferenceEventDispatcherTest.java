@@ -0,0 +1,220 @@
+package usr.erichschroeter.jpreferences;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.NodeChangeEvent;
+import java.util.prefs.NodeChangeListener;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import javax.swing.SwingUtilities;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.NodeHandler;
+import usr.erichschroeter.jpreferences.PreferenceEventDispatcher.PreferenceHandler;
+import usr.erichschroeter.jpreferences.store.MemoryPreferences;
+
+/**
+ * Tests that {@link PreferenceEventDispatcher} coalesces the events queued by
+ * its listeners and delivers one batch per handler on the event dispatch
+ * thread.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceEventDispatcherTest {
+
+	/** A frame delay long enough for the tests to flush first. */
+	private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+	/** The node the events are about. */
+	private Preferences node;
+	/** The dispatcher under test. */
+	private PreferenceEventDispatcher dispatcher;
+
+	@Before
+	public void setUp() {
+		node = new MemoryPreferences();
+		dispatcher = new PreferenceEventDispatcher(NEVER);
+	}
+
+	/** Records the batches delivered to it. */
+	private static class Recorder implements PreferenceHandler, NodeHandler {
+
+		/** The preference batches delivered. */
+		private List<Map<String, String>> changes = new ArrayList<Map<String, String>>();
+		/** The node batches delivered. */
+		private List<Set<String>> names = new ArrayList<Set<String>>();
+		/** Whether every batch was delivered on the event dispatch thread. */
+		private boolean onEdt = true;
+
+		@Override
+		public void preferencesChanged(Map<String, String> changes) {
+			onEdt &= SwingUtilities.isEventDispatchThread();
+			this.changes.add(changes);
+		}
+
+		@Override
+		public void childrenChanged(Set<String> names) {
+			onEdt &= SwingUtilities.isEventDispatchThread();
+			this.names.add(names);
+		}
+
+	}
+
+	/**
+	 * Delivers the queued events on the event dispatch thread.
+	 */
+	private void flush() throws Exception {
+		SwingUtilities.invokeAndWait(new Runnable() {
+
+			@Override
+			public void run() {
+				dispatcher.flush();
+			}
+		});
+	}
+
+	@Test
+	public void testCoalescesLastValuePerKey() throws Exception {
+		Recorder recorder = new Recorder();
+		PreferenceChangeListener listener = dispatcher
+				.createPreferenceListener(recorder);
+		listener.preferenceChange(new PreferenceChangeEvent(node, "a", "1"));
+		listener.preferenceChange(new PreferenceChangeEvent(node, "b", "1"));
+		listener.preferenceChange(new PreferenceChangeEvent(node, "a", "2"));
+		listener.preferenceChange(new PreferenceChangeEvent(node, "b", null));
+		assertEquals(0, recorder.changes.size());
+		flush();
+		assertEquals(1, recorder.changes.size());
+		Map<String, String> batch = recorder.changes.get(0);
+		assertArrayEquals(new Object[] { "a", "b" }, batch.keySet().toArray());
+		assertEquals("2", batch.get("a"));
+		assertTrue(batch.containsKey("b"));
+		assertNull(batch.get("b"));
+		assertTrue(recorder.onEdt);
+		assertEquals(4, dispatcher.getEventCount());
+		assertEquals(1, dispatcher.getBatchCount());
+	}
+
+	@Test
+	public void testCoalescesChildNames() throws Exception {
+		Recorder recorder = new Recorder();
+		NodeChangeListener listener = dispatcher.createNodeListener(recorder);
+		Preferences child = node.node("child");
+		listener.childAdded(new NodeChangeEvent(node, child));
+		listener.childRemoved(new NodeChangeEvent(node, child));
+		listener.childAdded(new NodeChangeEvent(node, node.node("other")));
+		flush();
+		// the recorder handles both kinds, which are not mixed up
+		assertEquals(0, recorder.changes.size());
+		assertEquals(1, recorder.names.size());
+		assertArrayEquals(new Object[] { "child", "other" }, recorder.names
+				.get(0).toArray());
+	}
+
+	@Test
+	public void testOneBatchPerHandler() throws Exception {
+		Recorder first = new Recorder();
+		Recorder second = new Recorder();
+		PreferenceChangeListener a = dispatcher.createPreferenceListener(first);
+		PreferenceChangeListener b = dispatcher
+				.createPreferenceListener(second);
+		a.preferenceChange(new PreferenceChangeEvent(node, "key", "1"));
+		b.preferenceChange(new PreferenceChangeEvent(node, "key", "2"));
+		a.preferenceChange(new PreferenceChangeEvent(node, "key", "3"));
+		flush();
+		assertEquals(1, first.changes.size());
+		assertEquals("3", first.changes.get(0).get("key"));
+		assertEquals(1, second.changes.size());
+		assertEquals("2", second.changes.get(0).get("key"));
+		assertEquals(2, dispatcher.getBatchCount());
+	}
+
+	@Test
+	public void testFailingHandlerDoesNotStopOthers() throws Exception {
+		Recorder recorder = new Recorder();
+		PreferenceChangeListener failing = dispatcher
+				.createPreferenceListener(new PreferenceHandler() {
+
+					@Override
+					public void preferencesChanged(Map<String, String> changes) {
+						throw new IllegalStateException("expected by the test");
+					}
+				});
+		failing.preferenceChange(new PreferenceChangeEvent(node, "key", "1"));
+		dispatcher.createPreferenceListener(recorder).preferenceChange(
+				new PreferenceChangeEvent(node, "key", "1"));
+		flush();
+		assertEquals(1, recorder.changes.size());
+	}
+
+	@Test
+	public void testHandlersShareRegistration() throws Exception {
+		dispatcher.setFrameDelay(1);
+		final CountDownLatch delivered = new CountDownLatch(2);
+		PreferenceHandler first = new PreferenceHandler() {
+
+			@Override
+			public void preferencesChanged(Map<String, String> changes) {
+				delivered.countDown();
+			}
+		};
+		PreferenceHandler second = new PreferenceHandler() {
+
+			@Override
+			public void preferencesChanged(Map<String, String> changes) {
+				delivered.countDown();
+			}
+		};
+		dispatcher.addPreferenceHandler(node, first);
+		dispatcher.addPreferenceHandler(node, second);
+		dispatcher.addPreferenceHandler(node, second);
+		assertEquals(1, dispatcher.getRegisteredNodeCount());
+		node.put("key", "value");
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+		dispatcher.removePreferenceHandler(node, first);
+		assertEquals(1, dispatcher.getRegisteredNodeCount());
+		dispatcher.removePreferenceHandler(node, second);
+		assertEquals(0, dispatcher.getRegisteredNodeCount());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRemovedNodeRejectsHandler() throws Exception {
+		Preferences child = node.node("child");
+		child.removeNode();
+		try {
+			dispatcher.addNodeHandler(child, new Recorder());
+		} finally {
+			assertEquals(0, dispatcher.getRegisteredNodeCount());
+		}
+	}
+
+	@Test
+	public void testDeliversFrame() throws Exception {
+		dispatcher.setFrameDelay(1);
+		final CountDownLatch delivered = new CountDownLatch(1);
+		PreferenceChangeListener listener = dispatcher
+				.createPreferenceListener(new PreferenceHandler() {
+
+					@Override
+					public void preferencesChanged(Map<String, String> changes) {
+						delivered.countDown();
+					}
+				});
+		listener.preferenceChange(new PreferenceChangeEvent(node, "key", "1"));
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+	}
+
+}
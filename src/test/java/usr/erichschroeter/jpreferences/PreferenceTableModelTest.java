@@ -0,0 +1,174 @@
+package usr.erichschroeter.jpreferences;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.prefs.Preferences;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import usr.erichschroeter.jpreferences.store.MemoryPreferences;
+
+/**
+ * Tests that the bulk operations of {@link PreferenceTableModel} merge into
+ * and discard from the snapshot of the node, firing a single
+ * <code>TableModelEvent</code> for each.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceTableModelTest {
+
+	/** The node wrapped by the model. */
+	private Preferences node;
+	/** The model under test. */
+	private PreferenceTableModel model;
+	/** The events fired by the model. */
+	private List<TableModelEvent> events;
+
+	@Before
+	public void setUp() {
+		node = new MemoryPreferences();
+		for (String key : new String[] { "b", "d", "f", "h" }) {
+			node.put(key, key.toUpperCase());
+		}
+		model = new PreferenceTableModel(node);
+		events = new ArrayList<TableModelEvent>();
+		model.addTableModelListener(new TableModelListener() {
+
+			@Override
+			public void tableChanged(TableModelEvent e) {
+				events.add(e);
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		model.dispose();
+	}
+
+	/** Returns the keys of the rows of the model. */
+	private String[] keys() {
+		String[] keys = new String[model.getRowCount()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = (String) model.getValueAt(i,
+					PreferenceTableModel.KEY_COLUMN);
+		}
+		return keys;
+	}
+
+	/** Returns a map of the alternating keys and values. */
+	private static Map<String, String> entries(String... keysAndValues) {
+		Map<String, String> entries = new HashMap<String, String>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			entries.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return entries;
+	}
+
+	/** Asserts that the only event fired was of <code>type</code>. */
+	private void assertEvent(int type, int firstRow, int lastRow) {
+		assertEquals(1, events.size());
+		TableModelEvent event = events.get(0);
+		assertEquals(type, event.getType());
+		assertEquals(firstRow, event.getFirstRow());
+		assertEquals(lastRow, event.getLastRow());
+	}
+
+	/** Asserts that the only event fired was a data changed event. */
+	private void assertDataChanged() {
+		assertEvent(TableModelEvent.UPDATE, 0, Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void testPutAllInsertsContiguous() {
+		assertEquals(2, model.putAll(entries("e", "E", "e2", "E2")));
+		assertArrayEquals(new String[] { "b", "d", "e", "e2", "f", "h" },
+				keys());
+		assertEquals("E2", model.getValueAt(3,
+				PreferenceTableModel.VALUE_COLUMN));
+		assertEquals("E2", node.get("e2", null));
+		assertEvent(TableModelEvent.INSERT, 2, 3);
+	}
+
+	@Test
+	public void testPutAllUpdatesContiguous() {
+		assertEquals(2, model.putAll(entries("d", "x", "f", "y", "h", "H")));
+		assertArrayEquals(new String[] { "b", "d", "f", "h" }, keys());
+		assertEquals("y", model.getValueAt(2,
+				PreferenceTableModel.VALUE_COLUMN));
+		assertEvent(TableModelEvent.UPDATE, 1, 2);
+	}
+
+	@Test
+	public void testPutAllScattered() {
+		assertEquals(3, model.putAll(entries("a", "A", "d", "x", "z", "Z")));
+		assertArrayEquals(new String[] { "a", "b", "d", "f", "h", "z" },
+				keys());
+		assertEquals("x", node.get("d", null));
+		assertDataChanged();
+	}
+
+	@Test
+	public void testPutAllUnchanged() {
+		Map<String, String> entries = entries("b", "B", "d", "D");
+		entries.put(null, "null key");
+		entries.put("n", null);
+		assertEquals(0, model.putAll(entries));
+		assertEquals(0, events.size());
+		assertNull(node.get("n", null));
+	}
+
+	@Test
+	public void testRemoveAllContiguous() {
+		assertEquals(2, model.removeAll(Arrays.asList("d", "f", "missing")));
+		assertArrayEquals(new String[] { "b", "h" }, keys());
+		assertNull(node.get("f", null));
+		assertEvent(TableModelEvent.DELETE, 1, 2);
+	}
+
+	@Test
+	public void testRemoveAllScattered() {
+		assertEquals(2, model.removeAll(Arrays.asList("b", "f", "b", null)));
+		assertArrayEquals(new String[] { "d", "h" }, keys());
+		assertDataChanged();
+	}
+
+	@Test
+	public void testRemoveAllMissing() {
+		assertEquals(0, model.removeAll(Arrays.asList("a", "z")));
+		assertEquals(0, events.size());
+	}
+
+	@Test
+	public void testChangesMergedAndDiscarded() {
+		Map<String, String> changes = entries("b", "B", "c", "C", "f", "x");
+		changes.put("h", null);
+		changes.put("missing", null);
+		model.preferencesChanged(changes);
+		assertArrayEquals(new String[] { "b", "c", "d", "f" }, keys());
+		assertEquals("x", model.getValueAt(3,
+				PreferenceTableModel.VALUE_COLUMN));
+		assertDataChanged();
+	}
+
+	@Test
+	public void testChangesAlreadyApplied() {
+		Map<String, String> changes = entries("b", "B", "d", "D");
+		changes.put("missing", null);
+		model.preferencesChanged(changes);
+		assertEquals(0, events.size());
+	}
+
+}
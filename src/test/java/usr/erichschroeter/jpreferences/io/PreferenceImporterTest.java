@@ -0,0 +1,134 @@
+package usr.erichschroeter.jpreferences.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.InvalidPreferencesFormatException;
+import java.util.prefs.Preferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import usr.erichschroeter.jpreferences.store.MemoryPreferences;
+
+/**
+ * Tests that documents written by {@link PreferenceExporter} are applied by
+ * {@link PreferenceImporter} to the same nodes in either format.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceImporterTest {
+
+	/** The tree exported from. */
+	private Preferences source;
+
+	@Before
+	public void setUp() {
+		source = new MemoryPreferences();
+		Preferences b = source.node("a/b");
+		b.put("key", "value");
+		b.put("space", " leading and trailing ");
+		b.node("c").putInt("count", 3);
+		source.node("a").put("ancestor", "not exported");
+	}
+
+	/**
+	 * Exports <code>node</code> in <code>format</code> and imports the
+	 * document into <code>target</code>.
+	 */
+	private PreferenceImporter roundTrip(Preferences node,
+			PreferenceFormat format, Preferences target) throws IOException,
+			BackingStoreException, InvalidPreferencesFormatException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new PreferenceExporter(format).exportSubtree(node, out);
+		PreferenceImporter importer = new PreferenceImporter(target, target);
+		importer.importPreferences(new ByteArrayInputStream(out.toByteArray()));
+		return importer;
+	}
+
+	/**
+	 * Asserts that the exported subtree was applied below <code>base</code>.
+	 */
+	private static void assertImported(Preferences base)
+			throws BackingStoreException {
+		Preferences b = base.node("a/b");
+		assertEquals("value", b.get("key", null));
+		assertEquals(" leading and trailing ", b.get("space", null));
+		assertEquals(3, b.node("c").getInt("count", 0));
+		assertArrayEquals(new String[0], base.node("a").keys());
+	}
+
+	@Test
+	public void testXmlIntoRoot() throws Exception {
+		Preferences target = new MemoryPreferences();
+		roundTrip(source.node("a/b"), PreferenceFormat.XML, target);
+		assertImported(target);
+	}
+
+	@Test
+	public void testBinaryIntoRoot() throws Exception {
+		Preferences target = new MemoryPreferences();
+		roundTrip(source.node("a/b"), PreferenceFormat.BINARY, target);
+		assertImported(target);
+	}
+
+	@Test
+	public void testXmlIntoNode() throws Exception {
+		Preferences target = new MemoryPreferences();
+		roundTrip(source.node("a/b"), PreferenceFormat.XML, target.node("sub"));
+		assertImported(target.node("sub"));
+		assertFalse(target.nodeExists("a"));
+	}
+
+	@Test
+	public void testBinaryIntoNode() throws Exception {
+		Preferences target = new MemoryPreferences();
+		roundTrip(source.node("a/b"), PreferenceFormat.BINARY,
+				target.node("sub"));
+		assertImported(target.node("sub"));
+		assertFalse(target.nodeExists("a"));
+	}
+
+	@Test
+	public void testFormatsAgree() throws Exception {
+		Preferences xml = new MemoryPreferences();
+		Preferences binary = new MemoryPreferences();
+		PreferenceImporter fromXml = roundTrip(source.node("a/b"),
+				PreferenceFormat.XML, xml.node("sub"));
+		PreferenceImporter fromBinary = roundTrip(source.node("a/b"),
+				PreferenceFormat.BINARY, binary.node("sub"));
+		assertEquals(fromXml.getEntryCount(), fromBinary.getEntryCount());
+		assertEquals(fromXml.getChangeCount(), fromBinary.getChangeCount());
+		ByteArrayOutputStream a = new ByteArrayOutputStream();
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		new PreferenceExporter(PreferenceFormat.BINARY).exportSubtree(xml, a);
+		new PreferenceExporter(PreferenceFormat.BINARY).exportSubtree(binary,
+				b);
+		assertArrayEquals(a.toByteArray(), b.toByteArray());
+	}
+
+	@Test
+	public void testImportAgainChangesNothing() throws Exception {
+		Preferences target = new MemoryPreferences();
+		for (PreferenceFormat format : PreferenceFormat.values()) {
+			roundTrip(source.node("a/b"), format, target.node("sub"));
+			PreferenceImporter again = roundTrip(source.node("a/b"), format,
+					target.node("sub"));
+			assertEquals(3, again.getEntryCount());
+			assertEquals(0, again.getChangeCount());
+		}
+	}
+
+	@Test(expected = InvalidPreferencesFormatException.class)
+	public void testInvalidDocument() throws Exception {
+		new PreferenceImporter(new MemoryPreferences(), new MemoryPreferences())
+				.importPreferences(new ByteArrayInputStream("not a document"
+						.getBytes("UTF-8")));
+	}
+
+}
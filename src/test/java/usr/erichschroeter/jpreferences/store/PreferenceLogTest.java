@@ -0,0 +1,274 @@
+package usr.erichschroeter.jpreferences.store;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the record format, replay, compaction and crash recovery of
+ * {@link PreferenceLog}.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceLogTest {
+
+	/** The number of bytes before the first record. */
+	private static final int HEADER_SIZE = 8;
+	/** The number of bytes before each record. */
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/** The log file. */
+	private File file;
+	/** The log under test. */
+	private PreferenceLog log;
+
+	@Before
+	public void setUp() throws IOException {
+		file = new File(folder.getRoot(), "prefs.log");
+		log = new PreferenceLog(file, true);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		log.close();
+	}
+
+	/**
+	 * Closes the log and opens it again, replaying its records.
+	 */
+	private void reopen() throws IOException {
+		log.close();
+		log = new PreferenceLog(file, true);
+	}
+
+	@Test
+	public void testRecordFormat() throws IOException {
+		log.createNode("/a");
+		log.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			assertEquals(0x4A50524C, raf.readInt());
+			assertEquals(2, raf.readInt());
+			int length = raf.readInt();
+			int checksum = raf.readInt();
+			// the type, then the path in modified UTF-8
+			byte[] record = new byte[length];
+			raf.readFully(record);
+			assertArrayEquals(new byte[] { 3, 0, 2, '/', 'a' }, record);
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			assertEquals((int) crc.getValue(), checksum);
+			assertEquals(0, raf.readInt());
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		log.put("/a", "x", "1");
+		log.put("/a/b", "y", "2");
+		log.put("/a/b", "y", "3");
+		log.put("/c", "z", "4");
+		log.remove("/a", "x");
+		log.removeNode("/c");
+		log.createNode("/d");
+		int size = log.getSize();
+		long garbage = log.getGarbage();
+		reopen();
+		assertNull(log.get("/a", "x"));
+		assertEquals("3", log.get("/a/b", "y"));
+		assertFalse(log.exists("/c"));
+		assertTrue(log.exists("/d"));
+		assertArrayEquals(new String[] { "a", "d" }, log.childrenNames("/"));
+		assertEquals(size, log.getSize());
+		assertEquals(garbage, log.getGarbage());
+	}
+
+	@Test
+	public void testCorruptRecordIsTruncated() throws IOException {
+		log.put("/a", "x", "1");
+		int good = log.getSize();
+		log.put("/a", "y", "2");
+		log.close();
+		// flip a byte of the last record, as a torn write would
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			long offset = HEADER_SIZE + good + RECORD_HEADER_SIZE + 1;
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+		log = new PreferenceLog(file, true);
+		assertEquals("1", log.get("/a", "x"));
+		assertNull(log.get("/a", "y"));
+		assertEquals(good, log.getSize());
+		// records appended after the damage replay normally
+		log.put("/a", "z", "3");
+		reopen();
+		assertEquals("1", log.get("/a", "x"));
+		assertNull(log.get("/a", "y"));
+		assertEquals("3", log.get("/a", "z"));
+	}
+
+	@Test
+	public void testShortRecordIsTruncated() throws IOException {
+		log.put("/a", "x", "1");
+		int good = log.getSize();
+		log.close();
+		// a length running past the end of the file
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(HEADER_SIZE + good);
+			raf.writeInt(Integer.MAX_VALUE - 16);
+		} finally {
+			raf.close();
+		}
+		log = new PreferenceLog(file, true);
+		assertEquals("1", log.get("/a", "x"));
+		assertEquals(good, log.getSize());
+		log.put("/a", "y", "2");
+		reopen();
+		assertEquals("2", log.get("/a", "y"));
+	}
+
+	@Test
+	public void testUnwrittenHeaderIsNewLog() throws IOException {
+		log.close();
+		// the file was extended by the mapping but the header never written
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(1024);
+		} finally {
+			raf.close();
+		}
+		log = new PreferenceLog(file, true);
+		assertEquals(0, log.getSize());
+		log.put("/a", "x", "1");
+		reopen();
+		assertEquals("1", log.get("/a", "x"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotALog() throws IOException {
+		log.close();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write("not a preference log".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		log = new PreferenceLog(file, true);
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		log.setCompactionThreshold(0);
+		for (int i = 0; i < 100; i++) {
+			log.put("/a", "x", "v" + i);
+		}
+		log.put("/b/c", "y", "1");
+		log.removeNode("/b");
+		int before = log.getSize();
+		log.flush();
+		assertTrue(log.getSize() < before);
+		assertEquals(0, log.getGarbage());
+		assertEquals("v99", log.get("/a", "x"));
+		assertFalse(log.exists("/b"));
+		assertFalse(new File(file.getPath() + ".compact").exists());
+		assertFalse(new File(file.getPath() + ".old").exists());
+		// the compacted log is appended to and replayed like any other
+		log.put("/a", "y", "2");
+		reopen();
+		assertEquals("v99", log.get("/a", "x"));
+		assertEquals("2", log.get("/a", "y"));
+		assertFalse(log.exists("/b"));
+	}
+
+	@Test
+	public void testFailedCompactionKeepsLog() throws IOException {
+		log.put("/a", "x", "1");
+		// the compacted log cannot be written over a directory
+		File compacted = new File(file.getPath() + ".compact");
+		assertTrue(new File(compacted, "blocked").mkdirs());
+		try {
+			log.compact();
+			fail("compacted over a directory");
+		} catch (IOException e) {
+			// expected
+		}
+		log.put("/a", "y", "2");
+		assertEquals("1", log.get("/a", "x"));
+		reopen();
+		assertEquals("1", log.get("/a", "x"));
+		assertEquals("2", log.get("/a", "y"));
+	}
+
+	@Test
+	public void testRecoverCompactedLog() throws IOException {
+		log.put("/a", "x", "old");
+		log.close();
+		File compacted = new File(file.getPath() + ".compact");
+		PreferenceLog other = new PreferenceLog(compacted, true);
+		other.put("/a", "x", "compacted");
+		other.close();
+		// a crash after the log was renamed aside
+		File old = new File(file.getPath() + ".old");
+		assertTrue(file.renameTo(old));
+		log = new PreferenceLog(file, true);
+		assertEquals("compacted", log.get("/a", "x"));
+		assertFalse(compacted.exists());
+		assertFalse(old.exists());
+	}
+
+	@Test
+	public void testRecoverLogRenamedAside() throws IOException {
+		log.put("/a", "x", "1");
+		log.close();
+		File old = new File(file.getPath() + ".old");
+		assertTrue(file.renameTo(old));
+		log = new PreferenceLog(file, true);
+		assertEquals("1", log.get("/a", "x"));
+		assertFalse(old.exists());
+	}
+
+	@Test
+	public void testDiscardInterruptedCompaction() throws IOException {
+		log.put("/a", "x", "1");
+		log.close();
+		// a crash while the compacted log was being written
+		File compacted = new File(file.getPath() + ".compact");
+		FileOutputStream out = new FileOutputStream(compacted);
+		try {
+			out.write(new byte[] { 0x4A, 0x50 });
+		} finally {
+			out.close();
+		}
+		log = new PreferenceLog(file, true);
+		assertEquals("1", log.get("/a", "x"));
+		assertFalse(compacted.exists());
+	}
+
+}
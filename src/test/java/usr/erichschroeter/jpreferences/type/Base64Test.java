@@ -0,0 +1,94 @@
+package usr.erichschroeter.jpreferences.type;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.prefs.Preferences;
+
+import org.junit.Test;
+
+import usr.erichschroeter.jpreferences.store.MemoryPreferences;
+
+/**
+ * Tests that {@link Base64} encodes as <code>Preferences.putByteArray</code>
+ * does, decodes what it encodes and rejects invalid input.
+ * 
+ * @author Erich Schroeter
+ */
+public class Base64Test {
+
+	/** Returns <code>length</code> bytes covering the whole byte range. */
+	private static byte[] bytes(int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 37 + 250);
+		}
+		return bytes;
+	}
+
+	@Test
+	public void testKnownVectors() {
+		assertEquals("", Base64.encode(new byte[0]));
+		assertEquals("TQ==", Base64.encode(new byte[] { 'M' }));
+		assertEquals("TWE=", Base64.encode(new byte[] { 'M', 'a' }));
+		assertEquals("TWFu", Base64.encode(new byte[] { 'M', 'a', 'n' }));
+		assertArrayEquals(new byte[] { 'M' }, Base64.decode("TQ=="));
+		assertArrayEquals(new byte[] { 'M', 'a' }, Base64.decode("TWE="));
+		assertArrayEquals(new byte[] { 'M', 'a', 'n' }, Base64.decode("TWFu"));
+	}
+
+	@Test
+	public void testRoundTripNoPadding() {
+		for (int length = 0; length <= 30; length += 3) {
+			assertArrayEquals(bytes(length), Base64.decode(Base64
+					.encode(bytes(length))));
+		}
+	}
+
+	@Test
+	public void testRoundTripOnePad() {
+		for (int length = 2; length <= 32; length += 3) {
+			String text = Base64.encode(bytes(length));
+			assertEquals('=', text.charAt(text.length() - 1));
+			assertFalse(text.charAt(text.length() - 2) == '=');
+			assertArrayEquals(bytes(length), Base64.decode(text));
+		}
+	}
+
+	@Test
+	public void testRoundTripTwoPads() {
+		for (int length = 1; length <= 31; length += 3) {
+			String text = Base64.encode(bytes(length));
+			assertEquals("==", text.substring(text.length() - 2));
+			assertArrayEquals(bytes(length), Base64.decode(text));
+		}
+	}
+
+	@Test
+	public void testAgreesWithPreferences() {
+		Preferences node = new MemoryPreferences();
+		for (int length = 0; length <= 12; length++) {
+			node.putByteArray("bytes", bytes(length));
+			assertEquals(node.get("bytes", null), Base64.encode(bytes(length)));
+			assertArrayEquals(node.getByteArray("bytes", null),
+					Base64.decode(Base64.encode(bytes(length))));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLength() {
+		Base64.decode("TWF");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCharacter() {
+		Base64.decode("TW*u");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMisplacedPadding() {
+		Base64.decode("T=Fu");
+	}
+
+}
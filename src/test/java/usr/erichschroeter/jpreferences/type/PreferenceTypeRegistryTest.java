@@ -0,0 +1,129 @@
+package usr.erichschroeter.jpreferences.type;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.prefs.Preferences;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import usr.erichschroeter.jpreferences.store.MemoryPreferences;
+
+/**
+ * Tests the lookup of types in a {@link PreferenceTypeRegistry} and the
+ * parsing and formatting of the built-in {@link PreferenceType}s.
+ * 
+ * @author Erich Schroeter
+ */
+public class PreferenceTypeRegistryTest {
+
+	/** The root of the tree the types are looked up in. */
+	private Preferences root;
+	/** The registry under test. */
+	private PreferenceTypeRegistry registry;
+
+	@Before
+	public void setUp() {
+		root = new MemoryPreferences();
+		registry = new PreferenceTypeRegistry();
+	}
+
+	@Test
+	public void testDefaultType() {
+		assertEquals(PreferenceType.STRING, registry.getType(root, "key"));
+		registry.setDefaultType(PreferenceType.LONG);
+		assertEquals(PreferenceType.LONG, registry.getDefaultType());
+		assertEquals(PreferenceType.LONG, registry.getType(root, "key"));
+	}
+
+	@Test
+	public void testKeyInEveryNode() {
+		registry.register("count", PreferenceType.INTEGER);
+		assertEquals(PreferenceType.INTEGER, registry.getType(root, "count"));
+		assertEquals(PreferenceType.INTEGER,
+				registry.getType(root.node("a/b"), "count"));
+		assertEquals(PreferenceType.STRING, registry.getType(root, "other"));
+		registry.unregister("count");
+		assertEquals(PreferenceType.STRING, registry.getType(root, "count"));
+	}
+
+	@Test
+	public void testKeyInNode() {
+		registry.register("count", PreferenceType.INTEGER);
+		registry.register("/a/b", "count", PreferenceType.DOUBLE);
+		assertEquals(PreferenceType.DOUBLE,
+				registry.getType(root.node("a/b"), "count"));
+		assertEquals(PreferenceType.INTEGER,
+				registry.getType(root.node("a"), "count"));
+		registry.unregister("/a/b", "count");
+		assertEquals(PreferenceType.INTEGER,
+				registry.getType(root.node("a/b"), "count"));
+		registry.unregister("/a/b", "count");
+	}
+
+	@Test
+	public void testParseAsPreferences() {
+		Preferences node = root.node("a");
+		node.putInt("int", -7);
+		node.putLong("long", 1L << 40);
+		node.putFloat("float", 1.5f);
+		node.putDouble("double", -0.25);
+		node.putBoolean("boolean", true);
+		node.putByteArray("bytes", new byte[] { 1, 2, 3, 4 });
+		assertEquals(Integer.valueOf(-7),
+				PreferenceType.INTEGER.parse(node.get("int", null)));
+		assertEquals(Long.valueOf(1L << 40),
+				PreferenceType.LONG.parse(node.get("long", null)));
+		assertEquals(Float.valueOf(1.5f),
+				PreferenceType.FLOAT.parse(node.get("float", null)));
+		assertEquals(Double.valueOf(-0.25),
+				PreferenceType.DOUBLE.parse(node.get("double", null)));
+		assertEquals(Boolean.TRUE,
+				PreferenceType.BOOLEAN.parse(node.get("boolean", null)));
+		assertArrayEquals(new byte[] { 1, 2, 3, 4 },
+				PreferenceType.BYTE_ARRAY.parse(node.get("bytes", null)));
+		assertEquals(node.get("bytes", null),
+				PreferenceType.BYTE_ARRAY.format(new byte[] { 1, 2, 3, 4 }));
+	}
+
+	@Test
+	public void testBooleanIgnoresCase() {
+		assertEquals(Boolean.TRUE, PreferenceType.BOOLEAN.parse("TRUE"));
+		assertEquals(Boolean.FALSE, PreferenceType.BOOLEAN.parse("False"));
+	}
+
+	@Test
+	public void testFormatValue() {
+		assertEquals("42", PreferenceType.INTEGER.formatValue(42));
+		assertEquals("AQI=",
+				PreferenceType.BYTE_ARRAY.formatValue(new byte[] { 1, 2 }));
+		assertEquals("text", PreferenceType.BYTE_ARRAY.formatValue("text"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidInteger() {
+		PreferenceType.INTEGER.parse("abc");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidLong() {
+		PreferenceType.LONG.parse("1.5");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDouble() {
+		PreferenceType.DOUBLE.parse("one");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBoolean() {
+		PreferenceType.BOOLEAN.parse("yes");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidByteArray() {
+		PreferenceType.BYTE_ARRAY.parse("AQI");
+	}
+
+}